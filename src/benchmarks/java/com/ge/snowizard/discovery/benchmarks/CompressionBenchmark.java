@@ -0,0 +1,75 @@
+package com.ge.snowizard.discovery.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.core.BinaryInstanceSerializer;
+import com.ge.snowizard.discovery.core.CompressingInstanceSerializer;
+import com.ge.snowizard.discovery.core.CompressionCodec;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+import com.ge.snowizard.discovery.core.ThresholdCompressionProvider;
+
+/**
+ * Compares the CPU cost and the size of instance records written with each
+ * {@link CompressionCodec}, with compression forced for every record. The
+ * size of a record is printed when each trial starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({ "NONE", "GZIP", "SNAPPY" })
+    private CompressionCodec codec;
+
+    @Param({ "JSON", "BINARY" })
+    private String format;
+
+    private InstanceSerializer<InstanceMetadata> serializer;
+    private ServiceInstance<InstanceMetadata> instance;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        final JacksonInstanceSerializer<InstanceMetadata> json = new JacksonInstanceSerializer<InstanceMetadata>(
+                new ObjectMapper(),
+                new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                });
+        final InstanceSerializer<InstanceMetadata> records = "BINARY"
+                .equals(format) ? new BinaryInstanceSerializer(json) : json;
+        serializer = new CompressingInstanceSerializer<InstanceMetadata>(
+                records, new ThresholdCompressionProvider(codec, 0));
+        instance = InstanceSerializerBenchmark.newInstance();
+        bytes = serializer.serialize(instance);
+        System.out.printf("%nznode size: %s/%s=%d bytes (uncompressed %d)%n",
+                format, codec, bytes.length,
+                records.serialize(instance).length);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return serializer.serialize(instance);
+    }
+
+    @Benchmark
+    public ServiceInstance<InstanceMetadata> deserialize() throws Exception {
+        return serializer.deserialize(bytes);
+    }
+}
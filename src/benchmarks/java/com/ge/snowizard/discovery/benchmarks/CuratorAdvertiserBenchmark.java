@@ -0,0 +1,64 @@
+package com.ge.snowizard.discovery.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.DiscoveryFactory;
+import com.ge.snowizard.discovery.core.CuratorAdvertiser;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+/**
+ * Measures the cost of building the {@link ServiceInstance} advertised by
+ * {@link CuratorAdvertiser}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CuratorAdvertiserBenchmark {
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private ServiceDiscovery<InstanceMetadata> discovery;
+    private CuratorAdvertiser advertiser;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = DiscoveryClientBenchmark.newFramework(server);
+        discovery = DiscoveryClientBenchmark.newDiscovery(framework);
+        final DiscoveryFactory factory = DiscoveryClientBenchmark
+                .newDiscoveryFactory();
+        advertiser = new CuratorAdvertiser(factory, framework,
+                factory.getInstanceSerializer(new ObjectMapper()));
+        advertiser.initListenInfo(8080);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        discovery.close();
+        framework.close();
+        server.close();
+    }
+
+    @Benchmark
+    public ServiceInstance<InstanceMetadata> getInstance() throws Exception {
+        return advertiser.getInstance();
+    }
+}
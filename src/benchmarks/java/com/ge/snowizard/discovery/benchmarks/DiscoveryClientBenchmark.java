@@ -0,0 +1,161 @@
+package com.ge.snowizard.discovery.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.DownInstancePolicy;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.DiscoveryFactory;
+import com.ge.snowizard.discovery.client.DiscoveryClient;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.strategies.LatencyAwareStrategy;
+import com.ge.snowizard.discovery.strategies.RandomStrategy;
+import com.ge.snowizard.discovery.strategies.RoundRobinStrategy;
+import com.ge.snowizard.discovery.strategies.WeightedStrategy;
+
+/**
+ * Measures {@link DiscoveryClient#getInstance()} with each provider strategy
+ * against an in-process ZooKeeper server, from 1 up to 64 concurrent callers.
+ * The Curator strategies are included for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoveryClientBenchmark {
+
+    static final String SERVICE_NAME = "benchmark";
+
+    @Param({ "round-robin", "random", "latency-aware", "weighted",
+            "curator-round-robin", "curator-random" })
+    public String strategy;
+
+    @Param({ "16" })
+    public int instances;
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private ServiceDiscovery<InstanceMetadata> discovery;
+    private DiscoveryClient client;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = newFramework(server);
+        discovery = newDiscovery(framework);
+
+        for (int i = 0; i < instances; i++) {
+            final UUID id = UUID.randomUUID();
+            final int port = 8000 + i;
+            discovery.registerService(ServiceInstance
+                    .<InstanceMetadata> builder().name(SERVICE_NAME)
+                    .id(id.toString()).address("127.0.0.1").port(port)
+                    .payload(new InstanceMetadata(id, "127.0.0.1", port))
+                    .build());
+        }
+
+        client = new DiscoveryClient(SERVICE_NAME, discovery,
+                new DownInstancePolicy(), newStrategy(strategy));
+        client.start();
+        while (client.getInstance() == null) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        client.close();
+        discovery.close();
+        framework.close();
+        server.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ServiceInstance<InstanceMetadata> getInstance01() throws Exception {
+        return client.getInstance();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ServiceInstance<InstanceMetadata> getInstance04() throws Exception {
+        return client.getInstance();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ServiceInstance<InstanceMetadata> getInstance16() throws Exception {
+        return client.getInstance();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public ServiceInstance<InstanceMetadata> getInstance64() throws Exception {
+        return client.getInstance();
+    }
+
+    static ProviderStrategy<InstanceMetadata> newStrategy(final String name) {
+        switch (name) {
+        case "random":
+            return new RandomStrategy<InstanceMetadata>();
+        case "latency-aware":
+            return new LatencyAwareStrategy();
+        case "weighted":
+            return new WeightedStrategy();
+        case "curator-round-robin":
+            return new org.apache.curator.x.discovery.strategies.RoundRobinStrategy<InstanceMetadata>();
+        case "curator-random":
+            return new org.apache.curator.x.discovery.strategies.RandomStrategy<InstanceMetadata>();
+        default:
+            return new RoundRobinStrategy<InstanceMetadata>();
+        }
+    }
+
+    static CuratorFramework newFramework(final TestingServer server) {
+        final CuratorFramework framework = CuratorFrameworkFactory.builder()
+                .connectString(server.getConnectString())
+                .retryPolicy(new RetryOneTime(100)).namespace("benchmark")
+                .build();
+        framework.start();
+        return framework;
+    }
+
+    static ServiceDiscovery<InstanceMetadata> newDiscovery(
+            final CuratorFramework framework) throws Exception {
+        final DiscoveryFactory factory = newDiscoveryFactory();
+        final ServiceDiscovery<InstanceMetadata> discovery = ServiceDiscoveryBuilder
+                .builder(InstanceMetadata.class)
+                .basePath(factory.getBasePath()).client(framework)
+                .serializer(factory.getInstanceSerializer(new ObjectMapper()))
+                .build();
+        discovery.start();
+        return discovery;
+    }
+
+    static DiscoveryFactory newDiscoveryFactory() throws Exception {
+        return new ObjectMapper().readValue("{\"serviceName\":\""
+                + SERVICE_NAME + "\"}", DiscoveryFactory.class);
+    }
+}
@@ -0,0 +1,93 @@
+package com.ge.snowizard.discovery.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.core.BinaryInstanceSerializer;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+
+/**
+ * Compares the JSON and binary {@link org.apache.curator.x.discovery.details.InstanceSerializer}
+ * implementations. Run with {@code -prof gc} to see the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstanceSerializerBenchmark {
+
+    private JacksonInstanceSerializer<InstanceMetadata> json;
+    private BinaryInstanceSerializer binary;
+    private ServiceInstance<InstanceMetadata> instance;
+    private byte[] jsonBytes;
+    private byte[] binaryBytes;
+
+    @Setup
+    public void setUp() throws Exception {
+        json = new JacksonInstanceSerializer<InstanceMetadata>(
+                new ObjectMapper(),
+                new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                });
+        binary = new BinaryInstanceSerializer(json);
+        instance = newInstance();
+        jsonBytes = json.serialize(instance);
+        binaryBytes = binary.serialize(instance);
+        System.out.printf("%nznode size: json=%d bytes, binary=%d bytes%n",
+                jsonBytes.length, binaryBytes.length);
+    }
+
+    @Benchmark
+    public byte[] jsonSerialize() throws Exception {
+        return json.serialize(instance);
+    }
+
+    @Benchmark
+    public ServiceInstance<InstanceMetadata> jsonDeserialize()
+            throws Exception {
+        return json.deserialize(jsonBytes);
+    }
+
+    @Benchmark
+    public byte[] binarySerialize() throws Exception {
+        return binary.serialize(instance);
+    }
+
+    @Benchmark
+    public ServiceInstance<InstanceMetadata> binaryDeserialize()
+            throws Exception {
+        return binary.deserialize(binaryBytes);
+    }
+
+    @Benchmark
+    public ServiceInstance<InstanceMetadata> binaryDeserializeLegacyJson()
+            throws Exception {
+        return binary.deserialize(jsonBytes);
+    }
+
+    static ServiceInstance<InstanceMetadata> newInstance() throws Exception {
+        final UUID id = UUID.randomUUID();
+        return ServiceInstance.<InstanceMetadata> builder().name("benchmark")
+                .id(id.toString()).address("10.20.30.40").port(8080)
+                .serviceType(ServiceType.DYNAMIC)
+                .uriSpec(new UriSpec("{scheme}://{address}:{port}"))
+                .payload(new InstanceMetadata(id, "10.20.30.40", 8080))
+                .build();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ge.snowizard.discovery;
+
+import org.hibernate.validator.constraints.NotEmpty;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A service name under which this instance is advertised, and the Jetty
+ * connector whose port is advertised under that name.
+ *
+ * @see DiscoveryFactory#getAdvertisements()
+ */
+public class AdvertisementFactory {
+
+    /**
+     * Name of the connector Dropwizard creates for the application.
+     */
+    public static final String APPLICATION_CONNECTOR = "application";
+
+    @NotEmpty
+    private String serviceName;
+
+    @NotEmpty
+    private String connector = APPLICATION_CONNECTOR;
+
+    /**
+     * Constructor
+     */
+    public AdvertisementFactory() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name to advertise
+     * @param connector
+     *            name of the connector whose port is advertised
+     */
+    public AdvertisementFactory(final String serviceName,
+            final String connector) {
+        this.serviceName = serviceName;
+        this.connector = connector;
+    }
+
+    @JsonProperty
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Name of the Jetty connector whose port is advertised, such as
+     * {@code application} or {@code admin}.
+     *
+     * @return connector name
+     */
+    @JsonProperty
+    public String getConnector() {
+        return connector;
+    }
+}
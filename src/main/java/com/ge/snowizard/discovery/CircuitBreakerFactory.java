@@ -0,0 +1,146 @@
+package com.ge.snowizard.discovery;
+
+import io.dropwizard.util.Duration;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.ge.snowizard.discovery.client.CircuitBreakerPolicy;
+
+/**
+ * Configuration of the per-instance circuit breaker of the discovery
+ * clients. The defaults behave like Curator's default
+ * {@link org.apache.curator.x.discovery.DownInstancePolicy} for callers which
+ * only note errors: 2 errors within 30 seconds skip the instance for 30
+ * seconds.
+ *
+ * @see CircuitBreakerPolicy
+ */
+public class CircuitBreakerFactory {
+
+    @NotNull
+    private Duration window = Duration.seconds(30);
+
+    @Min(1)
+    @Max(32767)
+    private int buckets = 10;
+
+    @Min(1)
+    private int minimumCalls = 2;
+
+    @DecimalMin("0")
+    private double failureRateThreshold = 0.5;
+
+    @NotNull
+    private Duration slowCallDuration = Duration.seconds(5);
+
+    @DecimalMin("0")
+    private double slowCallRateThreshold = 1.0;
+
+    @NotNull
+    private Duration openDuration = Duration.seconds(30);
+
+    @Min(1)
+    private int halfOpenCalls = 3;
+
+    /**
+     * Length of the sliding window over which outcomes are counted.
+     *
+     * @return window
+     */
+    @JsonProperty
+    public Duration getWindow() {
+        return window;
+    }
+
+    /**
+     * Number of buckets the window is split into. The window slides by one
+     * bucket at a time.
+     *
+     * @return number of buckets
+     */
+    @JsonProperty
+    public int getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Number of outcomes within the window below which a circuit does not
+     * open.
+     *
+     * @return minimum number of calls
+     */
+    @JsonProperty
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Fraction of failed calls at which a circuit opens. Values above 1
+     * disable opening on failures.
+     *
+     * @return failure rate threshold
+     */
+    @JsonProperty
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Latency from which a successful call counts as slow.
+     *
+     * @return slow call duration
+     */
+    @JsonProperty
+    public Duration getSlowCallDuration() {
+        return slowCallDuration;
+    }
+
+    /**
+     * Fraction of slow calls at which a circuit opens. Values above 1
+     * disable opening on slow calls.
+     *
+     * @return slow call rate threshold
+     */
+    @JsonProperty
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    /**
+     * Time an instance whose circuit opened is not selected, before requests
+     * are let through again to probe it.
+     *
+     * @return open duration
+     */
+    @JsonProperty
+    public Duration getOpenDuration() {
+        return openDuration;
+    }
+
+    /**
+     * Number of requests let through to an instance whose circuit is
+     * half-open, whose outcomes decide whether the circuit closes.
+     *
+     * @return number of half-open calls
+     */
+    @JsonProperty
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    /**
+     * Build a {@link CircuitBreakerPolicy} from this configuration.
+     *
+     * @return {@link CircuitBreakerPolicy}
+     */
+    public CircuitBreakerPolicy build() {
+        return new CircuitBreakerPolicy(window.toNanoseconds(), buckets,
+                minimumCalls, failureRateThreshold,
+                slowCallDuration.toNanoseconds(), slowCallRateThreshold,
+                openDuration.toNanoseconds(), halfOpenCalls,
+                TimeUnit.NANOSECONDS);
+    }
+}
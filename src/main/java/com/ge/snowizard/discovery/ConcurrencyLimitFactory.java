@@ -0,0 +1,108 @@
+package com.ge.snowizard.discovery;
+
+import io.dropwizard.util.Duration;
+import java.util.concurrent.TimeUnit;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.ge.snowizard.discovery.client.ConcurrencyLimiter;
+
+/**
+ * Configuration of the per-instance concurrency limit of the discovery
+ * clients. Limits are disabled unless {@link #isEnabled()}.
+ *
+ * @see ConcurrencyLimiter
+ */
+public class ConcurrencyLimitFactory {
+
+    private boolean enabled = false;
+
+    @Min(1)
+    private int initialLimit = 20;
+
+    @Min(1)
+    private int minLimit = 1;
+
+    @Min(1)
+    private int maxLimit = 1000;
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    private double backoffRatio = 0.9;
+
+    @NotNull
+    private Duration timeout = Duration.seconds(5);
+
+    /**
+     * Whether clients skip instances which are at their limit.
+     *
+     * @return true if concurrency is limited
+     */
+    @JsonProperty
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Limit of an instance which was not called yet.
+     *
+     * @return initial limit
+     */
+    @JsonProperty
+    public int getInitialLimit() {
+        return initialLimit;
+    }
+
+    /**
+     * Lowest limit an instance can back off to.
+     *
+     * @return minimum limit
+     */
+    @JsonProperty
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    /**
+     * Highest limit an instance can grow to.
+     *
+     * @return maximum limit
+     */
+    @JsonProperty
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Factor applied to the limit of an instance when a request fails or
+     * times out.
+     *
+     * @return backoff ratio
+     */
+    @JsonProperty
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    /**
+     * Latency from which a successful request counts as a failure.
+     *
+     * @return timeout
+     */
+    @JsonProperty
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Build a {@link ConcurrencyLimiter} from this configuration.
+     *
+     * @return {@link ConcurrencyLimiter}
+     */
+    public ConcurrencyLimiter build() {
+        return new ConcurrencyLimiter(initialLimit, minLimit, maxLimit,
+                backoffRatio, timeout.toNanoseconds(), TimeUnit.NANOSECONDS);
+    }
+}
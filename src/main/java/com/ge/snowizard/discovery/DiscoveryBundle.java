@@ -4,29 +4,51 @@ import io.dropwizard.Configuration;
 import io.dropwizard.ConfiguredBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.x.discovery.DownInstancePolicy;
 import org.apache.curator.x.discovery.ProviderStrategy;
 import org.apache.curator.x.discovery.ServiceDiscovery;
 import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
-import org.apache.curator.x.discovery.ServiceInstance;
-import org.apache.curator.x.discovery.strategies.RoundRobinStrategy;
-import com.fasterxml.jackson.core.type.TypeReference;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.codahale.metrics.MetricRegistry;
+import com.ge.snowizard.discovery.client.Aperture;
 import com.ge.snowizard.discovery.client.DiscoveryClient;
+import com.ge.snowizard.discovery.client.DiscoveryClientRegistry;
+import com.ge.snowizard.discovery.client.InstanceCacheFactory;
+import com.ge.snowizard.discovery.client.InstrumentedDiscoveryClient;
+import com.ge.snowizard.discovery.client.ServiceDirectory;
 import com.ge.snowizard.discovery.core.CuratorAdvertisementListener;
 import com.ge.snowizard.discovery.core.CuratorAdvertiser;
 import com.ge.snowizard.discovery.core.CuratorFactory;
 import com.ge.snowizard.discovery.core.InstanceMetadata;
-import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+import com.ge.snowizard.discovery.core.InstrumentedCuratorAdvertiser;
+import com.ge.snowizard.discovery.core.SystemLoadSampler;
 import com.ge.snowizard.discovery.manage.CuratorAdvertiserManager;
+import com.ge.snowizard.discovery.manage.ServiceDirectoryManager;
 import com.ge.snowizard.discovery.manage.ServiceDiscoveryManager;
+import com.ge.snowizard.discovery.strategies.RoundRobinStrategy;
+import com.ge.snowizard.discovery.tasks.DrainTask;
 
 public abstract class DiscoveryBundle<T extends Configuration> implements
         ConfiguredBundle<T>, DiscoveryConfiguration<T> {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(DiscoveryBundle.class);
 
+    private DiscoveryFactory discoveryConfig;
     private ServiceDiscovery<InstanceMetadata> discovery;
+    private ServiceDirectory directory;
+    private InstanceCacheFactory cacheFactory;
+    private CuratorAdvertiser advertiser;
+    private DiscoveryClientRegistry clients;
     private ObjectMapper mapper;
+    private MetricRegistry metrics;
 
     @Override
     public void initialize(final Bootstrap<?> bootstrap) {
@@ -37,20 +59,48 @@ public abstract class DiscoveryBundle<T extends Configuration> implements
     public void run(final T configuration, final Environment environment)
             throws Exception {
 
-        final DiscoveryFactory discoveryConfig = getDiscoveryFactory(configuration);
+        discoveryConfig = getDiscoveryFactory(configuration);
         final CuratorFactory factory = new CuratorFactory(environment);
         final CuratorFramework framework = factory.build(discoveryConfig);
 
-        final JacksonInstanceSerializer<InstanceMetadata> serializer = new JacksonInstanceSerializer<InstanceMetadata>(
-                mapper, new TypeReference<ServiceInstance<InstanceMetadata>>() {
-                });
+        final InstanceSerializer<InstanceMetadata> serializer = discoveryConfig
+                .getInstanceSerializer(mapper);
 
         discovery = ServiceDiscoveryBuilder.builder(InstanceMetadata.class)
                 .basePath(discoveryConfig.getBasePath()).client(framework)
                 .serializer(serializer).build();
 
-        final CuratorAdvertiser advertiser = new CuratorAdvertiser(
-                discoveryConfig, discovery);
+        // this scheduler publishes coalesced instance changes to the clients
+        final ScheduledExecutorService clientScheduler = environment
+                .lifecycle().scheduledExecutorService("discovery-client-%d")
+                .build();
+        cacheFactory = new InstanceCacheFactory(discovery,
+                discoveryConfig.getSnapshotStore(serializer), clientScheduler,
+                discoveryConfig.getCacheUpdateWindow().toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+
+        // managed before the advertiser so that they are stopped after the
+        // instance has been unregistered
+        final ScheduledExecutorService scheduler = environment.lifecycle()
+                .scheduledExecutorService("curator-advertiser-%d").build();
+        final ExecutorService executor = environment.lifecycle()
+                .executorService("curator-advertiser-io-%d").minThreads(1)
+                .maxThreads(1).build();
+
+        metrics = environment.metrics();
+        advertiser = new InstrumentedCuratorAdvertiser(discoveryConfig,
+                framework, serializer, scheduler, executor, metrics);
+
+        // re-registers this instance when the connection to ZK is recovered
+        framework.getConnectionStateListenable().addListener(advertiser);
+
+        final long loadInterval = discoveryConfig.getLoadRefreshInterval()
+                .toMilliseconds();
+        if (loadInterval > 0) {
+            scheduler.scheduleWithFixedDelay(
+                    new SystemLoadSampler(advertiser), loadInterval,
+                    loadInterval, TimeUnit.MILLISECONDS);
+        }
 
         // this listener is used to get the actual HTTP port this server is
         // listening on and uses that to register the service with ZK.
@@ -58,34 +108,86 @@ public abstract class DiscoveryBundle<T extends Configuration> implements
                 new CuratorAdvertisementListener(advertiser));
 
         // this managed service is used to register the shutdown handler to
-        // de-advertise the service from ZK on shutdown.
-        environment.lifecycle()
-                .manage(new CuratorAdvertiserManager(advertiser));
+        // de-advertise the service from ZK on shutdown. As a server listener,
+        // it drains the instance before the connectors are closed.
+        final CuratorAdvertiserManager advertiserManager = new CuratorAdvertiserManager(
+                advertiser, discoveryConfig.getRegistrationTimeout(),
+                discoveryConfig.getDrainGracePeriod());
+        environment.lifecycle().manage(advertiserManager);
+        environment.lifecycle().addLifeCycleListener(advertiserManager);
+        environment.admin().addTask(new DrainTask(advertiserManager));
 
         // this managed service is used to start and stop the service discovery
         environment.lifecycle().manage(
                 new ServiceDiscoveryManager<InstanceMetadata>(discovery));
+
+        // this managed service keeps the set of registered service names
+        // up-to-date from ZK watches
+        directory = new ServiceDirectory(framework,
+                discoveryConfig.getBasePath());
+        environment.lifecycle().manage(new ServiceDirectoryManager(directory));
+
+        // managed last so that shared clients are started once ZK is
+        // reachable, and closed before the discovery is
+        clients = new DiscoveryClientRegistry(
+                new DiscoveryClientRegistry.ClientFactory() {
+                    @Override
+                    public DiscoveryClient newDiscoveryClient(
+                            final String serviceName,
+                            final ProviderStrategy<InstanceMetadata> providerStrategy) {
+                        return DiscoveryBundle.this.newDiscoveryClient(
+                                serviceName, providerStrategy);
+                    }
+                });
+        environment.lifecycle().manage(clients);
+    }
+
+    /**
+     * Return the shared {@link ServiceDirectory} which can be used to look up
+     * or subscribe to the set of registered service names.
+     * 
+     * @return {@link ServiceDirectory}
+     */
+    public ServiceDirectory getServiceDirectory() {
+        return directory;
+    }
+
+    /**
+     * Return the {@link CuratorAdvertiser} which registers this instance. It
+     * can be used to report an application-specific load with
+     * {@link CuratorAdvertiser#updateLoad(double)}.
+     * 
+     * @return {@link CuratorAdvertiser}
+     */
+    public CuratorAdvertiser getCuratorAdvertiser() {
+        return advertiser;
     }
 
     /**
      * Return a new {@link DiscoveryClient} instance that uses a
      * {@link RoundRobinStrategy} when selecting a instance to return and the
-     * default {@link DownInstancePolicy}.
+     * configured circuit breaker, retry budget and concurrency limit. If a
+     * zone is configured, instances in the same zone are preferred, and if an
+     * aperture is configured, only a subset of the instances is used. The
+     * client publishes its metrics to the application's
+     * {@link MetricRegistry}.
      * 
      * @param serviceName
      *            name of the service to monitor
      * @return {@link DiscoveryClient}
      */
     public DiscoveryClient newDiscoveryClient(final String serviceName) {
-        return new DiscoveryClient(serviceName, discovery,
-                new DownInstancePolicy(),
+        return newDiscoveryClient(serviceName,
                 new RoundRobinStrategy<InstanceMetadata>());
     }
 
     /**
-     * Return a new {@link DiscoveryClient} instance uses a default
-     * {@link DownInstancePolicy} and the provided {@link ProviderStrategy} for
-     * selecting an instance.
+     * Return a new {@link DiscoveryClient} instance uses the configured
+     * circuit breaker, retry budget and concurrency limit, and the provided
+     * {@link ProviderStrategy} for selecting an instance. If a zone is
+     * configured, the strategy only chooses among instances in the same zone
+     * unless it spills over. The client publishes its metrics to the
+     * application's {@link MetricRegistry}.
      * 
      * @param serviceName
      *            name of the service to monitor
@@ -96,7 +198,101 @@ public abstract class DiscoveryBundle<T extends Configuration> implements
      */
     public DiscoveryClient newDiscoveryClient(final String serviceName,
             final ProviderStrategy<InstanceMetadata> providerStrategy) {
-        return new DiscoveryClient(serviceName, discovery,
-                new DownInstancePolicy(), providerStrategy);
+        final DiscoveryClient client = new InstrumentedDiscoveryClient(
+                serviceName, discovery, directory, cacheFactory,
+                discoveryConfig.getCircuitBreaker().build(),
+                discoveryConfig.getProviderStrategy(providerStrategy), metrics);
+        client.setRetryBudget(discoveryConfig.getRetryBudget().build());
+        client.setCacheIdleTimeout(discoveryConfig.getCacheIdleTimeout()
+                .toMilliseconds(), TimeUnit.MILLISECONDS);
+        if (discoveryConfig.getConcurrencyLimit().isEnabled()) {
+            client.setConcurrencyLimiter(discoveryConfig.getConcurrencyLimit()
+                    .build());
+        }
+        if (discoveryConfig.getAperture() > 0) {
+            client.setAperture(new Aperture(getClientId(), discoveryConfig
+                    .getAperture()));
+        }
+        return client;
+    }
+
+    /**
+     * Return the configured client ID, or the host name, which stays the same
+     * across restarts unlike the instance ID.
+     */
+    private String getClientId() {
+        if (discoveryConfig.getClientId() != null) {
+            return discoveryConfig.getClientId();
+        }
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (final UnknownHostException e) {
+            LOGGER.warn("Unable to resolve the host name, the aperture will "
+                    + "change on restart", e);
+            return advertiser.getInstanceId().toString();
+        }
+    }
+
+    /**
+     * Return the {@link DiscoveryClientRegistry} which hands out shared
+     * clients.
+     * 
+     * @return {@link DiscoveryClientRegistry}
+     */
+    public DiscoveryClientRegistry getDiscoveryClientRegistry() {
+        return clients;
+    }
+
+    /**
+     * Return the shared {@link DiscoveryClient} of a service which uses a
+     * {@link RoundRobinStrategy}, building it on first use. Unlike
+     * {@link #newDiscoveryClient(String)}, the client is started and stopped
+     * by the bundle, and must be handed back to
+     * {@link #releaseDiscoveryClient(DiscoveryClient)} once no longer used.
+     * 
+     * @param serviceName
+     *            name of the service to monitor
+     * @return shared {@link DiscoveryClient}
+     * @throws Exception
+     *             if a new client could not be started
+     */
+    public DiscoveryClient acquireDiscoveryClient(final String serviceName)
+            throws Exception {
+        return acquireDiscoveryClient(serviceName,
+                new RoundRobinStrategy<InstanceMetadata>());
+    }
+
+    /**
+     * Return the shared {@link DiscoveryClient} of a service which uses an
+     * equal {@link ProviderStrategy}, building it with the given strategy on
+     * first use.
+     * 
+     * @param serviceName
+     *            name of the service to monitor
+     * @param providerStrategy
+     *            {@link ProviderStrategy} to use if a new client is built
+     * @return shared {@link DiscoveryClient}
+     * @throws Exception
+     *             if a new client could not be started
+     * @see #acquireDiscoveryClient(String)
+     */
+    public DiscoveryClient acquireDiscoveryClient(final String serviceName,
+            final ProviderStrategy<InstanceMetadata> providerStrategy)
+            throws Exception {
+        return clients.acquire(serviceName, providerStrategy);
+    }
+
+    /**
+     * Hand back a client returned by {@link #acquireDiscoveryClient}. It is
+     * closed once every user has released it.
+     * 
+     * @param client
+     *            shared {@link DiscoveryClient}
+     * @throws Exception
+     *             if the client could not be closed
+     */
+    public void releaseDiscoveryClient(final DiscoveryClient client)
+            throws Exception {
+        clients.release(client);
     }
 }
@@ -1,51 +1,65 @@
 package com.ge.snowizard.discovery;
 
 import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
 import io.dropwizard.validation.PortRange;
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.api.CompressionProvider;
-import org.apache.curator.framework.imps.GzipCompressionProvider;
 import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
 import org.hibernate.validator.constraints.NotEmpty;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.client.InstanceSnapshotStore;
+import com.ge.snowizard.discovery.core.BinaryInstanceSerializer;
+import com.ge.snowizard.discovery.core.CompressingInstanceSerializer;
+import com.ge.snowizard.discovery.core.CompressionCodec;
+import com.ge.snowizard.discovery.core.DelegatingInstanceSerializer;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+import com.ge.snowizard.discovery.core.ThresholdCompressionProvider;
+import com.ge.snowizard.discovery.strategies.ZoneAffinityStrategy;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
 
 public class DiscoveryFactory {
 
     /**
-     * An enumeration of the available compression codecs available for
-     * compressed entries.
+     * An enumeration of the formats service instances can be written in.
+     * Both formats are always readable, so a fleet can be switched from one
+     * to the other with a rolling restart.
      * 
-     * @see #getCompressionProvider()
-     * @see CompressionProvider
+     * @see #getInstanceSerializer(ObjectMapper)
      */
-    enum CompressionCodec {
+    public enum SerializationFormat {
 
         /**
-         * GZIP compression.
+         * JSON, readable by every version of this module.
          * 
-         * @see GzipCompressionProvider
+         * @see JacksonInstanceSerializer
          */
-        GZIP(new GzipCompressionProvider());
-
-        final private CompressionProvider provider;
-
-        CompressionCodec(final CompressionProvider provider) {
-            this.provider = provider;
-        }
+        JSON,
 
         /**
-         * Gets the {@link CompressionProvider} for this codec.
+         * Compact binary format.
          * 
-         * @return the provider for this codec.
+         * @see BinaryInstanceSerializer
          */
-        public CompressionProvider getProvider() {
-            return provider;
-        }
+        BINARY
     }
 
     @NotEmpty
@@ -57,6 +71,10 @@ public class DiscoveryFactory {
     @NotEmpty
     private String serviceName;
 
+    @Valid
+    @NotNull
+    private List<AdvertisementFactory> advertisements = ImmutableList.of();
+
     @NotEmpty
     private String listenAddress = "127.0.0.1";
 
@@ -82,9 +100,80 @@ public class DiscoveryFactory {
     @NotNull
     private CompressionCodec compression = CompressionCodec.GZIP;
 
+    @NotNull
+    private Size compressionThreshold = Size.kilobytes(1);
+
+    @NotNull
+    private SerializationFormat serialization = SerializationFormat.JSON;
+
     @NotNull
     private Boolean isReadOnly = false;
 
+    private String zone;
+
+    private String snapshotDirectory;
+
+    @NotNull
+    private Duration snapshotMaxAge = Duration.days(1);
+
+    @NotNull
+    private Duration registrationTimeout = Duration.seconds(10);
+
+    @NotNull
+    private Duration reregistrationDelay = Duration.seconds(5);
+
+    @NotNull
+    private Duration drainGracePeriod = Duration.seconds(5);
+
+    @NotNull
+    private Duration healthCheckInterval = Duration.seconds(5);
+
+    @NotNull
+    private Duration healthCheckMaxAge = Duration.seconds(30);
+
+    @NotNull
+    private Duration cacheUpdateWindow = Duration.milliseconds(100);
+
+    @NotNull
+    private Duration cacheIdleTimeout = Duration.minutes(10);
+
+    @Valid
+    @NotNull
+    private CircuitBreakerFactory circuitBreaker = new CircuitBreakerFactory();
+
+    @Valid
+    @NotNull
+    private RetryBudgetFactory retryBudget = new RetryBudgetFactory();
+
+    @Valid
+    @NotNull
+    private ConcurrencyLimitFactory concurrencyLimit = new ConcurrencyLimitFactory();
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    private double zoneMinHealthyFraction = ZoneAffinityStrategy.DEFAULT_MIN_HEALTHY_FRACTION;
+
+    @DecimalMin("0")
+    private double zoneMaxLoad = ZoneAffinityStrategy.DEFAULT_MAX_LOAD;
+
+    @Min(1)
+    private int weight = InstanceMetadata.DEFAULT_WEIGHT;
+
+    @Min(0)
+    private int aperture = 0;
+
+    private String clientId;
+
+    @NotNull
+    private Duration loadRefreshInterval = Duration.seconds(0);
+
+    @NotNull
+    private Duration minLoadUpdateInterval = Duration.seconds(5);
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    private double loadUpdateThreshold = 0.05;
+
     @JsonProperty
     public String[] getHosts() {
         return hosts;
@@ -114,6 +203,22 @@ public class DiscoveryFactory {
         return serviceName;
     }
 
+    /**
+     * Service names and connectors this instance is advertised under. Each
+     * gets its own instance ID. If empty, the application connector is
+     * advertised under {@link #getServiceName()}.
+     * 
+     * @return advertisements
+     */
+    @JsonProperty
+    public List<AdvertisementFactory> getAdvertisements() {
+        if (advertisements.isEmpty()) {
+            return ImmutableList.of(new AdvertisementFactory(serviceName,
+                    AdvertisementFactory.APPLICATION_CONNECTOR));
+        }
+        return advertisements;
+    }
+
     @JsonProperty
     public String getNamespace() {
         return namespace;
@@ -154,6 +259,270 @@ public class DiscoveryFactory {
         return baseSleepTime;
     }
 
+    @JsonProperty
+    public CompressionCodec getCompression() {
+        return compression;
+    }
+
+    /**
+     * Size below which values, including service instance records, are
+     * stored uncompressed. Compressing tiny values costs more CPU than it
+     * saves bytes, and keeps them readable by versions which do not
+     * compress them.
+     * 
+     * @return compression threshold
+     */
+    @JsonProperty
+    public Size getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @JsonProperty
+    public SerializationFormat getSerialization() {
+        return serialization;
+    }
+
+    /**
+     * Zone, rack or availability zone this instance runs in, used for
+     * locality-aware routing. Null if not configured, in which case no zone
+     * is written to the registration. Clients which predate zones reject
+     * registrations carrying one, so only set it once every client of the
+     * service is upgraded.
+     * 
+     * @return zone label
+     */
+    @JsonProperty
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * Directory in which clients persist the last known instances of each
+     * service. Null disables persistence.
+     * 
+     * @return snapshot directory
+     */
+    @JsonProperty
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * Age after which a persisted snapshot is no longer used.
+     * 
+     * @return maximum snapshot age
+     */
+    @JsonProperty
+    public Duration getSnapshotMaxAge() {
+        return snapshotMaxAge;
+    }
+
+    /**
+     * Time after which an asynchronous registration or unregistration is
+     * reported as failed, and after which shutdown stops waiting for the
+     * instance to be unregistered.
+     * 
+     * @return registration timeout
+     */
+    @JsonProperty
+    public Duration getRegistrationTimeout() {
+        return registrationTimeout;
+    }
+
+    /**
+     * Upper bound of the random delay before this instance re-registers after
+     * a reconnect. The bound doubles after each failed attempt, up to one
+     * minute.
+     * 
+     * @return maximum initial re-registration delay
+     */
+    @JsonProperty
+    public Duration getReregistrationDelay() {
+        return reregistrationDelay;
+    }
+
+    /**
+     * Time between advertising this instance as draining on shutdown, after
+     * which clients no longer select it, and unregistering it. Requests in
+     * flight have this long to complete before the instance disappears.
+     * 
+     * @return drain grace period
+     */
+    @JsonProperty
+    public Duration getDrainGracePeriod() {
+        return drainGracePeriod;
+    }
+
+    /**
+     * Time between two background checks of the ZooKeeper namespace made for
+     * the health check.
+     * 
+     * @return health check probe interval
+     */
+    @JsonProperty
+    public Duration getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    /**
+     * Age after which the result of the last background check is no longer
+     * trusted and the health check reports unhealthy.
+     * 
+     * @return health check probe maximum age
+     */
+    @JsonProperty
+    public Duration getHealthCheckMaxAge() {
+        return healthCheckMaxAge;
+    }
+
+    /**
+     * Window during which changes to a service's instances are coalesced
+     * into a single update of the client-side instance list. Zero publishes
+     * every change immediately.
+     * 
+     * @return cache update window
+     */
+    @JsonProperty
+    public Duration getCacheUpdateWindow() {
+        return cacheUpdateWindow;
+    }
+
+    /**
+     * Time after which the instances of a service looked up by name are no
+     * longer watched if nobody asked for them. Zero watches them until the
+     * client is closed.
+     * 
+     * @return cache idle timeout
+     */
+    @JsonProperty
+    public Duration getCacheIdleTimeout() {
+        return cacheIdleTimeout;
+    }
+
+    /**
+     * Settings of the per-instance circuit breaker which decides when
+     * clients skip an instance.
+     * 
+     * @return circuit breaker configuration
+     */
+    @JsonProperty
+    public CircuitBreakerFactory getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Settings of the budget which limits the retries of each client to a
+     * fraction of its requests.
+     * 
+     * @return retry budget configuration
+     */
+    @JsonProperty
+    public RetryBudgetFactory getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Settings of the adaptive limit on concurrent requests to each
+     * instance.
+     * 
+     * @return concurrency limit configuration
+     */
+    @JsonProperty
+    public ConcurrencyLimitFactory getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Fraction of the local zone's instances which must be available for
+     * clients to keep routing within the zone.
+     * 
+     * @return minimum healthy fraction, between 0 and 1
+     */
+    @JsonProperty
+    public double getZoneMinHealthyFraction() {
+        return zoneMinHealthyFraction;
+    }
+
+    /**
+     * Average load of the local zone's instances above which clients spill
+     * over to other zones.
+     * 
+     * @return maximum local load
+     */
+    @JsonProperty
+    public double getZoneMaxLoad() {
+        return zoneMaxLoad;
+    }
+
+    /**
+     * Relative capacity advertised for this instance. Defaults to
+     * {@link InstanceMetadata#DEFAULT_WEIGHT}, which is not written to the
+     * registration, so that clients which predate weights can still read it.
+     * Only set it once every client of the service is upgraded.
+     * 
+     * @return advertised weight
+     */
+    @JsonProperty
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Number of instances of each service a client selects from, chosen
+     * deterministically from the ID of this instance. Zero, the default,
+     * selects from every instance.
+     * 
+     * @return aperture size
+     */
+    @JsonProperty
+    public int getAperture() {
+        return aperture;
+    }
+
+    /**
+     * Stable identity of this instance as a client, which decides the
+     * instances of its aperture. Defaults to the host name, so instances
+     * sharing a host should each configure a distinct ID.
+     * 
+     * @return client ID, or null to use the host name
+     */
+    @JsonProperty
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * How often the system load is sampled and advertised. Zero disables
+     * load reporting.
+     * 
+     * @return interval between load samples
+     */
+    @JsonProperty
+    public Duration getLoadRefreshInterval() {
+        return loadRefreshInterval;
+    }
+
+    /**
+     * Minimum time between two load updates written to ZooKeeper. Updates
+     * made in between are coalesced into the latest value.
+     * 
+     * @return minimum interval between load writes
+     */
+    @JsonProperty
+    public Duration getMinLoadUpdateInterval() {
+        return minLoadUpdateInterval;
+    }
+
+    /**
+     * Smallest change in load which is worth writing to ZooKeeper.
+     * 
+     * @return load change threshold, between 0 and 1
+     */
+    @JsonProperty
+    public double getLoadUpdateThreshold() {
+        return loadUpdateThreshold;
+    }
+
     /**
      * Returns a {@link RetryPolicy} for handling failed connection attempts.
      * 
@@ -173,14 +542,93 @@ public class DiscoveryFactory {
     }
 
     /**
-     * Returns a {@link CompressionProvider} to compress values with.
+     * Returns a {@link CompressionProvider} to compress values with. Values
+     * smaller than the {@link #getCompressionThreshold() threshold} are
+     * stored uncompressed, and values written with any codec are read.
      * 
      * @return the compression provider used to compress values.
      * 
      * @see CompressionCodec
+     * @see ThresholdCompressionProvider
      */
     @JsonIgnore
     public CompressionProvider getCompressionProvider() {
-        return compression.getProvider();
+        return new ThresholdCompressionProvider(compression,
+                (int) Math.min(compressionThreshold.toBytes(),
+                        Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns an {@link InstanceSerializer} which writes instances in the
+     * configured {@link SerializationFormat} and reads either format.
+     * Records are compressed as configured, and compressed records are
+     * always read.
+     * 
+     * @param mapper
+     *            {@link ObjectMapper} used for the JSON format
+     * @return the serializer used to read and write service instances.
+     * 
+     * @see SerializationFormat
+     */
+    @JsonIgnore
+    public InstanceSerializer<InstanceMetadata> getInstanceSerializer(
+            final ObjectMapper mapper) {
+        final JacksonInstanceSerializer<InstanceMetadata> json = new JacksonInstanceSerializer<InstanceMetadata>(
+                mapper, new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                });
+        final BinaryInstanceSerializer binary = new BinaryInstanceSerializer(
+                json);
+
+        final CompressionProvider compression = getCompressionProvider();
+        if (serialization == SerializationFormat.BINARY) {
+            return new CompressingInstanceSerializer<InstanceMetadata>(binary,
+                    compression);
+        }
+        return new CompressingInstanceSerializer<InstanceMetadata>(
+                new DelegatingInstanceSerializer<InstanceMetadata>(json,
+                        binary), compression);
+    }
+
+    /**
+     * Wraps a {@link ProviderStrategy} so that it prefers instances in the
+     * configured {@link #getZone() zone}. Returns the strategy unchanged if
+     * no zone is configured.
+     * 
+     * @param strategy
+     *            {@link ProviderStrategy} choosing among the preferred
+     *            instances
+     * @return the strategy to use for selecting instances.
+     * 
+     * @see ZoneAffinityStrategy
+     */
+    @JsonIgnore
+    public ProviderStrategy<InstanceMetadata> getProviderStrategy(
+            final ProviderStrategy<InstanceMetadata> strategy) {
+        if (zone == null) {
+            return strategy;
+        }
+        return new ZoneAffinityStrategy(zone, strategy,
+                zoneMinHealthyFraction, zoneMaxLoad);
+    }
+
+    /**
+     * Returns an {@link InstanceSnapshotStore} in the configured
+     * {@link #getSnapshotDirectory() directory}, or null if persistence is
+     * disabled.
+     * 
+     * @param serializer
+     *            {@link InstanceSerializer} used to encode instances
+     * @return the store used to persist instances, or null.
+     */
+    @Nullable
+    @JsonIgnore
+    public InstanceSnapshotStore getSnapshotStore(
+            final InstanceSerializer<InstanceMetadata> serializer) {
+        if (snapshotDirectory == null) {
+            return null;
+        }
+        return new InstanceSnapshotStore(new File(snapshotDirectory),
+                serializer, snapshotMaxAge.toMilliseconds(),
+                TimeUnit.MILLISECONDS);
     }
 }
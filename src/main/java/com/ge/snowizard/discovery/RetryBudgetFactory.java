@@ -0,0 +1,52 @@
+package com.ge.snowizard.discovery;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.ge.snowizard.discovery.client.RetryBudget;
+
+/**
+ * Configuration of the retry budget of each discovery client.
+ *
+ * @see RetryBudget
+ */
+public class RetryBudgetFactory {
+
+    @DecimalMin("0")
+    @DecimalMax("1")
+    private double ratio = 0.2;
+
+    @Min(1)
+    private int maxRetries = 10;
+
+    /**
+     * Fraction of a retry earned by each request, i.e. the share of
+     * requests which may be retried.
+     *
+     * @return retry ratio
+     */
+    @JsonProperty
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * Number of retries which can be saved up for a burst of failures.
+     *
+     * @return maximum number of retries
+     */
+    @JsonProperty
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Build a {@link RetryBudget} from this configuration.
+     *
+     * @return {@link RetryBudget}
+     */
+    public RetryBudget build() {
+        return new RetryBudget(ratio, maxRetries);
+    }
+}
@@ -0,0 +1,114 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.concurrent.Immutable;
+import org.apache.curator.x.discovery.ServiceInstance;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+
+/**
+ * Deterministic subset of the instances of a service a client talks to, so
+ * that each of M clients of a service with N instances only connects to a
+ * few of them instead of all N.
+ *
+ * The instances are sorted by ID and laid out on a ring, and the client
+ * takes the {@link #getSize()} consecutive instances starting at its offset
+ * on that ring. The offset is a hash of the ID of the client, so it is
+ * uniformly spread across clients, which spreads the clients evenly across
+ * instances. When an instance joins or leaves, the window only slides by
+ * about one instance. The window only stays the same across restarts if the
+ * ID does, so it should be a stable identity of the client such as its host
+ * name rather than an ID generated at startup.
+ */
+@Immutable
+public final class Aperture {
+
+    private static final Comparator<ServiceInstance<InstanceMetadata>> BY_ID = new Comparator<ServiceInstance<InstanceMetadata>>() {
+        @Override
+        public int compare(final ServiceInstance<InstanceMetadata> left,
+                final ServiceInstance<InstanceMetadata> right) {
+            return left.getId().compareTo(right.getId());
+        }
+    };
+
+    private final String clientId;
+    private final int size;
+    private final double offset;
+
+    /**
+     * Constructor
+     *
+     * @param clientId
+     *            stable ID of this client, distinct from the ID of other
+     *            clients of the service
+     * @param size
+     *            number of instances in the subset
+     */
+    public Aperture(final String clientId, final int size) {
+        checkArgument(size > 0, "size must be positive");
+        this.clientId = checkNotNull(clientId);
+        this.size = size;
+        final long hash = Hashing.murmur3_128()
+                .hashString(clientId, Charsets.UTF_8).asLong();
+        // top 53 bits as a double in [0, 1)
+        this.offset = (hash >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Return the subset of the given instances this client talks to.
+     *
+     * @param instances
+     *            every registered instance
+     * @return the instances of the subset, sorted by ID, or every instance
+     *         if there are no more than {@link #getSize()}
+     */
+    public ImmutableList<ServiceInstance<InstanceMetadata>> select(
+            final List<ServiceInstance<InstanceMetadata>> instances) {
+        final int count = instances.size();
+        if (count <= size) {
+            return ImmutableList.copyOf(instances);
+        }
+        final List<ServiceInstance<InstanceMetadata>> sorted = Lists
+                .newArrayList(instances);
+        Collections.sort(sorted, BY_ID);
+
+        final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> subset = ImmutableList
+                .builder();
+        final int start = (int) (offset * count);
+        for (int i = 0; i < size; i++) {
+            subset.add(sorted.get((start + i) % count));
+        }
+        return subset.build();
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Return the position of this client on the ring of instances.
+     *
+     * @return offset in [0, 1)
+     */
+    public double getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("clientId", clientId)
+                .add("size", size).add("offset", offset).toString();
+    }
+}
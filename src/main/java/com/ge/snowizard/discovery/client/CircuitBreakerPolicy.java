@@ -0,0 +1,164 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.Immutable;
+import org.apache.curator.x.discovery.DownInstancePolicy;
+import com.google.common.base.Objects;
+
+/**
+ * Settings of the per-instance circuit breaker of a {@link DiscoveryClient}.
+ *
+ * Outcomes are counted over a sliding time window split into buckets. The
+ * circuit of an instance opens once at least {@link #getMinimumCalls()}
+ * outcomes were recorded in the window and either the failure rate or the
+ * slow call rate reaches its threshold. An open instance is not selected
+ * until the open duration has passed; it is then half-open and only
+ * {@link #getHalfOpenCalls()} requests are let through, whose outcomes
+ * decide whether the circuit closes or opens again.
+ */
+@Immutable
+public final class CircuitBreakerPolicy {
+
+    private static final long DEFAULT_WINDOW_SECONDS = 30;
+    private static final int DEFAULT_BUCKETS = 10;
+    private static final int DEFAULT_MINIMUM_CALLS = 2;
+    private static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    private static final long DEFAULT_SLOW_CALL_SECONDS = 5;
+    private static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 1.0;
+    private static final long DEFAULT_OPEN_SECONDS = 30;
+    private static final int DEFAULT_HALF_OPEN_CALLS = 3;
+
+    private final long windowNanos;
+    private final int buckets;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long slowCallNanos;
+    private final double slowCallRateThreshold;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    /**
+     * Constructor using the default settings: a 30 second window, at least 2
+     * calls, a 50% failure rate or a 100% rate of calls slower than 5
+     * seconds, 30 seconds open and 3 half-open calls. For callers which only
+     * note errors, these match the defaults of {@link DownInstancePolicy}: 2
+     * errors within 30 seconds open the circuit for 30 seconds.
+     */
+    public CircuitBreakerPolicy() {
+        this(TimeUnit.SECONDS.toMillis(DEFAULT_WINDOW_SECONDS),
+                DEFAULT_BUCKETS, DEFAULT_MINIMUM_CALLS,
+                DEFAULT_FAILURE_RATE_THRESHOLD, TimeUnit.SECONDS
+                        .toMillis(DEFAULT_SLOW_CALL_SECONDS),
+                DEFAULT_SLOW_CALL_RATE_THRESHOLD, TimeUnit.SECONDS
+                        .toMillis(DEFAULT_OPEN_SECONDS),
+                DEFAULT_HALF_OPEN_CALLS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor using the settings of a {@link DownInstancePolicy}. For
+     * callers which only note errors, the circuit opens after the policy's
+     * error threshold is reached within its timeout, and stays open for the
+     * timeout, as with {@link DownInstancePolicy}.
+     *
+     * @param policy
+     *            {@link DownInstancePolicy}
+     */
+    public CircuitBreakerPolicy(final DownInstancePolicy policy) {
+        this(checkNotNull(policy).getTimeoutMs(), DEFAULT_BUCKETS, Math.max(
+                policy.getErrorThreshold(), 1), DEFAULT_FAILURE_RATE_THRESHOLD,
+                TimeUnit.SECONDS.toMillis(DEFAULT_SLOW_CALL_SECONDS),
+                DEFAULT_SLOW_CALL_RATE_THRESHOLD, policy.getTimeoutMs(),
+                DEFAULT_HALF_OPEN_CALLS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param window
+     *            length of the sliding window outcomes are counted over
+     * @param buckets
+     *            number of buckets the window is split into
+     * @param minimumCalls
+     *            number of outcomes in the window below which the circuit
+     *            does not open
+     * @param failureRateThreshold
+     *            fraction of failed calls, between 0 and 1, at which the
+     *            circuit opens
+     * @param slowCallDuration
+     *            latency from which a successful call counts as slow
+     * @param slowCallRateThreshold
+     *            fraction of slow calls, between 0 and 1, at which the
+     *            circuit opens
+     * @param openDuration
+     *            time an open instance is not selected
+     * @param halfOpenCalls
+     *            number of requests let through to a half-open instance
+     * @param unit
+     *            {@link TimeUnit} of window, slowCallDuration and
+     *            openDuration
+     */
+    public CircuitBreakerPolicy(final long window, final int buckets,
+            final int minimumCalls, final double failureRateThreshold,
+            final long slowCallDuration, final double slowCallRateThreshold,
+            final long openDuration, final int halfOpenCalls,
+            final TimeUnit unit) {
+        checkArgument(window > 0, "window must be positive");
+        checkArgument(buckets > 0 && buckets < (1 << 15),
+                "buckets must be between 1 and 32767");
+        checkArgument(minimumCalls > 0, "minimumCalls must be positive");
+        checkArgument(halfOpenCalls > 0, "halfOpenCalls must be positive");
+        this.windowNanos = unit.toNanos(window);
+        this.buckets = buckets;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallNanos = unit.toNanos(slowCallDuration);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openNanos = unit.toNanos(openDuration);
+        this.halfOpenCalls = halfOpenCalls;
+    }
+
+    public long getWindowNanos() {
+        return windowNanos;
+    }
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public long getSlowCallNanos() {
+        return slowCallNanos;
+    }
+
+    public double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    public int getHalfOpenCalls() {
+        return halfOpenCalls;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("windowNanos", windowNanos)
+                .add("buckets", buckets).add("minimumCalls", minimumCalls)
+                .add("failureRateThreshold", failureRateThreshold)
+                .add("slowCallNanos", slowCallNanos)
+                .add("slowCallRateThreshold", slowCallRateThreshold)
+                .add("openNanos", openNanos)
+                .add("halfOpenCalls", halfOpenCalls).toString();
+    }
+}
@@ -0,0 +1,262 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceInstance;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Adaptive limit on the number of concurrent requests sent to each instance,
+ * keyed by {@link InstanceMetadata#getInstanceId()}.
+ *
+ * The limit follows AIMD: it grows by one for each successful request while
+ * at least half of it is in use, and is multiplied by the backoff ratio when
+ * a request fails or takes longer than the timeout. A {@link DiscoveryClient}
+ * with a limiter skips instances which are at their limit. The in-flight
+ * count and the limit of each instance are atomic integers updated with
+ * compare-and-set, so nothing is locked on the request path.
+ *
+ * Requests are counted through {@link InstanceOutcomeListener}, so each
+ * {@link DiscoveryClient#noteStart} must be followed by
+ * {@link DiscoveryClient#noteSuccess} or {@link DiscoveryClient#noteError}.
+ * Instances without an instance ID are not limited.
+ */
+@ThreadSafe
+public class ConcurrencyLimiter implements InstanceOutcomeListener {
+
+    private static final int DEFAULT_INITIAL_LIMIT = 20;
+    private static final int DEFAULT_MIN_LIMIT = 1;
+    private static final int DEFAULT_MAX_LIMIT = 1000;
+    private static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    private static final long DEFAULT_TIMEOUT_SECONDS = 5;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long timeoutNanos;
+    private final ConcurrentMap<UUID, Limit> limits = Maps.newConcurrentMap();
+
+    /**
+     * Constructor using the default settings: an initial limit of 20
+     * requests, between 1 and 1000, backing off by 10% when a request fails
+     * or takes longer than 5 seconds.
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+                DEFAULT_BACKOFF_RATIO, DEFAULT_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param initialLimit
+     *            limit of an instance which was not called yet
+     * @param minLimit
+     *            lowest limit
+     * @param maxLimit
+     *            highest limit
+     * @param backoffRatio
+     *            factor, between 0 and 1, applied to the limit when a
+     *            request fails or times out
+     * @param timeout
+     *            latency from which a successful request counts as a
+     *            failure
+     * @param unit
+     *            {@link TimeUnit} of timeout
+     */
+    public ConcurrencyLimiter(final int initialLimit, final int minLimit,
+            final int maxLimit, final double backoffRatio,
+            final long timeout, final TimeUnit unit) {
+        checkArgument(minLimit > 0, "minLimit must be positive");
+        checkArgument(maxLimit >= minLimit,
+                "maxLimit cannot be lower than minLimit");
+        checkArgument(initialLimit >= minLimit && initialLimit <= maxLimit,
+                "initialLimit must be between minLimit and maxLimit");
+        checkArgument(backoffRatio > 0 && backoffRatio < 1,
+                "backoffRatio must be between 0 and 1");
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Return whether an instance has as many requests in flight as its
+     * limit allows.
+     *
+     * @param instance
+     *            {@link ServiceInstance} to check
+     * @return true if the instance should not be sent more requests
+     */
+    public boolean isAtLimit(final ServiceInstance<InstanceMetadata> instance) {
+        final Limit limit = getLimit(instance, false);
+        return (limit != null) && limit.inFlight.get() >= limit.limit.get();
+    }
+
+    /**
+     * Return the current limit of an instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance}
+     * @return maximum number of concurrent requests
+     */
+    public int getLimit(final ServiceInstance<InstanceMetadata> instance) {
+        final Limit limit = getLimit(instance, false);
+        return (limit == null) ? initialLimit : limit.limit.get();
+    }
+
+    /**
+     * Return the number of requests in flight to an instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance}
+     * @return number of requests in flight
+     */
+    public int getInFlight(final ServiceInstance<InstanceMetadata> instance) {
+        final Limit limit = getLimit(instance, false);
+        return (limit == null) ? 0 : limit.inFlight.get();
+    }
+
+    /**
+     * Forget about instances which are no longer registered, unless requests
+     * to them are still in flight, so that their outcomes are not recorded
+     * against a fresh limit.
+     *
+     * @param instances
+     *            currently registered instances
+     */
+    public void retain(
+            final Collection<ServiceInstance<InstanceMetadata>> instances) {
+        if (limits.isEmpty()) {
+            return;
+        }
+        final Set<UUID> current = Sets.newHashSet();
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            final UUID id = getInstanceId(instance);
+            if (id != null) {
+                current.add(id);
+            }
+        }
+        for (final Map.Entry<UUID, Limit> entry : limits.entrySet()) {
+            if (!current.contains(entry.getKey())
+                    && entry.getValue().inFlight.get() == 0) {
+                limits.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void onStart(final ServiceInstance<InstanceMetadata> instance) {
+        final Limit limit = getLimit(instance, true);
+        if (limit != null) {
+            limit.inFlight.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void onSuccess(final ServiceInstance<InstanceMetadata> instance,
+            final long latencyNanos) {
+        final Limit limit = getLimit(instance, false);
+        if (limit == null) {
+            return;
+        }
+        final int inFlight = limit.release();
+        if (latencyNanos >= timeoutNanos) {
+            backoff(limit);
+            return;
+        }
+        int current;
+        do {
+            current = limit.limit.get();
+            if (current >= maxLimit || inFlight * 2 < current) {
+                return;
+            }
+        } while (!limit.limit.compareAndSet(current, current + 1));
+    }
+
+    @Override
+    public void onError(final ServiceInstance<InstanceMetadata> instance) {
+        final Limit limit = getLimit(instance, false);
+        if (limit != null) {
+            limit.release();
+            backoff(limit);
+        }
+    }
+
+    private void backoff(final Limit limit) {
+        int current;
+        int next;
+        do {
+            current = limit.limit.get();
+            next = Math.max((int) (current * backoffRatio), minLimit);
+            if (next == current) {
+                return;
+            }
+        } while (!limit.limit.compareAndSet(current, next));
+    }
+
+    @Nullable
+    private Limit getLimit(final ServiceInstance<InstanceMetadata> instance,
+            final boolean create) {
+        final UUID id = getInstanceId(instance);
+        if (id == null) {
+            return null;
+        }
+        Limit limit = limits.get(id);
+        if (limit == null && create) {
+            final Limit created = new Limit(initialLimit);
+            limit = limits.putIfAbsent(id, created);
+            if (limit == null) {
+                limit = created;
+            }
+        }
+        return limit;
+    }
+
+    @Nullable
+    private static UUID getInstanceId(
+            final ServiceInstance<InstanceMetadata> instance) {
+        final InstanceMetadata payload = instance.getPayload();
+        return (payload == null) ? null : payload.getInstanceId();
+    }
+
+    private static final class Limit {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger limit;
+
+        Limit(final int initialLimit) {
+            this.limit = new AtomicInteger(initialLimit);
+        }
+
+        /**
+         * Count a request as finished, never going below zero when a request
+         * started before this limit was created finishes.
+         *
+         * @return number of requests in flight before this one finished
+         */
+        int release() {
+            for (;;) {
+                final int current = inFlight.get();
+                if (current <= 0) {
+                    return 0;
+                }
+                if (inFlight.compareAndSet(current, current - 1)) {
+                    return current;
+                }
+            }
+        }
+    }
+}
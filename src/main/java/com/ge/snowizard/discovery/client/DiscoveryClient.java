@@ -2,21 +2,170 @@ package com.ge.snowizard.discovery.client;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import org.apache.curator.x.discovery.DownInstancePolicy;
 import org.apache.curator.x.discovery.ProviderStrategy;
-import org.apache.curator.x.discovery.ServiceCache;
 import org.apache.curator.x.discovery.ServiceDiscovery;
 import org.apache.curator.x.discovery.ServiceInstance;
-import org.apache.curator.x.discovery.ServiceProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.client.InstanceCircuitBreaker.State;
 import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 @ThreadSafe
 public class DiscoveryClient {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(DiscoveryClient.class);
 
+    /**
+     * Number of selections made by the {@link ProviderStrategy} before
+     * looking for an instance below its concurrency limit one by one.
+     */
+    private static final int LIMITED_SELECTIONS = 3;
+
+    /**
+     * Time after which an {@link InstanceCache} created by
+     * {@link #getInstances(String)} is closed if it hasn't been used.
+     */
+    public static final long DEFAULT_CACHE_IDLE_MINUTES = 10;
+
+    private final String serviceName;
     private final ServiceDiscovery<InstanceMetadata> discovery;
-    private final ServiceProvider<InstanceMetadata> provider;
+    private final ProviderStrategy<InstanceMetadata> providerStrategy;
+    private final InstanceCircuitBreaker circuitBreaker;
+    private final ServiceDirectory directory;
+    private final InstanceCacheFactory cacheFactory;
+    private final InstanceDiffPublisher diffPublisher;
+    private final ConcurrentMap<String, LoadedCache> caches = Maps
+            .newConcurrentMap();
+    @GuardedBy("caches")
+    private final Map<String, SettableFuture<InstanceCache>> loading = Maps
+            .newHashMap();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    @GuardedBy("caches")
+    private boolean closed = false;
+
+    private volatile long cacheIdleNanos = TimeUnit.MINUTES
+            .toNanos(DEFAULT_CACHE_IDLE_MINUTES);
+    private volatile long sweptNanos = System.nanoTime();
+
+    @GuardedBy("this")
+    private volatile InstanceSnapshot snapshot = InstanceSnapshot.EMPTY;
+
+    @GuardedBy("this")
+    private InstanceCache cache;
+
+    @GuardedBy("this")
+    private volatile boolean probing = false;
+
+    @GuardedBy("this")
+    private volatile ImmutableList<InstanceOutcomeListener> outcomeListeners = ImmutableList
+            .of();
+
+    @GuardedBy("this")
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+
+    private volatile RetryBudget retryBudget = new RetryBudget();
+
+    @GuardedBy("this")
+    private Aperture aperture;
+
+    @GuardedBy("this")
+    private ImmutableList<ServiceInstance<InstanceMetadata>> subsetOf;
+
+    @GuardedBy("this")
+    private ImmutableList<ServiceInstance<InstanceMetadata>> subset;
+
+    @GuardedBy("this")
+    private ImmutableList<ServiceInstance<InstanceMetadata>> endpointsOf;
+
+    @GuardedBy("this")
+    private ImmutableMap<String, Endpoint> endpointsFrom;
+
+    private final Object resolveLock = new Object();
+
+    @GuardedBy("resolveLock")
+    private ImmutableList<ServiceInstance<InstanceMetadata>> resolvedOf;
+
+    @GuardedBy("resolveLock")
+    private volatile ImmutableMap<String, Endpoint> resolved = ImmutableMap
+            .of();
+
+    private final InstanceCacheListener cacheListener = new InstanceCacheListener() {
+        @Override
+        public void instancesChanged(final InstanceCache cache) {
+            resolveEndpoints(cache);
+            publish();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name of the service to monitor
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param downInstancePolicy
+     *            {@link DownInstancePolicy} to use when marking instances as
+     *            down
+     * @param providerStrategy
+     *            {@link ProviderStrategy} to use when selecting an instance
+     */
+    public DiscoveryClient(final String serviceName,
+            final ServiceDiscovery<InstanceMetadata> discovery,
+            final DownInstancePolicy downInstancePolicy,
+            final ProviderStrategy<InstanceMetadata> providerStrategy) {
+        this(serviceName, discovery, null, downInstancePolicy,
+                providerStrategy);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name of the service to monitor
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param directory
+     *            {@link ServiceDirectory} used to answer
+     *            {@link #getServices()}, or null to query ZooKeeper directly
+     * @param downInstancePolicy
+     *            {@link DownInstancePolicy} to use when marking instances as
+     *            down
+     * @param providerStrategy
+     *            {@link ProviderStrategy} to use when selecting an instance
+     */
+    public DiscoveryClient(final String serviceName,
+            final ServiceDiscovery<InstanceMetadata> discovery,
+            @Nullable final ServiceDirectory directory,
+            final DownInstancePolicy downInstancePolicy,
+            final ProviderStrategy<InstanceMetadata> providerStrategy) {
+        this(serviceName, discovery, directory, new InstanceCacheFactory(
+                discovery), downInstancePolicy, providerStrategy);
+    }
 
     /**
      * Constructor
@@ -25,6 +174,12 @@ public class DiscoveryClient {
      *            name of the service to monitor
      * @param discovery
      *            {@link ServiceDiscovery}
+     * @param directory
+     *            {@link ServiceDirectory} used to answer
+     *            {@link #getServices()}, or null to query ZooKeeper directly
+     * @param cacheFactory
+     *            {@link InstanceCacheFactory} used to create the
+     *            {@link InstanceCache} of each service
      * @param downInstancePolicy
      *            {@link DownInstancePolicy} to use when marking instances as
      *            down
@@ -33,47 +188,280 @@ public class DiscoveryClient {
      */
     public DiscoveryClient(final String serviceName,
             final ServiceDiscovery<InstanceMetadata> discovery,
+            @Nullable final ServiceDirectory directory,
+            final InstanceCacheFactory cacheFactory,
             final DownInstancePolicy downInstancePolicy,
             final ProviderStrategy<InstanceMetadata> providerStrategy) {
+        this(serviceName, discovery, directory, cacheFactory,
+                new CircuitBreakerPolicy(downInstancePolicy), providerStrategy);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name of the service to monitor
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param directory
+     *            {@link ServiceDirectory} used to answer
+     *            {@link #getServices()}, or null to query ZooKeeper directly
+     * @param cacheFactory
+     *            {@link InstanceCacheFactory} used to create the
+     *            {@link InstanceCache} of each service
+     * @param circuitBreakerPolicy
+     *            {@link CircuitBreakerPolicy} of the circuit breaker which
+     *            decides when instances are skipped
+     * @param providerStrategy
+     *            {@link ProviderStrategy} to use when selecting an instance
+     */
+    public DiscoveryClient(final String serviceName,
+            final ServiceDiscovery<InstanceMetadata> discovery,
+            @Nullable final ServiceDirectory directory,
+            final InstanceCacheFactory cacheFactory,
+            final CircuitBreakerPolicy circuitBreakerPolicy,
+            final ProviderStrategy<InstanceMetadata> providerStrategy) {
         checkNotNull(serviceName);
         checkArgument(!serviceName.isEmpty(), "serviceName cannot be empty");
-        checkNotNull(providerStrategy);
 
+        this.serviceName = serviceName;
         this.discovery = checkNotNull(discovery);
+        this.directory = directory;
+        this.cacheFactory = checkNotNull(cacheFactory);
+        this.providerStrategy = checkNotNull(providerStrategy);
+        this.circuitBreaker = new InstanceCircuitBreaker(circuitBreakerPolicy);
+        this.diffPublisher = new InstanceDiffPublisher(serviceName);
 
-        this.provider = discovery.serviceProviderBuilder()
-                .serviceName(serviceName)
-                .downInstancePolicy(downInstancePolicy)
-                .providerStrategy(providerStrategy).build();
+        if (providerStrategy instanceof InstanceOutcomeListener) {
+            addOutcomeListener((InstanceOutcomeListener) providerStrategy);
+        }
     }
 
     /**
-     * Return a list of discoverable services
+     * Return a list of discoverable services. When this client was built with
+     * a {@link ServiceDirectory}, the names are served from its in-memory
+     * snapshot.
      *
      * @return Collection of service names
+     * @throws Exception
      */
     public Collection<String> getServices() throws Exception {
+        if (directory != null) {
+            return directory.getServices();
+        }
         return discovery.queryForNames();
     }
 
     /**
-     * Return the running instances for the service.
+     * Return the running instances for the service. The first call for a
+     * service name primes a watch-driven {@link InstanceCache}; subsequent
+     * calls are served from its immutable snapshot without contacting
+     * ZooKeeper. Caches of other services which haven't been used for the
+     * idle timeout are closed, the next call priming a new one.
      *
+     * @param serviceName
+     *            name of the service to query
      * @return Collection of service instances
+     * @throws Exception
      */
     public Collection<ServiceInstance<InstanceMetadata>> getInstances(
             final String serviceName) throws Exception {
-        return discovery.queryForInstances(serviceName);
+        final long now = System.nanoTime();
+        if ((now - sweptNanos) > (cacheIdleNanos / 2)) {
+            closeIdleCaches(now);
+        }
+        final LoadedCache loaded = caches.get(serviceName);
+        if (loaded != null) {
+            cacheHits.incrementAndGet();
+            loaded.accessedNanos = now;
+            return loaded.cache.getInstances();
+        }
+        cacheMisses.incrementAndGet();
+        final InstanceCache cache = loadCache(serviceName);
+        if (cache == null) {
+            return discovery.queryForInstances(serviceName);
+        }
+        return cache.getInstances();
+    }
+
+    /**
+     * Set the time after which an {@link InstanceCache} created by
+     * {@link #getInstances(String)} is closed if it hasn't been used. The
+     * cache of this client's own service is never closed before the client.
+     *
+     * @param timeout
+     *            idle timeout, or 0 to keep every cache open
+     * @param unit
+     *            {@link TimeUnit} of the timeout
+     */
+    public void setCacheIdleTimeout(final long timeout, final TimeUnit unit) {
+        checkArgument(timeout >= 0, "timeout cannot be negative");
+        this.cacheIdleNanos = (timeout == 0) ? Long.MAX_VALUE : unit
+                .toNanos(timeout);
     }
 
     /**
-     * Return an instance of this service.
+     * Return the number of {@link InstanceCache}s this client holds open.
+     *
+     * @return number of cached services
+     */
+    public int getCachedServices() {
+        return caches.size();
+    }
+
+    /**
+     * Return the number of {@link #getInstances(String)} calls served from an
+     * existing cache.
+     *
+     * @return number of cache hits
+     */
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Return the number of {@link #getInstances(String)} calls which had to
+     * build a cache or query ZooKeeper directly.
+     *
+     * @return number of cache misses
+     */
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Return the name of the service this client selects instances of.
+     *
+     * @return service name
+     */
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Return the snapshot of instances {@link #getInstance()} currently
+     * selects from.
+     *
+     * @return {@link InstanceSnapshot}
+     */
+    public InstanceSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Return the number of times any cached snapshot has been rebuilt due to
+     * a change in ZooKeeper.
+     *
+     * @return number of cache refreshes
+     */
+    public long getCacheRefreshes() {
+        long refreshes = 0;
+        for (final LoadedCache loaded : caches.values()) {
+            refreshes += loaded.cache.getRefreshCount();
+        }
+        return refreshes;
+    }
+
+    /**
+     * Return the circuit breaker which decides when instances of this service
+     * are skipped.
+     *
+     * @return {@link InstanceCircuitBreaker}
+     */
+    public InstanceCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Return an instance of this service. The {@link ProviderStrategy} is
+     * handed the current {@link InstanceSnapshot}, which already excludes
+     * instances whose circuit is open and draining instances, so this neither
+     * locks nor copies the instance list. Only while a circuit is half-open
+     * is the selected instance checked against the circuit breaker. With a
+     * {@link ConcurrencyLimiter}, instances at their limit are skipped, and
+     * null is returned if every instance is at its limit.
+     *
+     * Every call earns a fraction of a retry in the {@link RetryBudget}.
      *
      * @return ServiceInstance
      * @throws Exception
      */
     public ServiceInstance<InstanceMetadata> getInstance() throws Exception {
-        return provider.getInstance();
+        retryBudget.deposit();
+        InstanceSnapshot current = snapshot;
+        if (current.isExpired()) {
+            current = publish();
+        }
+        final ServiceInstance<InstanceMetadata> instance = select(current);
+        if (instance == null || !probing) {
+            return instance;
+        }
+        if (circuitBreaker.tryAcquire(instance)) {
+            if (!circuitBreaker.isAvailable(instance, System.nanoTime())) {
+                // that was the last request let through to the instance
+                publish();
+            }
+            return instance;
+        }
+        return select(publish());
+    }
+
+    /**
+     * Return the {@link Endpoint} of an instance of this service, selected as
+     * by {@link #getInstance()}. Endpoints are built when the cached
+     * instances change, so callers can use its address and URI without
+     * resolving or allocating anything. An instance selected before its
+     * endpoint was built gets an endpoint with an unresolved address.
+     *
+     * @return Endpoint, or null if no instance is available
+     * @throws Exception
+     */
+    @Nullable
+    public Endpoint getEndpoint() throws Exception {
+        final ServiceInstance<InstanceMetadata> instance = getInstance();
+        if (instance == null) {
+            return null;
+        }
+        final Endpoint endpoint = snapshot.getEndpoint(instance);
+        return (endpoint != null) ? endpoint : Endpoint.unresolved(instance);
+    }
+
+    /**
+     * Note that a request is about to be sent to a service instance. Each
+     * call should be followed by either {@link #noteSuccess} or
+     * {@link #noteError} so that latency-aware strategies can track the
+     * number of in-flight requests.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the request is sent to.
+     */
+    public void noteStart(final ServiceInstance<InstanceMetadata> instance) {
+        final ImmutableList<InstanceOutcomeListener> listeners = outcomeListeners;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onStart(instance);
+        }
+    }
+
+    /**
+     * Note a successful request to a service instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the request was sent to.
+     * @param latency
+     *            time taken by the request
+     * @param unit
+     *            {@link TimeUnit} of the latency
+     */
+    public void noteSuccess(final ServiceInstance<InstanceMetadata> instance,
+            final long latency, final TimeUnit unit) {
+        final long latencyNanos = unit.toNanos(latency);
+        final ImmutableList<InstanceOutcomeListener> listeners = outcomeListeners;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onSuccess(instance, latencyNanos);
+        }
+        if (circuitBreaker.onSuccess(instance, latencyNanos)) {
+            publish();
+        }
     }
 
     /**
@@ -83,24 +471,538 @@ public class DiscoveryClient {
      *            {@link ServiceInstance} that is causing the error.
      */
     public void noteError(final ServiceInstance<InstanceMetadata> instance) {
-        provider.noteError(instance);
+        final ImmutableList<InstanceOutcomeListener> listeners = outcomeListeners;
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onError(instance);
+        }
+        if (circuitBreaker.onError(instance)) {
+            publish();
+        }
+    }
+
+    /**
+     * Return whether a failed request may be retried, taking a retry from
+     * the {@link RetryBudget} of this service if so. Callers which retry
+     * should check this before each retry, so that retries stay a bounded
+     * fraction of the requests when instances are failing.
+     *
+     * @return true if the request may be retried
+     */
+    public boolean canRetry() {
+        return retryBudget.tryWithdraw();
+    }
+
+    /**
+     * Return the {@link RetryBudget} of this service.
+     *
+     * @return {@link RetryBudget}
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Replace the {@link RetryBudget} of this service.
+     *
+     * @param retryBudget
+     *            {@link RetryBudget}
+     */
+    public void setRetryBudget(final RetryBudget retryBudget) {
+        this.retryBudget = checkNotNull(retryBudget);
+    }
+
+    /**
+     * Return the {@link ConcurrencyLimiter} used to skip instances during
+     * selection.
+     *
+     * @return {@link ConcurrencyLimiter}, or null if concurrency is not
+     *         limited
+     */
+    @Nullable
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Limit the number of concurrent requests to each instance. The limiter
+     * is registered as an {@link InstanceOutcomeListener}, replacing any
+     * previous one.
+     *
+     * @param limiter
+     *            {@link ConcurrencyLimiter}, or null to stop limiting
+     */
+    public synchronized void setConcurrencyLimiter(
+            @Nullable final ConcurrencyLimiter limiter) {
+        if (concurrencyLimiter != null) {
+            removeOutcomeListener(concurrencyLimiter);
+        }
+        concurrencyLimiter = limiter;
+        if (limiter != null) {
+            addOutcomeListener(limiter);
+        }
+    }
+
+    /**
+     * Return the {@link Aperture} restricting the instances of this service
+     * which are selected.
+     *
+     * @return {@link Aperture}, or null if every instance may be selected
+     */
+    @Nullable
+    public synchronized Aperture getAperture() {
+        return aperture;
+    }
+
+    /**
+     * Only select instances within the given {@link Aperture}, and only
+     * build the endpoints of those instances. If no instance of the subset
+     * can be selected, every instance is considered.
+     *
+     * @param aperture
+     *            {@link Aperture}, or null to select among every instance
+     */
+    public void setAperture(@Nullable final Aperture aperture) {
+        synchronized (this) {
+            this.aperture = aperture;
+            subsetOf = null;
+        }
+        publish();
+    }
+
+    /**
+     * Register a listener for the outcomes recorded through
+     * {@link #noteStart}, {@link #noteSuccess} and {@link #noteError}. A
+     * {@link ProviderStrategy} which implements
+     * {@link InstanceOutcomeListener} is registered automatically.
+     *
+     * @param listener
+     *            {@link InstanceOutcomeListener}
+     */
+    public synchronized void addOutcomeListener(
+            final InstanceOutcomeListener listener) {
+        outcomeListeners = ImmutableList.<InstanceOutcomeListener> builder()
+                .addAll(outcomeListeners).add(checkNotNull(listener)).build();
+    }
+
+    /**
+     * Remove a listener previously registered with
+     * {@link #addOutcomeListener(InstanceOutcomeListener)}.
+     *
+     * @param listener
+     *            {@link InstanceOutcomeListener}
+     */
+    public synchronized void removeOutcomeListener(
+            final InstanceOutcomeListener listener) {
+        final ImmutableList.Builder<InstanceOutcomeListener> builder = ImmutableList
+                .builder();
+        for (final InstanceOutcomeListener existing : outcomeListeners) {
+            if (existing != listener) {
+                builder.add(existing);
+            }
+        }
+        outcomeListeners = builder.build();
     }
 
     /**
-     * Start the internal {@link ServiceProvider} and {@link ServiceCache}
+     * Subscribe to the changes of the instances of this service. Diffs are
+     * delivered on the thread which reports the change, so the subscriber
+     * must return quickly.
+     *
+     * @param subscriber
+     *            {@link InstanceDiffSubscriber}
+     * @see InstanceDiffPublisher#subscribe(InstanceDiffSubscriber)
+     */
+    public void subscribe(final InstanceDiffSubscriber subscriber) {
+        diffPublisher.subscribe(subscriber);
+    }
+
+    /**
+     * Subscribe to the changes of the instances of this service, delivering
+     * them with the given {@link Executor}. The subscriber is completed when
+     * this client is closed.
+     *
+     * @param subscriber
+     *            {@link InstanceDiffSubscriber}
+     * @param executor
+     *            {@link Executor} used to call the subscriber
+     */
+    public void subscribe(final InstanceDiffSubscriber subscriber,
+            final Executor executor) {
+        diffPublisher.subscribe(subscriber, executor);
+    }
+
+    /**
+     * Start watching the instances of this service
      *
      * @throws Exception
      */
     public void start() throws Exception {
-        provider.start();
+        final InstanceCache cache = loadCache(serviceName);
+        checkState(cache != null, "DiscoveryClient has been closed");
+        synchronized (this) {
+            this.cache = cache;
+            cache.getListenable().addListener(cacheListener);
+            cache.getListenable().addListener(diffPublisher);
+        }
+        resolveEndpoints(cache);
+        publish();
+        // primed under the lock the cache notifies its listeners with, so
+        // that it cannot overwrite a newer snapshot
+        synchronized (cache) {
+            diffPublisher.instancesChanged(cache);
+        }
     }
 
     /**
-     * Stop the internal {@link ServiceProvider} and {@link ServiceCache}
+     * Stop watching the instances of this service and close any
+     * {@link InstanceCache} created by {@link #getInstances(String)}
      *
      * @throws Exception
      */
     public void close() throws Exception {
-        provider.close();
+        synchronized (this) {
+            if (cache != null) {
+                cache.getListenable().removeListener(cacheListener);
+                cache.getListenable().removeListener(diffPublisher);
+                cache = null;
+            }
+            snapshot = InstanceSnapshot.EMPTY;
+            endpointsOf = null;
+            endpointsFrom = null;
+        }
+        synchronized (resolveLock) {
+            resolved = ImmutableMap.of();
+            resolvedOf = null;
+        }
+        diffPublisher.complete();
+        final List<LoadedCache> closing;
+        synchronized (caches) {
+            closed = true;
+            closing = ImmutableList.copyOf(caches.values());
+            caches.clear();
+        }
+        // caches still being started are closed by their loader
+        for (final LoadedCache loaded : closing) {
+            loaded.cache.close();
+        }
+    }
+
+    /**
+     * Select an instance with the {@link ProviderStrategy}, skipping
+     * instances at their concurrency limit. The strategy gets a few chances
+     * before the snapshot is scanned, which only happens under overload.
+     */
+    @Nullable
+    private ServiceInstance<InstanceMetadata> select(
+            final InstanceSnapshot current) throws Exception {
+        final ConcurrencyLimiter limiter = concurrencyLimiter;
+        ServiceInstance<InstanceMetadata> instance = providerStrategy
+                .getInstance(current);
+        if (limiter == null) {
+            return instance;
+        }
+        for (int i = 1; instance != null && limiter.isAtLimit(instance); i++) {
+            if (i == LIMITED_SELECTIONS) {
+                return selectBelowLimit(current, limiter);
+            }
+            instance = providerStrategy.getInstance(current);
+        }
+        return instance;
+    }
+
+    @Nullable
+    private static ServiceInstance<InstanceMetadata> selectBelowLimit(
+            final InstanceSnapshot current, final ConcurrencyLimiter limiter) {
+        final List<ServiceInstance<InstanceMetadata>> instances = current
+                .getInstances();
+        for (int i = 0; i < instances.size(); i++) {
+            if (!limiter.isAtLimit(instances.get(i))) {
+                return instances.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild and publish the {@link InstanceSnapshot} from the cached
+     * instances, filtering out instances whose circuit is open and instances
+     * which are draining. Draining instances are only kept if no other
+     * instance is available. With an {@link Aperture}, only the instances of
+     * the subset are considered, unless none of them is available.
+     *
+     * @return the published {@link InstanceSnapshot}
+     */
+    private synchronized InstanceSnapshot publish() {
+        if (cache == null) {
+            return snapshot;
+        }
+
+        final long now = System.nanoTime();
+        final ImmutableList<ServiceInstance<InstanceMetadata>> all = cache
+                .getInstances();
+        if (all != snapshot.getAllInstances()) {
+            circuitBreaker.retain(all);
+            final ConcurrencyLimiter limiter = concurrencyLimiter;
+            if (limiter != null) {
+                limiter.retain(all);
+            }
+        }
+        ImmutableList<ServiceInstance<InstanceMetadata>> members = subset(all);
+        ImmutableList<ServiceInstance<InstanceMetadata>> selectable;
+        boolean expiring;
+        boolean halfOpen;
+        long expiresNanos;
+        while (true) {
+            final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> available = ImmutableList
+                    .builder();
+            final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> draining = ImmutableList
+                    .builder();
+            expiring = false;
+            halfOpen = false;
+            expiresNanos = 0;
+            for (final ServiceInstance<InstanceMetadata> instance : members) {
+                if (circuitBreaker.isAvailable(instance, now)) {
+                    halfOpen |= (circuitBreaker.getState(instance) == State.HALF_OPEN);
+                    if (isDraining(instance)) {
+                        draining.add(instance);
+                    } else {
+                        available.add(instance);
+                    }
+                    continue;
+                }
+                final long retryAt = circuitBreaker.getRetryAt(instance);
+                if (!expiring || ((retryAt - expiresNanos) < 0)) {
+                    expiresNanos = retryAt;
+                }
+                expiring = true;
+            }
+
+            selectable = available.build();
+            if (selectable.isEmpty()) {
+                selectable = draining.build();
+            }
+            if (!selectable.isEmpty() || members == all) {
+                break;
+            }
+            // nothing in the aperture can be selected, widen it to every
+            // instance until one of its circuits closes
+            members = all;
+        }
+        probing = halfOpen;
+        snapshot = new InstanceSnapshot(all, members, selectable,
+                selectEndpoints(members), expiring, expiresNanos);
+        return snapshot;
+    }
+
+    /**
+     * Return the instances of the {@link Aperture}, only computing the
+     * subset again when the cached instances change.
+     */
+    @GuardedBy("this")
+    private ImmutableList<ServiceInstance<InstanceMetadata>> subset(
+            final ImmutableList<ServiceInstance<InstanceMetadata>> all) {
+        if (aperture == null) {
+            return all;
+        }
+        if (all != subsetOf) {
+            subset = aperture.select(all);
+            subsetOf = all;
+        }
+        return subset;
+    }
+
+    /**
+     * Return the endpoints of the given instances out of those already built
+     * by {@link #resolveEndpoints(InstanceCache)}, which never resolves
+     * anything while holding the lock.
+     */
+    @GuardedBy("this")
+    private ImmutableMap<String, Endpoint> selectEndpoints(
+            final ImmutableList<ServiceInstance<InstanceMetadata>> instances) {
+        final ImmutableMap<String, Endpoint> available = resolved;
+        if (instances == endpointsOf && available == endpointsFrom) {
+            return snapshot.getEndpointMap();
+        }
+        endpointsOf = instances;
+        endpointsFrom = available;
+        final ImmutableMap.Builder<String, Endpoint> endpoints = ImmutableMap
+                .builder();
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            final Endpoint endpoint = available.get(instance.getId());
+            if (endpoint != null && endpoint.getInstance().equals(instance)) {
+                endpoints.put(instance.getId(), endpoint);
+            }
+        }
+        return endpoints.build();
+    }
+
+    /**
+     * Build the endpoints of the cached instances, only resolving the
+     * addresses of instances which were added or whose registration changed.
+     * This runs on the thread refreshing the cache, outside of the lock
+     * taken to publish snapshots, so that neither requests nor
+     * {@link #publish()} wait on a name lookup.
+     */
+    private void resolveEndpoints(final InstanceCache cache) {
+        synchronized (resolveLock) {
+            // read under the lock so that an older list never replaces the
+            // endpoints of a newer one
+            final ImmutableList<ServiceInstance<InstanceMetadata>> instances = cache
+                    .getInstances();
+            if (instances == resolvedOf) {
+                return;
+            }
+            final ImmutableMap<String, Endpoint> previous = resolved;
+            final ImmutableMap.Builder<String, Endpoint> endpoints = ImmutableMap
+                    .builder();
+            for (final ServiceInstance<InstanceMetadata> instance : instances) {
+                Endpoint endpoint = previous.get(instance.getId());
+                if (endpoint == null
+                        || !endpoint.getInstance().equals(instance)) {
+                    try {
+                        endpoint = Endpoint.of(instance);
+                    } catch (final IllegalArgumentException e) {
+                        LOGGER.warn("Unable to build endpoint of instance "
+                                + instance.getId(), e);
+                        continue;
+                    }
+                }
+                endpoints.put(instance.getId(), endpoint);
+            }
+            resolved = endpoints.build();
+            resolvedOf = instances;
+        }
+    }
+
+    private static boolean isDraining(
+            final ServiceInstance<InstanceMetadata> instance) {
+        final InstanceMetadata payload = instance.getPayload();
+        return (payload != null) && payload.isDraining();
+    }
+
+    /**
+     * Return the cache of this client's own service.
+     *
+     * @return {@link InstanceCache}, or null if the client is not started
+     */
+    synchronized InstanceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Return the {@link InstanceCache} for the given service name, building
+     * and starting a new one unless it already exists. Caches are started
+     * outside of the lock on {@link #caches}, so that a slow or unreachable
+     * service doesn't hold up the others; concurrent callers for the same
+     * service wait for the first one to start it.
+     *
+     * @param serviceName
+     *            name of the service to cache
+     * @return {@link InstanceCache}, or null if this client is closed
+     * @throws Exception
+     */
+    @Nullable
+    private InstanceCache loadCache(final String serviceName) throws Exception {
+        final SettableFuture<InstanceCache> future = SettableFuture.create();
+        final SettableFuture<InstanceCache> existing;
+        synchronized (caches) {
+            if (closed) {
+                return null;
+            }
+            final LoadedCache loaded = caches.get(serviceName);
+            if (loaded != null) {
+                return loaded.cache;
+            }
+            existing = loading.get(serviceName);
+            if (existing == null) {
+                loading.put(serviceName, future);
+            }
+        }
+
+        if (existing != null) {
+            try {
+                return Uninterruptibles.getUninterruptibly(existing);
+            } catch (final ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        InstanceCache cache = null;
+        try {
+            cache = cacheFactory.newCache(serviceName);
+            cache.start();
+        } catch (final Exception e) {
+            if (cache != null) {
+                cache.close();
+            }
+            synchronized (caches) {
+                loading.remove(serviceName);
+            }
+            future.setException(e);
+            throw e;
+        }
+
+        final boolean added;
+        synchronized (caches) {
+            loading.remove(serviceName);
+            added = !closed;
+            if (added) {
+                caches.put(serviceName, new LoadedCache(cache));
+            }
+        }
+        if (!added) {
+            cache.close();
+            cache = null;
+        }
+        future.set(cache);
+        return cache;
+    }
+
+    /**
+     * Close the caches of other services which haven't been used for the
+     * idle timeout. The caches are scanned at most once per half of the
+     * timeout, and closed outside of the lock.
+     */
+    private void closeIdleCaches(final long now) {
+        final List<LoadedCache> idle = Lists.newArrayList();
+        synchronized (caches) {
+            if ((now - sweptNanos) <= (cacheIdleNanos / 2)) {
+                return;
+            }
+            sweptNanos = now;
+            final Iterator<Map.Entry<String, LoadedCache>> entries = caches
+                    .entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, LoadedCache> entry = entries.next();
+                if (!entry.getKey().equals(serviceName)
+                        && (now - entry.getValue().accessedNanos) > cacheIdleNanos) {
+                    idle.add(entry.getValue());
+                    entries.remove();
+                }
+            }
+        }
+        for (final LoadedCache loaded : idle) {
+            LOGGER.debug("Closing idle cache of {}",
+                    loaded.cache.getServiceName());
+            try {
+                loaded.cache.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to close cache of "
+                        + loaded.cache.getServiceName(), e);
+            }
+        }
+    }
+
+    /**
+     * An {@link InstanceCache} with the time it was last used.
+     */
+    private static final class LoadedCache {
+        final InstanceCache cache;
+        volatile long accessedNanos = System.nanoTime();
+
+        LoadedCache(final InstanceCache cache) {
+            this.cache = cache;
+        }
     }
 }
@@ -0,0 +1,286 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import io.dropwizard.lifecycle.Managed;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Hands out {@link DiscoveryClient}s shared by everyone who asks for the same
+ * service name and an equal {@link ProviderStrategy}, so that each service is
+ * cached and watched once no matter how many resources use it. The
+ * strategies in {@link com.ge.snowizard.discovery.strategies} are equal when
+ * they are configured alike; other strategies are only shared when the same
+ * instance is passed.
+ *
+ * Clients are reference counted: each {@link #acquire} must be matched by a
+ * {@link #release}, and a client is closed once it is no longer used. Each
+ * client is started and stopped through its {@link DiscoveryClientManager};
+ * clients acquired before the registry is started are started along with
+ * it. New clients are started outside of the registry's lock, so that a
+ * slow service doesn't hold up the others.
+ */
+@ThreadSafe
+public class DiscoveryClientRegistry implements Managed {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(DiscoveryClientRegistry.class);
+
+    /**
+     * Builds the clients handed out by a {@link DiscoveryClientRegistry}.
+     */
+    public interface ClientFactory {
+        /**
+         * Return a new, not yet started, {@link DiscoveryClient}.
+         *
+         * @param serviceName
+         *            name of the service to monitor
+         * @param providerStrategy
+         *            {@link ProviderStrategy} to use when selecting an
+         *            instance
+         * @return {@link DiscoveryClient}
+         */
+        DiscoveryClient newDiscoveryClient(String serviceName,
+                ProviderStrategy<InstanceMetadata> providerStrategy);
+    }
+
+    private final ClientFactory factory;
+
+    @GuardedBy("this")
+    private final Map<Key, Entry> entries = Maps.newHashMap();
+
+    @GuardedBy("this")
+    private final Map<DiscoveryClient, Entry> clients = new IdentityHashMap<DiscoveryClient, Entry>();
+
+    @GuardedBy("this")
+    private boolean started = false;
+
+    @GuardedBy("this")
+    private boolean stopped = false;
+
+    /**
+     * Constructor
+     *
+     * @param factory
+     *            {@link ClientFactory} used to build new clients
+     */
+    public DiscoveryClientRegistry(final ClientFactory factory) {
+        this.factory = checkNotNull(factory);
+    }
+
+    /**
+     * Return the client of the given service which uses an equal
+     * {@link ProviderStrategy}, building one with the given strategy if there
+     * is none.
+     *
+     * @param serviceName
+     *            name of the service to monitor
+     * @param providerStrategy
+     *            {@link ProviderStrategy} to use when selecting an instance
+     * @return shared {@link DiscoveryClient}, to be handed back to
+     *         {@link #release(DiscoveryClient)} once no longer used
+     * @throws Exception
+     *             if a new client could not be started
+     */
+    public DiscoveryClient acquire(final String serviceName,
+            final ProviderStrategy<InstanceMetadata> providerStrategy)
+            throws Exception {
+        final Key key = new Key(serviceName, providerStrategy);
+        final Entry entry;
+        final boolean starting;
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            starting = (existing == null) && started;
+            if (existing == null) {
+                final DiscoveryClient client = factory.newDiscoveryClient(
+                        serviceName, providerStrategy);
+                existing = new Entry(key, client);
+                if (!started) {
+                    // started along with the registry
+                    existing.ready.set(null);
+                }
+                entries.put(key, existing);
+                clients.put(client, existing);
+                LOGGER.debug("Created shared client of {} using {}",
+                        serviceName, providerStrategy);
+            }
+            existing.references++;
+            entry = existing;
+        }
+
+        if (starting) {
+            start(entry);
+        }
+        try {
+            Uninterruptibles.getUninterruptibly(entry.ready);
+        } catch (final ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+            throw Throwables.propagate(e.getCause());
+        }
+        return entry.client;
+    }
+
+    /**
+     * Start a new client on behalf of everyone waiting for it. If it cannot be
+     * started, or the registry is stopped meanwhile, it is removed again.
+     */
+    private void start(final Entry entry) {
+        try {
+            entry.manager.start();
+        } catch (final Exception e) {
+            stopQuietly(entry);
+            remove(entry);
+            entry.ready.setException(e);
+            return;
+        }
+        if (!isRegistered(entry)) {
+            stopQuietly(entry);
+            entry.ready.setException(new IllegalStateException(
+                    "DiscoveryClientRegistry has been stopped"));
+            return;
+        }
+        entry.ready.set(null);
+    }
+
+    private synchronized boolean isRegistered(final Entry entry) {
+        return entries.get(entry.key) == entry;
+    }
+
+    private synchronized void remove(final Entry entry) {
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+            clients.remove(entry.client);
+        }
+    }
+
+    /**
+     * Hand back a client returned by {@link #acquire}, closing it if it is no
+     * longer used. The client is closed outside of the registry's lock.
+     * Clients handed back after the registry was stopped have already been
+     * closed along with it.
+     *
+     * @param client
+     *            {@link DiscoveryClient} returned by {@link #acquire}
+     * @throws Exception
+     *             if the client could not be closed
+     */
+    public void release(final DiscoveryClient client) throws Exception {
+        final Entry entry;
+        final boolean stopping;
+        synchronized (this) {
+            entry = clients.get(client);
+            if (entry == null && stopped) {
+                return;
+            }
+            checkArgument(entry != null,
+                    "Client is not shared by this registry");
+            if (--entry.references > 0) {
+                return;
+            }
+            entries.remove(entry.key);
+            clients.remove(client);
+            // clients still being started are stopped by whoever starts them
+            stopping = started && entry.ready.isDone();
+        }
+        if (stopping) {
+            entry.manager.stop();
+        }
+        LOGGER.debug("Closed shared client of {}", entry.key.serviceName);
+    }
+
+    /**
+     * Return the number of distinct clients currently shared.
+     *
+     * @return number of clients
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized void start() throws Exception {
+        for (final Entry entry : entries.values()) {
+            entry.manager.start();
+        }
+        started = true;
+        stopped = false;
+    }
+
+    @Override
+    public synchronized void stop() throws Exception {
+        started = false;
+        stopped = true;
+        for (final Entry entry : entries.values()) {
+            // clients still being started are stopped by whoever starts them
+            if (entry.ready.isDone()) {
+                stopQuietly(entry);
+            }
+        }
+        entries.clear();
+        clients.clear();
+    }
+
+    private static void stopQuietly(final Entry entry) {
+        try {
+            entry.manager.stop();
+        } catch (final Exception e) {
+            LOGGER.warn("Unable to close client of " + entry.key.serviceName,
+                    e);
+        }
+    }
+
+    private static final class Key {
+        final String serviceName;
+        final ProviderStrategy<InstanceMetadata> strategy;
+
+        Key(final String serviceName,
+                final ProviderStrategy<InstanceMetadata> strategy) {
+            this.serviceName = checkNotNull(serviceName);
+            this.strategy = checkNotNull(strategy);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if ((obj == null) || (getClass() != obj.getClass())) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return serviceName.equals(other.serviceName)
+                    && strategy.equals(other.strategy);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(serviceName, strategy);
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final DiscoveryClient client;
+        final DiscoveryClientManager manager;
+        final SettableFuture<Void> ready = SettableFuture.create();
+        int references = 0;
+
+        Entry(final Key key, final DiscoveryClient client) {
+            this.key = key;
+            this.client = client;
+            this.manager = new DiscoveryClientManager(client);
+        }
+    }
+}
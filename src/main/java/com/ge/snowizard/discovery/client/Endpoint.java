@@ -0,0 +1,145 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Objects;
+
+/**
+ * A service instance together with the objects needed to call it: its socket
+ * address, resolved once when the endpoint is built, and its base
+ * {@link URI}. Endpoints are built by {@link DiscoveryClient} on the thread
+ * refreshing the cached instances, so that selecting and calling an instance
+ * neither resolves host names nor allocates.
+ */
+@Immutable
+public final class Endpoint {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(Endpoint.class);
+
+    private final ServiceInstance<InstanceMetadata> instance;
+    private final InetSocketAddress address;
+    private final URI uri;
+
+    /**
+     * Constructor
+     *
+     * @param instance
+     *            {@link ServiceInstance} this endpoint points to
+     * @param address
+     *            socket address of the instance
+     * @param uri
+     *            base URI of the instance
+     */
+    public Endpoint(final ServiceInstance<InstanceMetadata> instance,
+            final InetSocketAddress address, final URI uri) {
+        this.instance = checkNotNull(instance);
+        this.address = checkNotNull(address);
+        this.uri = checkNotNull(uri);
+    }
+
+    /**
+     * Build the endpoint of an instance. The plain port is preferred over the
+     * SSL port, and the base URI is built from the instance's
+     * {@link org.apache.curator.x.discovery.UriSpec} if it has one. The
+     * address is resolved now, and left unresolved if that fails.
+     *
+     * @param instance
+     *            {@link ServiceInstance}
+     * @return {@link Endpoint}
+     * @throws IllegalArgumentException
+     *             if the instance has no address or its URI is invalid
+     */
+    public static Endpoint of(final ServiceInstance<InstanceMetadata> instance) {
+        return build(instance, true);
+    }
+
+    /**
+     * Build the endpoint of an instance without resolving its address, for
+     * callers which must not wait on a name lookup.
+     *
+     * @param instance
+     *            {@link ServiceInstance}
+     * @return {@link Endpoint} with an unresolved address
+     * @throws IllegalArgumentException
+     *             if the instance has no address or its URI is invalid
+     */
+    public static Endpoint unresolved(
+            final ServiceInstance<InstanceMetadata> instance) {
+        return build(instance, false);
+    }
+
+    private static Endpoint build(
+            final ServiceInstance<InstanceMetadata> instance,
+            final boolean resolve) {
+        final String host = instance.getAddress();
+        checkArgument(host != null, "Instance %s has no address",
+                instance.getId());
+
+        final boolean secure = (instance.getPort() == null)
+                && (instance.getSslPort() != null);
+        final Integer port = secure ? instance.getSslPort() : instance
+                .getPort();
+
+        final InetSocketAddress address;
+        if (resolve) {
+            address = new InetSocketAddress(host, (port == null) ? 0 : port);
+            if (address.isUnresolved()) {
+                LOGGER.warn("Unable to resolve address {} of instance {}",
+                        host, instance.getId());
+            }
+        } else {
+            address = InetSocketAddress.createUnresolved(host,
+                    (port == null) ? 0 : port);
+        }
+
+        try {
+            final URI uri;
+            if (instance.getUriSpec() != null) {
+                uri = new URI(instance.buildUriSpec());
+            } else {
+                uri = new URI(secure ? "https" : "http", null, host,
+                        (port == null) ? -1 : port, null, null, null);
+            }
+            return new Endpoint(instance, address, uri);
+        } catch (final URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid URI of instance "
+                    + instance.getId(), e);
+        }
+    }
+
+    public ServiceInstance<InstanceMetadata> getInstance() {
+        return instance;
+    }
+
+    public String getId() {
+        return instance.getId();
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    @Nullable
+    public InstanceMetadata getMetadata() {
+        return instance.getPayload();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("id", instance.getId())
+                .add("address", address).add("uri", uri).toString();
+    }
+}
@@ -0,0 +1,108 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.Immutable;
+import com.google.common.base.Objects;
+
+/**
+ * Settings of a {@link HedgingExecutor}.
+ *
+ * A backup request is sent to another instance once the first one has not
+ * answered within the given percentile of recent latencies, bounded by a
+ * minimum and a maximum delay. Until enough latencies were recorded, the
+ * maximum delay is used. Hedges are paid for by a budget which earns
+ * {@link #getBudgetRatio()} of a hedge per request, up to
+ * {@link #getMaxBudget()} hedges, so hedging adds at most that fraction of
+ * the load.
+ */
+@Immutable
+public final class HedgePolicy {
+
+    private static final double DEFAULT_PERCENTILE = 0.95;
+    private static final long DEFAULT_MIN_DELAY_MILLIS = 1;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 1000;
+    private static final double DEFAULT_BUDGET_RATIO = 0.1;
+    private static final int DEFAULT_MAX_BUDGET = 10;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    private final double budgetRatio;
+    private final int maxBudget;
+
+    /**
+     * Constructor using the default settings: hedge at the 95th percentile,
+     * between 1 millisecond and 1 second, for at most 10% of requests with
+     * bursts of 10 hedges.
+     */
+    public HedgePolicy() {
+        this(DEFAULT_PERCENTILE, DEFAULT_MIN_DELAY_MILLIS,
+                DEFAULT_MAX_DELAY_MILLIS, DEFAULT_BUDGET_RATIO,
+                DEFAULT_MAX_BUDGET, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param percentile
+     *            percentile of recorded latencies, between 0 and 1, after
+     *            which a hedge is sent
+     * @param minDelay
+     *            minimum delay before a hedge is sent
+     * @param maxDelay
+     *            maximum delay before a hedge is sent
+     * @param budgetRatio
+     *            fraction of a hedge, between 0 and 1, earned by each request
+     * @param maxBudget
+     *            maximum number of hedges which can be saved up
+     * @param unit
+     *            {@link TimeUnit} of minDelay and maxDelay
+     */
+    public HedgePolicy(final double percentile, final long minDelay,
+            final long maxDelay, final double budgetRatio,
+            final int maxBudget, final TimeUnit unit) {
+        checkArgument(percentile > 0 && percentile < 1,
+                "percentile must be between 0 and 1");
+        checkArgument(minDelay >= 0, "minDelay cannot be negative");
+        checkArgument(maxDelay >= minDelay,
+                "maxDelay cannot be lower than minDelay");
+        checkArgument(budgetRatio >= 0 && budgetRatio <= 1,
+                "budgetRatio must be between 0 and 1");
+        checkArgument(maxBudget > 0, "maxBudget must be positive");
+        this.percentile = percentile;
+        this.minDelayNanos = unit.toNanos(minDelay);
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.budgetRatio = budgetRatio;
+        this.maxBudget = maxBudget;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public long getMinDelayNanos() {
+        return minDelayNanos;
+    }
+
+    public long getMaxDelayNanos() {
+        return maxDelayNanos;
+    }
+
+    public double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    public int getMaxBudget() {
+        return maxBudget;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("percentile", percentile)
+                .add("minDelayNanos", minDelayNanos)
+                .add("maxDelayNanos", maxDelayNanos)
+                .add("budgetRatio", budgetRatio).add("maxBudget", maxBudget)
+                .toString();
+    }
+}
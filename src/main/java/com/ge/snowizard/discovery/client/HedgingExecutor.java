@@ -0,0 +1,357 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceInstance;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Sends requests to instances of a service selected by a
+ * {@link DiscoveryClient}, and sends a backup request to a different
+ * instance when the first one is slow to answer. The first response wins
+ * and the other request is cancelled.
+ *
+ * The delay before hedging follows a percentile of the latencies recorded
+ * by this executor, and hedges are limited by a {@link RetryBudget} earned
+ * by every request, both configured by a {@link HedgePolicy}. Outcomes are reported
+ * to the client, so circuit breaking and latency-aware strategies see both
+ * requests. A request which lost the race is not counted as an error, and
+ * its latency is recorded as the time it ran before being cancelled, so that
+ * the slow requests which triggered hedges still weigh on the delay.
+ */
+@ThreadSafe
+public class HedgingExecutor {
+
+    /**
+     * Number of latencies to record before the delay follows them.
+     */
+    private static final int MIN_SAMPLES = 32;
+
+    /**
+     * Interval at which the delay is recomputed from recorded latencies.
+     */
+    private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS
+            .toNanos(1);
+
+    /**
+     * Number of attempts at selecting an instance other than the first.
+     */
+    private static final int SELECT_ATTEMPTS = 3;
+
+    private final DiscoveryClient client;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private final HedgePolicy policy;
+    private final RetryBudget budget;
+    private final Histogram latencies = new Histogram(
+            new ExponentiallyDecayingReservoir());
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetExhausted = new AtomicLong();
+
+    private volatile long delayNanos;
+    private volatile long delayRefreshNanos = System.nanoTime();
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            {@link DiscoveryClient} selecting the instances
+     * @param executor
+     *            {@link ExecutorService} the requests are run on
+     * @param scheduler
+     *            {@link ScheduledExecutorService} used to send hedges
+     * @param policy
+     *            {@link HedgePolicy}
+     */
+    public HedgingExecutor(final DiscoveryClient client,
+            final ExecutorService executor,
+            final ScheduledExecutorService scheduler, final HedgePolicy policy) {
+        this.client = checkNotNull(client);
+        this.executor = checkNotNull(executor);
+        this.scheduler = checkNotNull(scheduler);
+        this.policy = checkNotNull(policy);
+        this.budget = new RetryBudget(policy.getBudgetRatio(),
+                policy.getMaxBudget());
+        this.delayNanos = policy.getMaxDelayNanos();
+    }
+
+    /**
+     * Send a request to an instance of the service, hedging it if it is
+     * slow.
+     *
+     * @param request
+     *            {@link InstanceRequest}
+     * @return future response of the first request to succeed, or the error
+     *         of the last one to fail. Cancelling it cancels the requests.
+     */
+    public <V> ListenableFuture<V> submit(final InstanceRequest<V> request) {
+        checkNotNull(request);
+        requests.incrementAndGet();
+        budget.deposit();
+
+        final Endpoint primary;
+        try {
+            primary = client.getEndpoint();
+        } catch (final Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        if (primary == null) {
+            return Futures.immediateFailedFuture(new IllegalStateException(
+                    "No instance of " + client.getServiceName()
+                            + " is available"));
+        }
+
+        final Hedge<V> hedge = new Hedge<V>(request);
+        hedge.send(primary, false);
+        if (hedge.result.isDone()) {
+            return hedge.result;
+        }
+
+        ScheduledFuture<?> scheduled = null;
+        try {
+            scheduled = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    hedge(hedge, primary);
+                }
+            }, getDelayNanos(), TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            // shutting down: the request is already sent, just not hedged
+        }
+        final ScheduledFuture<?> timer = scheduled;
+        hedge.result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (timer != null) {
+                    timer.cancel(false);
+                }
+                if (hedge.result.isCancelled()) {
+                    hedge.cancelAll(null);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return hedge.result;
+    }
+
+    /**
+     * Return the current delay after which a request is hedged.
+     *
+     * @return delay in nanoseconds
+     */
+    public long getDelayNanos() {
+        final long now = System.nanoTime();
+        if ((now - delayRefreshNanos) >= 0
+                && latencies.getCount() >= MIN_SAMPLES) {
+            delayRefreshNanos = now + DELAY_REFRESH_NANOS;
+            final long percentile = (long) latencies.getSnapshot().getValue(
+                    policy.getPercentile());
+            delayNanos = Math.min(
+                    Math.max(percentile, policy.getMinDelayNanos()),
+                    policy.getMaxDelayNanos());
+        }
+        return delayNanos;
+    }
+
+    /**
+     * Return the latencies recorded by this executor.
+     *
+     * @return {@link Histogram} of latencies in nanoseconds
+     */
+    public Histogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Return the number of requests submitted.
+     *
+     * @return number of requests
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Return the number of hedges sent.
+     *
+     * @return number of hedges
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * Return the number of hedges which answered first.
+     *
+     * @return number of hedges won
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Return the number of hedges which were not sent because the budget
+     * was exhausted.
+     *
+     * @return number of hedges refused
+     */
+    public long getBudgetExhausted() {
+        return budgetExhausted.get();
+    }
+
+    private void hedge(final Hedge<?> hedge, final Endpoint primary) {
+        if (hedge.result.isDone()) {
+            return;
+        }
+        final Endpoint secondary = selectOther(primary);
+        if (secondary == null) {
+            return;
+        }
+        if (!budget.tryWithdraw()) {
+            budgetExhausted.incrementAndGet();
+            return;
+        }
+        hedges.incrementAndGet();
+        hedge.send(secondary, true);
+    }
+
+    @Nullable
+    private Endpoint selectOther(final Endpoint primary) {
+        for (int i = 0; i < SELECT_ATTEMPTS; i++) {
+            final Endpoint endpoint;
+            try {
+                endpoint = client.getEndpoint();
+            } catch (final Exception e) {
+                return null;
+            }
+            if (endpoint == null) {
+                return null;
+            }
+            if (!endpoint.getId().equals(primary.getId())) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Requests sent on behalf of one submitted request.
+     */
+    private final class Hedge<V> {
+        final InstanceRequest<V> request;
+        final SettableFuture<V> result = SettableFuture.create();
+        final AtomicInteger pending = new AtomicInteger();
+        final List<Attempt> attempts = Lists.newCopyOnWriteArrayList();
+
+        Hedge(final InstanceRequest<V> request) {
+            this.request = request;
+        }
+
+        void send(final Endpoint endpoint, final boolean hedged) {
+            final Attempt attempt = new Attempt(endpoint, hedged);
+            pending.incrementAndGet();
+            attempts.add(attempt);
+            try {
+                attempt.future = executor.submit(attempt);
+            } catch (final RejectedExecutionException e) {
+                attempts.remove(attempt);
+                fail(e);
+            }
+            if (result.isDone()) {
+                attempt.cancel();
+            }
+        }
+
+        void fail(final Throwable cause) {
+            // the response of another request is still awaited
+            if (pending.decrementAndGet() == 0) {
+                result.setException(cause);
+            }
+        }
+
+        void cancelAll(@Nullable final Attempt winner) {
+            for (final Attempt attempt : attempts) {
+                if (attempt != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        private final class Attempt implements Runnable {
+            final Endpoint endpoint;
+            final boolean hedged;
+            volatile boolean cancelled = false;
+            volatile Future<?> future;
+
+            Attempt(final Endpoint endpoint, final boolean hedged) {
+                this.endpoint = endpoint;
+                this.hedged = hedged;
+            }
+
+            void cancel() {
+                cancelled = true;
+                final Future<?> current = future;
+                if (current != null) {
+                    current.cancel(true);
+                }
+            }
+
+            @Override
+            public void run() {
+                if (cancelled || result.isDone()) {
+                    pending.decrementAndGet();
+                    return;
+                }
+                final ServiceInstance<InstanceMetadata> instance = endpoint
+                        .getInstance();
+                client.noteStart(instance);
+                final long start = System.nanoTime();
+                final V response;
+                try {
+                    response = request.execute(endpoint);
+                } catch (final Exception e) {
+                    final long elapsed = System.nanoTime() - start;
+                    if (cancelled) {
+                        // lost the race: its latency so far is a lower
+                        // bound, and the instance did not fail
+                        client.noteSuccess(instance, elapsed,
+                                TimeUnit.NANOSECONDS);
+                        latencies.update(elapsed);
+                    } else {
+                        client.noteError(instance);
+                    }
+                    fail(e);
+                    return;
+                }
+                final long latency = System.nanoTime() - start;
+                client.noteSuccess(instance, latency, TimeUnit.NANOSECONDS);
+                latencies.update(latency);
+                pending.decrementAndGet();
+                if (result.set(response)) {
+                    if (hedged) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    cancelAll(this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.x.discovery.ServiceCache;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.ServiceCacheListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Closeables;
+
+/**
+ * Watch-driven, in-memory cache of the instances registered under a single
+ * service name. Reads are served from an immutable snapshot which is only
+ * rebuilt when ZooKeeper reports a change.
+ *
+ * When an {@link InstanceSnapshotStore} is given, every change is also
+ * persisted locally, on the scheduler if there is one, and a later
+ * {@link #start()} restores the persisted instances immediately and connects
+ * to ZooKeeper in the background.
+ *
+ * When a debounce window is given, a burst of changes is folded into a single
+ * rebuild published at the end of the window which started with the first
+ * change. The underlying {@link ServiceCache} already fetches only the added
+ * or updated znodes and drops removed ones, so the only per-change work left
+ * is scheduling.
+ */
+@ThreadSafe
+public class InstanceCache implements ServiceCacheListener, Closeable {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(InstanceCache.class);
+
+    private static final long MIN_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long MAX_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final String serviceName;
+    private final ServiceDiscovery<InstanceMetadata> discovery;
+    private final InstanceSnapshotStore store;
+    private final ScheduledExecutorService scheduler;
+    private final long debounceNanos;
+    private final AtomicInteger pendingChanges = new AtomicInteger();
+    private final Histogram coalescedChanges = new Histogram(
+            new ExponentiallyDecayingReservoir());
+    private final Runnable scheduledRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+    private final Runnable persist = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+    private final AtomicReference<ImmutableList<ServiceInstance<InstanceMetadata>>> pendingWrite = new AtomicReference<ImmutableList<ServiceInstance<InstanceMetadata>>>();
+    private final Object writeLock = new Object();
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile long changedMillis = 0;
+    private final ListenerContainer<InstanceCacheListener> listeners = new ListenerContainer<InstanceCacheListener>();
+
+    @GuardedBy("this")
+    private volatile ImmutableList<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+            .of();
+
+    @GuardedBy("this")
+    private ServiceCache<InstanceMetadata> cache;
+
+    @GuardedBy("this")
+    private volatile boolean restored = false;
+
+    @GuardedBy("this")
+    private volatile boolean closed = false;
+
+    @GuardedBy("this")
+    private Thread starter;
+
+    /**
+     * Constructor
+     *
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param serviceName
+     *            name of the service to cache
+     */
+    public InstanceCache(final ServiceDiscovery<InstanceMetadata> discovery,
+            final String serviceName) {
+        this(discovery, serviceName, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param serviceName
+     *            name of the service to cache
+     * @param store
+     *            {@link InstanceSnapshotStore} used to persist the instances,
+     *            or null
+     */
+    public InstanceCache(final ServiceDiscovery<InstanceMetadata> discovery,
+            final String serviceName,
+            @Nullable final InstanceSnapshotStore store) {
+        this(discovery, serviceName, store, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param serviceName
+     *            name of the service to cache
+     * @param store
+     *            {@link InstanceSnapshotStore} used to persist the instances,
+     *            or null
+     * @param scheduler
+     *            executor used to publish coalesced changes and to persist
+     *            them, or null
+     * @param debounce
+     *            window during which changes are coalesced, or 0 to publish
+     *            every change immediately
+     * @param unit
+     *            {@link TimeUnit} of debounce
+     */
+    public InstanceCache(final ServiceDiscovery<InstanceMetadata> discovery,
+            final String serviceName,
+            @Nullable final InstanceSnapshotStore store,
+            @Nullable final ScheduledExecutorService scheduler,
+            final long debounce, final TimeUnit unit) {
+        this.serviceName = checkNotNull(serviceName);
+        this.discovery = checkNotNull(discovery);
+        this.store = store;
+        this.scheduler = scheduler;
+        this.debounceNanos = (scheduler == null) ? 0 : unit.toNanos(debounce);
+    }
+
+    /**
+     * Start the underlying {@link ServiceCache} and prime the snapshot. If a
+     * persisted snapshot is available it is served right away and the
+     * {@link ServiceCache} is started in the background; otherwise this
+     * blocks until ZooKeeper has answered.
+     *
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        if (store != null) {
+            final ImmutableList<ServiceInstance<InstanceMetadata>> persisted = store
+                    .read(serviceName);
+            if (!persisted.isEmpty()) {
+                restore(persisted);
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        startInBackground();
+                    }
+                }, "instance-cache-" + serviceName);
+                thread.setDaemon(true);
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    starter = thread;
+                }
+                thread.start();
+                return;
+            }
+        }
+
+        final ServiceCache<InstanceMetadata> started = newCache();
+        try {
+            started.start();
+        } catch (final Exception e) {
+            Closeables.close(started, true);
+            throw e;
+        }
+        install(started);
+    }
+
+    /**
+     * Return the name of the service being cached.
+     *
+     * @return service name
+     */
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Return the current snapshot of instances. This does not contact
+     * ZooKeeper and does not allocate.
+     *
+     * @return immutable list of service instances
+     */
+    public ImmutableList<ServiceInstance<InstanceMetadata>> getInstances() {
+        return instances;
+    }
+
+    /**
+     * Return whether the instances were restored from the
+     * {@link InstanceSnapshotStore} and have not been confirmed by ZooKeeper
+     * yet.
+     *
+     * @return true if the instances may be stale
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Return the number of times the snapshot has changed.
+     *
+     * @return number of refreshes
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
+
+    /**
+     * Return when the snapshot last changed. The snapshot is only rebuilt
+     * when ZooKeeper reports a change, so a quiet service keeps an old
+     * snapshot without it being stale.
+     *
+     * @return time of the last change in milliseconds since the epoch, or 0
+     */
+    public long getLastChangeMillis() {
+        return changedMillis;
+    }
+
+    /**
+     * Return the distribution of the number of ZooKeeper changes folded into
+     * each rebuild of the snapshot.
+     *
+     * @return {@link Histogram} of changes per rebuild
+     */
+    public Histogram getCoalescedChanges() {
+        return coalescedChanges;
+    }
+
+    /**
+     * Return the {@link Listenable} used to subscribe to snapshot changes.
+     *
+     * @return {@link Listenable}
+     */
+    public Listenable<InstanceCacheListener> getListenable() {
+        return listeners;
+    }
+
+    @Override
+    public void cacheChanged() {
+        if (debounceNanos == 0) {
+            pendingChanges.incrementAndGet();
+            refresh();
+        } else if (pendingChanges.getAndIncrement() == 0) {
+            try {
+                scheduler.schedule(scheduledRefresh, debounceNanos,
+                        TimeUnit.NANOSECONDS);
+            } catch (final RejectedExecutionException e) {
+                // otherwise no later change would ever schedule a refresh
+                LOGGER.debug("Refreshing instances of {} now, the scheduler"
+                        + " is shutting down", serviceName);
+                refresh();
+            }
+        }
+    }
+
+    @Override
+    public void stateChanged(final CuratorFramework client,
+            final ConnectionState newState) {
+        // the underlying PathChildrenCache re-establishes its watches on
+        // reconnect and will report any changes through cacheChanged()
+    }
+
+    @Override
+    public void close() throws IOException {
+        final ServiceCache<InstanceMetadata> current;
+        synchronized (this) {
+            closed = true;
+            current = cache;
+            cache = null;
+            if (starter != null) {
+                // stops waiting for ZooKeeper or for the next attempt
+                starter.interrupt();
+                starter = null;
+            }
+        }
+        listeners.clear();
+        if (current != null) {
+            current.removeListener(this);
+            current.close();
+        }
+    }
+
+    private ServiceCache<InstanceMetadata> newCache() {
+        return discovery.serviceCacheBuilder().name(serviceName).build();
+    }
+
+    /**
+     * Make a started {@link ServiceCache} the source of the snapshot.
+     */
+    private void install(final ServiceCache<InstanceMetadata> started)
+            throws IOException {
+        synchronized (this) {
+            if (closed) {
+                started.close();
+                return;
+            }
+            cache = started;
+            starter = null;
+            cache.addListener(this);
+        }
+        refresh();
+    }
+
+    /**
+     * Start a {@link ServiceCache} after a restore, retrying with a fresh
+     * cache until ZooKeeper answers. The restored instances are served until
+     * a complete view has been loaded.
+     */
+    private void startInBackground() {
+        long backoff = MIN_RETRY_MILLIS;
+        while (!closed) {
+            final ServiceCache<InstanceMetadata> started = newCache();
+            try {
+                started.start();
+                install(started);
+                return;
+            } catch (final Exception e) {
+                LOGGER.warn("Unable to load instances of {} from ZooKeeper,"
+                        + " serving restored instances: {}", serviceName,
+                        e.toString());
+                try {
+                    Closeables.close(started, true);
+                    Thread.sleep(backoff);
+                } catch (final IOException | InterruptedException ignored) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Serve instances restored from the {@link InstanceSnapshotStore} until
+     * ZooKeeper has answered.
+     */
+    private synchronized void restore(
+            final ImmutableList<ServiceInstance<InstanceMetadata>> persisted) {
+        LOGGER.info("Restored {} instances of {} from snapshot",
+                persisted.size(), serviceName);
+        restored = true;
+        publish(persisted);
+    }
+
+    /**
+     * Rebuild the snapshot, notify listeners and persist it if it changed.
+     * The snapshot is written outside of the lock, so that neither the
+     * Curator event thread nor other refreshes wait on the disk.
+     */
+    private void refresh() {
+        if (rebuild()) {
+            if (scheduler == null) {
+                persist();
+                return;
+            }
+            try {
+                scheduler.execute(persist);
+            } catch (final RejectedExecutionException e) {
+                LOGGER.debug("Not persisting instances of {}, shutting down",
+                        serviceName);
+            }
+        }
+    }
+
+    /**
+     * Rebuild the snapshot from the underlying {@link ServiceCache} and
+     * notify listeners if any instance was added, removed or updated. A
+     * change which leaves the instances as they were, such as a registration
+     * written again unchanged, is not published.
+     *
+     * @return true if the snapshot must be persisted
+     */
+    private synchronized boolean rebuild() {
+        if (cache == null) {
+            return false;
+        }
+        final int changes = pendingChanges.getAndSet(0);
+        if (changes > 0) {
+            coalescedChanges.update(changes);
+        }
+        final ImmutableList<ServiceInstance<InstanceMetadata>> current = ImmutableList
+                .copyOf(cache.getInstances());
+        final boolean changed = !sameInstances(current, instances);
+        // a restored snapshot confirmed by ZooKeeper is written again so
+        // that it doesn't age out
+        final boolean confirmed = restored;
+        restored = false;
+        if (changed) {
+            publish(current);
+        }
+        if (store == null || !(changed || confirmed)) {
+            return false;
+        }
+        // set under the lock so that the latest snapshot is always written
+        // last, whichever thread ends up writing it
+        pendingWrite.set(current);
+        return true;
+    }
+
+    /**
+     * Return whether two lists hold the same instances, in any order, since
+     * the order of the instances of a {@link ServiceCache} isn't stable.
+     */
+    private static boolean sameInstances(
+            final ImmutableList<ServiceInstance<InstanceMetadata>> current,
+            final ImmutableList<ServiceInstance<InstanceMetadata>> previous) {
+        if (current.equals(previous)) {
+            return true;
+        }
+        return (current.size() == previous.size())
+                && ImmutableSet.copyOf(previous).containsAll(current);
+    }
+
+    /**
+     * Write the latest snapshot not yet persisted, if any.
+     */
+    private void persist() {
+        synchronized (writeLock) {
+            final ImmutableList<ServiceInstance<InstanceMetadata>> pending = pendingWrite
+                    .getAndSet(null);
+            if (pending == null) {
+                return;
+            }
+            try {
+                store.write(serviceName, pending);
+            } catch (final Exception e) {
+                LOGGER.warn("Unable to persist instances of " + serviceName, e);
+            }
+        }
+    }
+
+    /**
+     * Replace the snapshot and notify listeners. Listeners are called while
+     * holding the lock so that they observe snapshots in order.
+     */
+    @GuardedBy("this")
+    private void publish(
+            final ImmutableList<ServiceInstance<InstanceMetadata>> current) {
+        instances = current;
+        changedMillis = System.currentTimeMillis();
+        refreshes.incrementAndGet();
+        listeners.forEach(new Function<InstanceCacheListener, Void>() {
+            @Override
+            public Void apply(final InstanceCacheListener listener) {
+                listener.instancesChanged(InstanceCache.this);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,77 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+/**
+ * Creates the {@link InstanceCache} instances used by {@link DiscoveryClient},
+ * sharing the persistence and update-coalescing settings between them.
+ */
+@ThreadSafe
+public class InstanceCacheFactory {
+
+    private final ServiceDiscovery<InstanceMetadata> discovery;
+    private final InstanceSnapshotStore store;
+    private final ScheduledExecutorService scheduler;
+    private final long debounceNanos;
+
+    /**
+     * Constructor for caches which are neither persisted nor debounced.
+     *
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     */
+    public InstanceCacheFactory(
+            final ServiceDiscovery<InstanceMetadata> discovery) {
+        this(discovery, null, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param store
+     *            {@link InstanceSnapshotStore} used to persist the instances,
+     *            or null
+     * @param scheduler
+     *            executor used to publish coalesced updates, or null to
+     *            publish every change immediately
+     * @param debounce
+     *            window during which changes are coalesced into a single
+     *            update, or 0 to publish every change immediately
+     * @param unit
+     *            {@link TimeUnit} of debounce
+     */
+    public InstanceCacheFactory(
+            final ServiceDiscovery<InstanceMetadata> discovery,
+            @Nullable final InstanceSnapshotStore store,
+            @Nullable final ScheduledExecutorService scheduler,
+            final long debounce, final TimeUnit unit) {
+        checkArgument(debounce >= 0, "debounce cannot be negative");
+        checkArgument(debounce == 0 || scheduler != null,
+                "a scheduler is required to debounce updates");
+        this.discovery = checkNotNull(discovery);
+        this.store = store;
+        this.scheduler = scheduler;
+        this.debounceNanos = unit.toNanos(debounce);
+    }
+
+    /**
+     * Return a new, unstarted {@link InstanceCache} for a service.
+     *
+     * @param serviceName
+     *            name of the service to cache
+     * @return {@link InstanceCache}
+     */
+    public InstanceCache newCache(final String serviceName) {
+        return new InstanceCache(discovery, serviceName, store, scheduler,
+                debounceNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,17 @@
+package com.ge.snowizard.discovery.client;
+
+/**
+ * Receives notifications when an {@link InstanceCache} publishes a new
+ * snapshot.
+ */
+public interface InstanceCacheListener {
+
+    /**
+     * Called after the snapshot returned by {@link InstanceCache#getInstances()}
+     * has been replaced.
+     *
+     * @param cache
+     *            the {@link InstanceCache} which changed
+     */
+    void instancesChanged(InstanceCache cache);
+}
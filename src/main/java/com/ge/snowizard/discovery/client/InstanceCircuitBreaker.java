@@ -0,0 +1,422 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Per-instance circuit breaker, configured by a {@link CircuitBreakerPolicy}.
+ *
+ * Each instance has a ring of buckets covering the sliding window. A bucket
+ * is a single {@code long} packing the window position it belongs to and its
+ * counts of calls, failures and slow calls, so an outcome is recorded with
+ * one compare-and-set and a stale bucket is recycled by the same operation.
+ * Counts saturate at 65535 calls per bucket. State transitions are rare and
+ * are made while holding the lock of the instance's circuit.
+ *
+ * While a circuit is half-open, only as many outcomes are counted as
+ * requests were let through by {@link #tryAcquire}, and successes of
+ * requests sent before the circuit half-opened are ignored. Requests let
+ * through which never report back count as successful once the open
+ * duration has passed, so that callers which only report errors still see
+ * the circuit close.
+ */
+@ThreadSafe
+public class InstanceCircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(InstanceCircuitBreaker.class);
+
+    /**
+     * State of the circuit of an instance
+     */
+    public enum State {
+        /**
+         * Requests are let through and outcomes are counted.
+         */
+        CLOSED,
+
+        /**
+         * The instance is not selected until the open duration has passed.
+         */
+        OPEN,
+
+        /**
+         * A limited number of requests are let through to decide whether the
+         * circuit closes or opens again.
+         */
+        HALF_OPEN
+    }
+
+    private static final long COUNT_MASK = 0xFFFF;
+    private static final int TAG_SHIFT = 48;
+    private static final int CALLS_SHIFT = 32;
+    private static final int FAILURES_SHIFT = 16;
+
+    private final CircuitBreakerPolicy policy;
+    private final long bucketNanos;
+    private final long originNanos = System.nanoTime();
+    private final ConcurrentMap<String, Circuit> circuits = Maps
+            .newConcurrentMap();
+
+    /**
+     * Constructor
+     *
+     * @param policy
+     *            {@link CircuitBreakerPolicy}
+     */
+    public InstanceCircuitBreaker(final CircuitBreakerPolicy policy) {
+        this.policy = checkNotNull(policy);
+        this.bucketNanos = Math.max(
+                policy.getWindowNanos() / policy.getBuckets(), 1);
+    }
+
+    /**
+     * Record a successful call to an instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the call was made to
+     * @param latencyNanos
+     *            latency of the call in nanoseconds
+     * @return true if the availability of the instance changed
+     */
+    public boolean onSuccess(final ServiceInstance<?> instance,
+            final long latencyNanos) {
+        return record(instance, false,
+                latencyNanos >= policy.getSlowCallNanos(), latencyNanos);
+    }
+
+    /**
+     * Record a failed call to an instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the call was made to
+     * @return true if the availability of the instance changed
+     */
+    public boolean onError(final ServiceInstance<?> instance) {
+        return record(instance, true, false, 0);
+    }
+
+    /**
+     * Return whether an instance may currently be selected: its circuit is
+     * closed, or half-open with requests left to let through.
+     *
+     * @param instance
+     *            {@link ServiceInstance} to check
+     * @param now
+     *            current {@link System#nanoTime()}
+     * @return true if the instance is available, otherwise false
+     */
+    public boolean isAvailable(final ServiceInstance<?> instance,
+            final long now) {
+        final Circuit circuit = circuits.get(instance.getId());
+        if (circuit == null) {
+            return true;
+        }
+        final State state = advance(circuit, now);
+        return (state == State.CLOSED)
+                || (state == State.HALF_OPEN && circuit.permits.get() > 0);
+    }
+
+    /**
+     * Take the permission to send a request to an instance which was
+     * selected. This always succeeds unless the circuit is half-open, in
+     * which case only {@link CircuitBreakerPolicy#getHalfOpenCalls()}
+     * requests are let through.
+     *
+     * @param instance
+     *            selected {@link ServiceInstance}
+     * @return true if the request may be sent, otherwise false
+     */
+    public boolean tryAcquire(final ServiceInstance<?> instance) {
+        final Circuit circuit = circuits.get(instance.getId());
+        if (circuit == null) {
+            return true;
+        }
+        final State state = advance(circuit, System.nanoTime());
+        if (state == State.HALF_OPEN) {
+            return circuit.takePermit();
+        }
+        return (state == State.CLOSED);
+    }
+
+    /**
+     * Return the state of the circuit of an instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance} to check
+     * @return {@link State}
+     */
+    public State getState(final ServiceInstance<?> instance) {
+        final Circuit circuit = circuits.get(instance.getId());
+        return (circuit == null) ? State.CLOSED : circuit.state;
+    }
+
+    /**
+     * Return the {@link System#nanoTime()} at which an unavailable instance
+     * should be checked again.
+     *
+     * @param instance
+     *            {@link ServiceInstance} to check
+     * @return time of the next state transition in nanoseconds
+     */
+    public long getRetryAt(final ServiceInstance<?> instance) {
+        final Circuit circuit = circuits.get(instance.getId());
+        return (circuit == null) ? 0 : circuit.deadlineNanos;
+    }
+
+    /**
+     * Return the number of instances whose circuit is not closed.
+     *
+     * @return number of open or half-open circuits
+     */
+    public int getOpenCircuits() {
+        int open = 0;
+        for (final Circuit circuit : circuits.values()) {
+            if (circuit.state != State.CLOSED) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * Forget about instances which are no longer registered. Circuits of
+     * registered instances are kept even when idle, so that an outcome is
+     * never recorded on a circuit which was just removed.
+     *
+     * @param instances
+     *            currently registered instances
+     */
+    public void retain(final Collection<? extends ServiceInstance<?>> instances) {
+        if (circuits.isEmpty()) {
+            return;
+        }
+        final Set<String> current = Sets.newHashSet();
+        for (final ServiceInstance<?> instance : instances) {
+            current.add(instance.getId());
+        }
+        circuits.keySet().retainAll(current);
+    }
+
+    private boolean record(final ServiceInstance<?> instance,
+            final boolean failure, final boolean slow, final long latencyNanos) {
+        final Circuit circuit = getCircuit(instance.getId());
+        final State state = circuit.state;
+        if (state == State.CLOSED) {
+            final long now = System.nanoTime();
+            final long epoch = epoch(now);
+            circuit.add(epoch, failure, slow);
+            return (failure || slow) && shouldOpen(circuit, epoch)
+                    && open(circuit, now, State.CLOSED);
+        }
+        if (state == State.HALF_OPEN) {
+            final long now = System.nanoTime();
+            synchronized (circuit) {
+                if (circuit.state != State.HALF_OPEN
+                        || (now - latencyNanos - circuit.halfOpenedNanos) < 0
+                        || circuit.probes >= granted(circuit)) {
+                    return false;
+                }
+                circuit.probes++;
+                if (failure || slow) {
+                    circuit.probeFailures++;
+                }
+                if (circuit.probes >= policy.getHalfOpenCalls()) {
+                    resolve(circuit, now);
+                    return true;
+                }
+            }
+        }
+        // outcomes of requests sent before the circuit opened are ignored
+        return false;
+    }
+
+    private Circuit getCircuit(final String id) {
+        Circuit circuit = circuits.get(id);
+        if (circuit == null) {
+            final Circuit created = new Circuit(id, policy.getBuckets());
+            circuit = circuits.putIfAbsent(id, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    private long epoch(final long now) {
+        return Math.max(now - originNanos, 0) / bucketNanos;
+    }
+
+    private boolean shouldOpen(final Circuit circuit, final long epoch) {
+        final long[] counts = circuit.sum(epoch);
+        final long calls = counts[0];
+        if (calls < policy.getMinimumCalls()) {
+            return false;
+        }
+        return (counts[1] >= calls * policy.getFailureRateThreshold())
+                || (counts[2] >= calls * policy.getSlowCallRateThreshold());
+    }
+
+    private boolean open(final Circuit circuit, final long now,
+            final State expected) {
+        synchronized (circuit) {
+            if (circuit.state != expected) {
+                return false;
+            }
+            LOGGER.info("Opening circuit of instance {}", circuit.id);
+            circuit.deadlineNanos = now + policy.getOpenNanos();
+            circuit.state = State.OPEN;
+            return true;
+        }
+    }
+
+    /**
+     * Make the time-based transitions of a circuit: from open to half-open
+     * once the open duration has passed, and out of half-open if the
+     * requests let through did not report back within the open duration.
+     */
+    private State advance(final Circuit circuit, final long now) {
+        final State state = circuit.state;
+        if (state == State.CLOSED || (now - circuit.deadlineNanos) < 0) {
+            return state;
+        }
+        synchronized (circuit) {
+            if ((now - circuit.deadlineNanos) >= 0) {
+                if (circuit.state == State.OPEN) {
+                    LOGGER.debug("Half-opening circuit of instance {}",
+                            circuit.id);
+                    circuit.probes = 0;
+                    circuit.probeFailures = 0;
+                    circuit.permits.set(policy.getHalfOpenCalls());
+                    circuit.halfOpenedNanos = now;
+                    circuit.deadlineNanos = now + policy.getOpenNanos();
+                    circuit.state = State.HALF_OPEN;
+                } else if (circuit.state == State.HALF_OPEN) {
+                    resolve(circuit, now);
+                }
+            }
+            return circuit.state;
+        }
+    }
+
+    /**
+     * Return the number of requests let through since the circuit
+     * half-opened.
+     */
+    private int granted(final Circuit circuit) {
+        return policy.getHalfOpenCalls() - circuit.permits.get();
+    }
+
+    /**
+     * Close or re-open a half-open circuit depending on the outcomes of the
+     * requests let through. Requests which did not report back count as
+     * successful.
+     */
+    @GuardedBy("circuit")
+    private void resolve(final Circuit circuit, final long now) {
+        final int failures = circuit.probeFailures;
+        if (failures > 0
+                && failures >= Math.max(granted(circuit), 1)
+                        * policy.getFailureRateThreshold()) {
+            LOGGER.info("Re-opening circuit of instance {}", circuit.id);
+            circuit.deadlineNanos = now + policy.getOpenNanos();
+            circuit.state = State.OPEN;
+        } else {
+            LOGGER.info("Closing circuit of instance {}", circuit.id);
+            circuit.clear();
+            circuit.state = State.CLOSED;
+        }
+    }
+
+    private static final class Circuit {
+        final String id;
+        final AtomicLongArray buckets;
+        final AtomicInteger permits = new AtomicInteger();
+        @GuardedBy("this")
+        int probes;
+        @GuardedBy("this")
+        int probeFailures;
+        @GuardedBy("this")
+        long halfOpenedNanos;
+        volatile State state = State.CLOSED;
+        volatile long deadlineNanos;
+
+        Circuit(final String id, final int buckets) {
+            this.id = id;
+            this.buckets = new AtomicLongArray(buckets);
+        }
+
+        /**
+         * Take one of the permits of a half-open circuit, never going below
+         * zero so that rejected requests don't count as let through.
+         */
+        boolean takePermit() {
+            for (;;) {
+                final int current = permits.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (permits.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void add(final long epoch, final boolean failure, final boolean slow) {
+            final int index = (int) (epoch % buckets.length());
+            final long tag = epoch & COUNT_MASK;
+            for (;;) {
+                final long current = buckets.get(index);
+                long next = ((current >>> TAG_SHIFT) == tag) ? current
+                        : (tag << TAG_SHIFT);
+                if (((next >>> CALLS_SHIFT) & COUNT_MASK) == COUNT_MASK) {
+                    return;
+                }
+                next += 1L << CALLS_SHIFT;
+                if (failure) {
+                    next += 1L << FAILURES_SHIFT;
+                }
+                if (slow) {
+                    next += 1L;
+                }
+                if (buckets.compareAndSet(index, current, next)) {
+                    return;
+                }
+            }
+        }
+
+        long[] sum(final long epoch) {
+            final long[] counts = new long[3];
+            for (int i = 0; i < buckets.length(); i++) {
+                final long value = buckets.get(i);
+                if (isCurrent(value, epoch)) {
+                    counts[0] += (value >>> CALLS_SHIFT) & COUNT_MASK;
+                    counts[1] += (value >>> FAILURES_SHIFT) & COUNT_MASK;
+                    counts[2] += value & COUNT_MASK;
+                }
+            }
+            return counts;
+        }
+
+        void clear() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+        }
+
+        private boolean isCurrent(final long value, final long epoch) {
+            final long age = (epoch - (value >>> TAG_SHIFT)) & COUNT_MASK;
+            return age < buckets.length();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.concurrent.Immutable;
+import org.apache.curator.x.discovery.ServiceInstance;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Incremental change between two successive views of the instances of a
+ * service, as emitted by an {@link InstanceDiffPublisher}. Instances are
+ * matched by ID; an instance whose registration changed, e.g. its load or
+ * draining status, is reported as updated with its new registration.
+ */
+@Immutable
+public final class InstanceDiff {
+
+    private final String serviceName;
+    private final ImmutableList<ServiceInstance<InstanceMetadata>> added;
+    private final ImmutableList<ServiceInstance<InstanceMetadata>> removed;
+    private final ImmutableList<ServiceInstance<InstanceMetadata>> updated;
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name of the service
+     * @param added
+     *            instances which were registered
+     * @param removed
+     *            instances which were unregistered
+     * @param updated
+     *            new registrations of instances which changed
+     */
+    public InstanceDiff(final String serviceName,
+            final ImmutableList<ServiceInstance<InstanceMetadata>> added,
+            final ImmutableList<ServiceInstance<InstanceMetadata>> removed,
+            final ImmutableList<ServiceInstance<InstanceMetadata>> updated) {
+        this.serviceName = checkNotNull(serviceName);
+        this.added = checkNotNull(added);
+        this.removed = checkNotNull(removed);
+        this.updated = checkNotNull(updated);
+    }
+
+    /**
+     * Compute the change from one view of the instances of a service to
+     * another.
+     *
+     * @param serviceName
+     *            name of the service
+     * @param before
+     *            previous instances
+     * @param after
+     *            current instances
+     * @return {@link InstanceDiff}
+     */
+    public static InstanceDiff between(final String serviceName,
+            final List<ServiceInstance<InstanceMetadata>> before,
+            final List<ServiceInstance<InstanceMetadata>> after) {
+        final Map<String, ServiceInstance<InstanceMetadata>> previous = Maps
+                .newHashMapWithExpectedSize(before.size());
+        for (final ServiceInstance<InstanceMetadata> instance : before) {
+            previous.put(instance.getId(), instance);
+        }
+
+        final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> added = ImmutableList
+                .builder();
+        final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> updated = ImmutableList
+                .builder();
+        for (final ServiceInstance<InstanceMetadata> instance : after) {
+            final ServiceInstance<InstanceMetadata> old = previous
+                    .remove(instance.getId());
+            if (old == null) {
+                added.add(instance);
+            } else if (!old.equals(instance)) {
+                updated.add(instance);
+            }
+        }
+        return new InstanceDiff(serviceName, added.build(),
+                ImmutableList.copyOf(previous.values()), updated.build());
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public ImmutableList<ServiceInstance<InstanceMetadata>> getAdded() {
+        return added;
+    }
+
+    public ImmutableList<ServiceInstance<InstanceMetadata>> getRemoved() {
+        return removed;
+    }
+
+    public ImmutableList<ServiceInstance<InstanceMetadata>> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * Return whether nothing changed.
+     *
+     * @return true if no instance was added, removed or updated
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && updated.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).add("serviceName", serviceName)
+                .add("added", added.size()).add("removed", removed.size())
+                .add("updated", updated.size()).toString();
+    }
+}
@@ -0,0 +1,229 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Pushes the changes of the instances of a service to subscribers as ordered,
+ * incremental {@link InstanceDiff}s. It is registered as an
+ * {@link InstanceCacheListener}, so it is driven by the same watches and
+ * debounce window as the {@link InstanceCache} it listens to.
+ *
+ * Subscribers control the flow through {@link InstanceDiffSubscription}. No
+ * queue is kept per subscriber: each one only remembers the instances it was
+ * last handed, and its next diff is computed against the latest snapshot
+ * once it has demand. A slow subscriber therefore receives the changes it
+ * missed coalesced into one diff, and never holds on to more than one
+ * snapshot.
+ */
+@ThreadSafe
+public class InstanceDiffPublisher implements InstanceCacheListener {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(InstanceDiffPublisher.class);
+
+    private final String serviceName;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    @Nullable
+    private volatile ImmutableList<ServiceInstance<InstanceMetadata>> latest;
+    private volatile boolean completed = false;
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name of the service whose changes are published
+     */
+    public InstanceDiffPublisher(final String serviceName) {
+        this.serviceName = checkNotNull(serviceName);
+    }
+
+    /**
+     * Subscribe to the changes of the instances, delivering them on the
+     * thread which reports the change or requests diffs. Subscribers must
+     * then return quickly, as the {@link InstanceCache} is locked while its
+     * listeners are notified.
+     *
+     * @param subscriber
+     *            {@link InstanceDiffSubscriber}
+     */
+    public void subscribe(final InstanceDiffSubscriber subscriber) {
+        subscribe(subscriber, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Subscribe to the changes of the instances, delivering them with the
+     * given {@link Executor}. A subscriber is never called concurrently,
+     * even if the executor has several threads.
+     *
+     * @param subscriber
+     *            {@link InstanceDiffSubscriber}
+     * @param executor
+     *            {@link Executor} used to call the subscriber
+     */
+    public void subscribe(final InstanceDiffSubscriber subscriber,
+            final Executor executor) {
+        final Subscription subscription = new Subscription(
+                checkNotNull(subscriber), checkNotNull(executor));
+        subscriptions.add(subscription);
+        subscription.signal();
+    }
+
+    /**
+     * Return the number of active subscriptions.
+     *
+     * @return number of subscribers
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void instancesChanged(final InstanceCache cache) {
+        latest = cache.getInstances();
+        for (final Subscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Complete every subscription once it has been handed the latest
+     * instances, and any later subscription right away.
+     */
+    public void complete() {
+        completed = true;
+        for (final Subscription subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Serializes the calls to a subscriber: whoever increments the pending
+     * signals from zero schedules a drain, which loops until every signal
+     * raised meanwhile has been handled.
+     */
+    private final class Subscription implements InstanceDiffSubscription,
+            Runnable {
+        final InstanceDiffSubscriber subscriber;
+        final Executor executor;
+        final AtomicInteger signals = new AtomicInteger();
+        final AtomicLong requested = new AtomicLong();
+        volatile boolean cancelled = false;
+        volatile boolean invalidRequest = false;
+
+        // only accessed by the draining thread
+        boolean subscribed = false;
+        ImmutableList<ServiceInstance<InstanceMetadata>> delivered = ImmutableList
+                .of();
+
+        Subscription(final InstanceDiffSubscriber subscriber,
+                final Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                invalidRequest = true;
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n;
+                    if (next < 0) {
+                        next = Long.MAX_VALUE;
+                    }
+                } while (!requested.compareAndSet(current, next));
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void signal() {
+            if (signals.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (final RejectedExecutionException e) {
+                LOGGER.warn("Unable to notify subscriber of " + serviceName,
+                        e);
+                cancel();
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    drain();
+                } catch (final RuntimeException e) {
+                    LOGGER.warn("Subscriber of " + serviceName
+                            + " failed, cancelling its subscription", e);
+                    cancel();
+                }
+                missed = signals.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                return;
+            }
+            if (!subscribed) {
+                subscribed = true;
+                subscriber.onSubscribe(this);
+                if (cancelled) {
+                    return;
+                }
+            }
+            if (invalidRequest) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException(
+                        "Requested number of diffs must be positive"));
+                return;
+            }
+
+            final ImmutableList<ServiceInstance<InstanceMetadata>> current = latest;
+            if (current != null && current != delivered
+                    && requested.get() > 0) {
+                final InstanceDiff diff = InstanceDiff.between(serviceName,
+                        delivered, current);
+                delivered = current;
+                if (!diff.isEmpty()) {
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    subscriber.onNext(diff);
+                }
+            }
+
+            if (completed && !cancelled && current == latest
+                    && (current == null || current == delivered)) {
+                cancel();
+                subscriber.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.ge.snowizard.discovery.client;
+
+/**
+ * Receives the {@link InstanceDiff}s of a service from an
+ * {@link InstanceDiffPublisher}, following the same protocol as a reactive
+ * streams subscriber: {@link #onSubscribe} is called first, followed by at
+ * most as many {@link #onNext} calls as were requested, and finally
+ * {@link #onComplete} or {@link #onError}. Calls are never concurrent.
+ */
+public interface InstanceDiffSubscriber {
+
+    /**
+     * Called once before any other method, with the subscription used to
+     * request diffs.
+     *
+     * @param subscription
+     *            {@link InstanceDiffSubscription}
+     */
+    void onSubscribe(InstanceDiffSubscription subscription);
+
+    /**
+     * Called with the next change of the instances. The first diff adds
+     * every instance registered when the subscriber first had demand, and
+     * changes which happened while the subscriber had no demand are folded
+     * into a single diff.
+     *
+     * @param diff
+     *            {@link InstanceDiff}
+     */
+    void onNext(InstanceDiff diff);
+
+    /**
+     * Called if the subscription failed. No other method is called after.
+     *
+     * @param throwable
+     *            cause of the failure
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Called once the service is no longer watched. No other method is
+     * called after.
+     */
+    void onComplete();
+}
@@ -0,0 +1,22 @@
+package com.ge.snowizard.discovery.client;
+
+/**
+ * Link between an {@link InstanceDiffPublisher} and one of its
+ * {@link InstanceDiffSubscriber}s, used to signal demand.
+ */
+public interface InstanceDiffSubscription {
+
+    /**
+     * Allow up to {@code n} more diffs to be delivered. Demand is added up
+     * and capped at {@link Long#MAX_VALUE}, which means unbounded.
+     *
+     * @param n
+     *            number of diffs, which must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stop delivering diffs. Diffs being delivered may still be received.
+     */
+    void cancel();
+}
@@ -0,0 +1,39 @@
+package com.ge.snowizard.discovery.client;
+
+import org.apache.curator.x.discovery.ServiceInstance;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+/**
+ * Receives the request outcomes recorded through {@link DiscoveryClient}.
+ * Implementations are called on the request path and must be cheap and
+ * non-blocking.
+ */
+public interface InstanceOutcomeListener {
+
+    /**
+     * Called when a request to an instance is about to be sent.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the request is sent to
+     */
+    void onStart(ServiceInstance<InstanceMetadata> instance);
+
+    /**
+     * Called when a request to an instance completed successfully.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the request was sent to
+     * @param latencyNanos
+     *            time taken by the request, in nanoseconds
+     */
+    void onSuccess(ServiceInstance<InstanceMetadata> instance,
+            long latencyNanos);
+
+    /**
+     * Called when a request to an instance failed.
+     *
+     * @param instance
+     *            {@link ServiceInstance} the request was sent to
+     */
+    void onError(ServiceInstance<InstanceMetadata> instance);
+}
@@ -0,0 +1,23 @@
+package com.ge.snowizard.discovery.client;
+
+/**
+ * Request sent to an instance of a service by a {@link HedgingExecutor}.
+ *
+ * @param <V>
+ *            type of the response
+ */
+public interface InstanceRequest<V> {
+
+    /**
+     * Send the request to the given endpoint. The request may be sent to
+     * several instances at once and should stop when its thread is
+     * interrupted.
+     *
+     * @param endpoint
+     *            {@link Endpoint} of the selected instance
+     * @return response
+     * @throws Exception
+     *             if the request failed
+     */
+    V execute(Endpoint endpoint) throws Exception;
+}
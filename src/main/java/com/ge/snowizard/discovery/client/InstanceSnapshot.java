@@ -0,0 +1,144 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable, pre-filtered view of the instances of a service which is
+ * published by {@link DiscoveryClient} whenever the cache or the state of a
+ * circuit changes, excluding instances whose circuit is open and instances
+ * which are draining. It is handed to the
+ * {@link org.apache.curator.x.discovery.ProviderStrategy} as its
+ * {@link InstanceProvider}, so selecting an instance neither copies nor
+ * filters the instance list. It also carries the {@link Endpoint} of each
+ * instance, built when the instance was first seen. When the client uses an
+ * {@link Aperture}, it only carries the endpoints of the subset.
+ */
+@Immutable
+public final class InstanceSnapshot implements
+        InstanceProvider<InstanceMetadata> {
+
+    static final InstanceSnapshot EMPTY = new InstanceSnapshot(
+            ImmutableList.<ServiceInstance<InstanceMetadata>> of(),
+            ImmutableList.<ServiceInstance<InstanceMetadata>> of(),
+            ImmutableList.<ServiceInstance<InstanceMetadata>> of(),
+            ImmutableMap.<String, Endpoint> of(), false, 0);
+
+    private final ImmutableList<ServiceInstance<InstanceMetadata>> all;
+    private final ImmutableList<ServiceInstance<InstanceMetadata>> members;
+    private final ImmutableList<ServiceInstance<InstanceMetadata>> available;
+    private final ImmutableMap<String, Endpoint> endpoints;
+    private final boolean expiring;
+    private final long expiresNanos;
+
+    /**
+     * Constructor
+     *
+     * @param all
+     *            every instance currently registered
+     * @param members
+     *            instances available ones are selected from, i.e. those of
+     *            the {@link Aperture} or every instance
+     * @param available
+     *            instances which may be selected
+     * @param endpoints
+     *            {@link Endpoint} of each instance, by instance ID
+     * @param expiring
+     *            whether some instances were filtered out for a limited time
+     * @param expiresNanos
+     *            {@link System#nanoTime()} at which the first filtered
+     *            instance becomes available again
+     */
+    InstanceSnapshot(final ImmutableList<ServiceInstance<InstanceMetadata>> all,
+            final ImmutableList<ServiceInstance<InstanceMetadata>> members,
+            final ImmutableList<ServiceInstance<InstanceMetadata>> available,
+            final ImmutableMap<String, Endpoint> endpoints,
+            final boolean expiring, final long expiresNanos) {
+        this.all = checkNotNull(all);
+        this.members = checkNotNull(members);
+        this.available = checkNotNull(available);
+        this.endpoints = checkNotNull(endpoints);
+        this.expiring = expiring;
+        this.expiresNanos = expiresNanos;
+    }
+
+    /**
+     * Return the instances which may be selected.
+     *
+     * @return immutable list of available instances
+     */
+    @Override
+    public List<ServiceInstance<InstanceMetadata>> getInstances() {
+        return available;
+    }
+
+    /**
+     * Return every registered instance, including those filtered out.
+     *
+     * @return immutable list of all instances
+     */
+    public ImmutableList<ServiceInstance<InstanceMetadata>> getAllInstances() {
+        return all;
+    }
+
+    /**
+     * Return the instances the available ones were selected from, including
+     * those filtered out. Without an {@link Aperture}, or when no instance
+     * of the aperture is available, these are every registered instance.
+     *
+     * @return immutable list of candidate instances
+     */
+    public ImmutableList<ServiceInstance<InstanceMetadata>> getMembers() {
+        return members;
+    }
+
+    /**
+     * Return the pre-built {@link Endpoint} of an instance.
+     *
+     * @param instance
+     *            {@link ServiceInstance}
+     * @return {@link Endpoint}, or null if the instance is not part of this
+     *         snapshot or its endpoint could not be built
+     */
+    @Nullable
+    public Endpoint getEndpoint(final ServiceInstance<InstanceMetadata> instance) {
+        return endpoints.get(instance.getId());
+    }
+
+    /**
+     * Return the pre-built {@link Endpoint}s of every registered instance,
+     * or of every instance of the {@link Aperture}.
+     *
+     * @return immutable collection of endpoints
+     */
+    public ImmutableCollection<Endpoint> getEndpoints() {
+        return endpoints.values();
+    }
+
+    /**
+     * Return the pre-built {@link Endpoint}s by instance ID.
+     *
+     * @return immutable map of endpoints
+     */
+    ImmutableMap<String, Endpoint> getEndpointMap() {
+        return endpoints;
+    }
+
+    /**
+     * Return whether a filtered instance may have become available again
+     * since this snapshot was published.
+     *
+     * @return true if the snapshot should be rebuilt
+     */
+    boolean isExpired() {
+        return expiring && ((System.nanoTime() - expiresNanos) >= 0);
+    }
+}
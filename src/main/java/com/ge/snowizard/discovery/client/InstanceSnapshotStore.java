@@ -0,0 +1,180 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Keeps the last known instances of each service in a local file, so that
+ * clients can start routing before ZooKeeper has answered and keep their
+ * instances across a restart during a ZooKeeper outage.
+ *
+ * Each service is stored in its own file, written to a temporary file and
+ * atomically renamed into place, so readers never see a partial snapshot.
+ * Instances are encoded with the configured {@link InstanceSerializer} and
+ * the file is protected by a CRC-32.
+ */
+@ThreadSafe
+public class InstanceSnapshotStore {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(InstanceSnapshotStore.class);
+
+    private static final int MAGIC = 0x534E4150; // "SNAP"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".snapshot";
+
+    private final File directory;
+    private final InstanceSerializer<InstanceMetadata> serializer;
+    private final long maxAgeMillis;
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *            directory holding the snapshot files, created if needed
+     * @param serializer
+     *            {@link InstanceSerializer} used to encode instances
+     * @param maxAge
+     *            age after which a snapshot is ignored
+     * @param unit
+     *            {@link TimeUnit} of maxAge
+     */
+    public InstanceSnapshotStore(final File directory,
+            final InstanceSerializer<InstanceMetadata> serializer,
+            final long maxAge, final TimeUnit unit) {
+        this.directory = checkNotNull(directory);
+        this.serializer = checkNotNull(serializer);
+        this.maxAgeMillis = unit.toMillis(maxAge);
+    }
+
+    /**
+     * Read the last known instances of a service. Missing, expired or
+     * unreadable snapshots are treated as empty.
+     *
+     * @param serviceName
+     *            name of the service
+     * @return immutable list of instances, possibly empty
+     */
+    public ImmutableList<ServiceInstance<InstanceMetadata>> read(
+            final String serviceName) {
+        final File file = fileFor(serviceName);
+        try {
+            final CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(file)),
+                    new CRC32());
+            try (final DataInputStream in = new DataInputStream(checked)) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    LOGGER.warn("Ignoring snapshot {} with unknown format",
+                            file);
+                    return ImmutableList.of();
+                }
+
+                final long age = System.currentTimeMillis() - in.readLong();
+                if (age > maxAgeMillis) {
+                    LOGGER.info("Ignoring snapshot {} written {}ms ago",
+                            file, age);
+                    return ImmutableList.of();
+                }
+
+                final int count = in.readInt();
+                final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> builder = ImmutableList
+                        .builder();
+                for (int i = 0; i < count; i++) {
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    builder.add(serializer.deserialize(bytes));
+                }
+
+                final long expected = checked.getChecksum().getValue();
+                if (in.readLong() != expected) {
+                    LOGGER.warn("Ignoring snapshot {} with bad checksum", file);
+                    return ImmutableList.of();
+                }
+                return builder.build();
+            }
+        } catch (final FileNotFoundException e) {
+            return ImmutableList.of();
+        } catch (final Exception e) {
+            LOGGER.warn("Unable to read snapshot " + file, e);
+            return ImmutableList.of();
+        }
+    }
+
+    /**
+     * Replace the snapshot of a service.
+     *
+     * @param serviceName
+     *            name of the service
+     * @param instances
+     *            current instances of the service
+     * @throws Exception
+     *             if the snapshot could not be written
+     */
+    public void write(final String serviceName,
+            final List<ServiceInstance<InstanceMetadata>> instances)
+            throws Exception {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        final File file = fileFor(serviceName);
+        final File temp = File.createTempFile(file.getName(), ".tmp",
+                directory);
+        try {
+            final FileOutputStream stream = new FileOutputStream(temp);
+            final CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(stream), new CRC32());
+            try (final DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(instances.size());
+                for (final ServiceInstance<InstanceMetadata> instance : instances) {
+                    final byte[] bytes = serializer.serialize(instance);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                stream.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private File fileFor(final String serviceName) {
+        try {
+            return new File(directory, URLEncoder.encode(serviceName,
+                    Charsets.UTF_8.name()) + SUFFIX);
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceInstance;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * {@link DiscoveryClient} which publishes its latency, cache state and error
+ * rates to a {@link MetricRegistry}. Metrics are named after
+ * {@link DiscoveryClient} and the service name, e.g.
+ * {@code com.ge.snowizard.discovery.client.DiscoveryClient.users.get-instance}.
+ *
+ * Every call to {@link #getInstance()} is counted by the
+ * {@code get-instance} meter, but its latency is only recorded in the
+ * {@code get-instance-latency} histogram (in nanoseconds) for one call in
+ * {@value #GET_INSTANCE_SAMPLE_RATE}, so that the shared reservoir doesn't
+ * become a point of contention on the request path.
+ *
+ * Errors are counted both by the {@code errors} meter and by a meter per
+ * instance, e.g. {@code ...users.errors.<instance id>}, which is removed once
+ * the instance has left the service.
+ *
+ * When several clients of the same service share a {@link MetricRegistry},
+ * the gauges are reported by the oldest client which is still open.
+ */
+@ThreadSafe
+public class InstrumentedDiscoveryClient extends DiscoveryClient {
+
+    public static final int GET_INSTANCE_SAMPLE_RATE = 64;
+
+    /**
+     * Open clients by {@link MetricRegistry} and metric prefix, the first of
+     * which has its gauges registered.
+     */
+    @GuardedBy("LIVE_CLIENTS")
+    private static final ConcurrentMap<MetricRegistry, ListMultimap<String, InstrumentedDiscoveryClient>> LIVE_CLIENTS = new MapMaker()
+            .weakKeys().makeMap();
+
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Meter getInstance;
+    private final Histogram getInstanceLatency;
+    private final Timer getInstances;
+    private final Meter errors;
+    private final Map<String, Metric> gauges = Maps.newConcurrentMap();
+    private final Set<String> erroredInstances = Sets
+            .newSetFromMap(Maps.<String, Boolean> newConcurrentMap());
+
+    private final InstanceCacheListener errorMeterReaper = new InstanceCacheListener() {
+        @Override
+        public void instancesChanged(final InstanceCache cache) {
+            removeErrorMeters(cache.getInstances());
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param serviceName
+     *            name of the service to monitor
+     * @param discovery
+     *            {@link ServiceDiscovery}
+     * @param directory
+     *            {@link ServiceDirectory} used to answer
+     *            {@link #getServices()}, or null to query ZooKeeper directly
+     * @param cacheFactory
+     *            {@link InstanceCacheFactory} used to create the
+     *            {@link InstanceCache} of each service
+     * @param circuitBreakerPolicy
+     *            {@link CircuitBreakerPolicy} of the circuit breaker which
+     *            decides when instances are skipped
+     * @param providerStrategy
+     *            {@link ProviderStrategy} to use when selecting an instance
+     * @param registry
+     *            {@link MetricRegistry} to publish the metrics to
+     */
+    public InstrumentedDiscoveryClient(final String serviceName,
+            final ServiceDiscovery<InstanceMetadata> discovery,
+            @Nullable final ServiceDirectory directory,
+            final InstanceCacheFactory cacheFactory,
+            final CircuitBreakerPolicy circuitBreakerPolicy,
+            final ProviderStrategy<InstanceMetadata> providerStrategy,
+            final MetricRegistry registry) {
+        super(serviceName, discovery, directory, cacheFactory,
+                circuitBreakerPolicy, providerStrategy);
+        this.registry = checkNotNull(registry);
+        this.prefix = name(DiscoveryClient.class, serviceName);
+        this.getInstance = registry.meter(name(prefix, "get-instance"));
+        this.getInstanceLatency = registry.histogram(name(prefix,
+                "get-instance-latency"));
+        this.getInstances = registry.timer(name(prefix, "get-instances"));
+        this.errors = registry.meter(name(prefix, "errors"));
+    }
+
+    @Override
+    public Collection<ServiceInstance<InstanceMetadata>> getInstances(
+            final String serviceName) throws Exception {
+        final Timer.Context context = getInstances.time();
+        try {
+            return super.getInstances(serviceName);
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public ServiceInstance<InstanceMetadata> getInstance() throws Exception {
+        getInstance.mark();
+        if (ThreadLocalRandom.current().nextInt(GET_INSTANCE_SAMPLE_RATE) != 0) {
+            return super.getInstance();
+        }
+        final long start = System.nanoTime();
+        try {
+            return super.getInstance();
+        } finally {
+            getInstanceLatency.update(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void noteError(final ServiceInstance<InstanceMetadata> instance) {
+        errors.mark();
+        if (instance != null && instance.getId() != null) {
+            erroredInstances.add(instance.getId());
+            registry.meter(name(prefix, "errors", instance.getId())).mark();
+        }
+        super.noteError(instance);
+    }
+
+    @Override
+    public void start() throws Exception {
+        super.start();
+
+        final InstanceCache cache = getCache();
+        cache.getListenable().addListener(errorMeterReaper);
+        gauges.put("instances", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getSnapshot().getAllInstances().size();
+            }
+        });
+        gauges.put("available-instances", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getSnapshot().getInstances().size();
+            }
+        });
+        gauges.put("time-since-change", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return System.currentTimeMillis()
+                        - cache.getLastChangeMillis();
+            }
+        });
+        gauges.put("restored", new Gauge<Boolean>() {
+            @Override
+            public Boolean getValue() {
+                return cache.isRestored();
+            }
+        });
+        gauges.put("open-circuits", new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getCircuitBreaker().getOpenCircuits();
+            }
+        });
+        gauges.put("retry-budget", new Gauge<Double>() {
+            @Override
+            public Double getValue() {
+                return getRetryBudget().getBalance();
+            }
+        });
+        gauges.put("coalesced-changes", cache.getCoalescedChanges());
+
+        synchronized (LIVE_CLIENTS) {
+            final List<InstrumentedDiscoveryClient> clients = getLiveClients();
+            clients.add(this);
+            if (clients.size() == 1) {
+                registerGauges();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        final InstanceCache cache = getCache();
+        if (cache != null) {
+            cache.getListenable().removeListener(errorMeterReaper);
+        }
+        synchronized (LIVE_CLIENTS) {
+            final List<InstrumentedDiscoveryClient> clients = getLiveClients();
+            final boolean reporting = !clients.isEmpty()
+                    && clients.get(0) == this;
+            if (clients.remove(this) && reporting) {
+                removeGauges();
+                // hand the gauges over to the next client of the service
+                if (!clients.isEmpty()) {
+                    clients.get(0).registerGauges();
+                }
+            }
+        }
+        super.close();
+    }
+
+    @GuardedBy("LIVE_CLIENTS")
+    private List<InstrumentedDiscoveryClient> getLiveClients() {
+        ListMultimap<String, InstrumentedDiscoveryClient> clients = LIVE_CLIENTS
+                .get(registry);
+        if (clients == null) {
+            clients = ArrayListMultimap.create();
+            LIVE_CLIENTS.put(registry, clients);
+        }
+        return clients.get(prefix);
+    }
+
+    @GuardedBy("LIVE_CLIENTS")
+    private void registerGauges() {
+        for (final Map.Entry<String, Metric> entry : gauges.entrySet()) {
+            try {
+                registry.register(name(prefix, entry.getKey()),
+                        entry.getValue());
+            } catch (final IllegalArgumentException e) {
+                // registered by something other than a discovery client
+            }
+        }
+    }
+
+    @GuardedBy("LIVE_CLIENTS")
+    private void removeGauges() {
+        // only remove the gauges registered by this client, the timers and
+        // meters are shared with other clients of the same service
+        final Map<String, Metric> registered = registry.getMetrics();
+        for (final Map.Entry<String, Metric> entry : gauges.entrySet()) {
+            final String fullName = name(prefix, entry.getKey());
+            if (registered.get(fullName) == entry.getValue()) {
+                registry.remove(fullName);
+            }
+        }
+    }
+
+    /**
+     * Remove the error meters of instances which are no longer registered.
+     */
+    private void removeErrorMeters(
+            final Collection<ServiceInstance<InstanceMetadata>> instances) {
+        if (erroredInstances.isEmpty()) {
+            return;
+        }
+        final Set<String> current = Sets.newHashSet();
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            current.add(instance.getId());
+        }
+        for (final String id : erroredInstances) {
+            if (!current.contains(id)) {
+                erroredInstances.remove(id);
+                registry.remove(name(prefix, "errors", id));
+            }
+        }
+    }
+}
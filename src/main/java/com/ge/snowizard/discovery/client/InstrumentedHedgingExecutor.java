@@ -0,0 +1,71 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * {@link HedgingExecutor} which publishes its counters, its current delay
+ * and the latencies it recorded under the name of its service.
+ */
+public class InstrumentedHedgingExecutor extends HedgingExecutor {
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *            {@link DiscoveryClient} selecting the instances
+     * @param executor
+     *            {@link ExecutorService} the requests are run on
+     * @param scheduler
+     *            {@link ScheduledExecutorService} used to send hedges
+     * @param policy
+     *            {@link HedgePolicy}
+     * @param registry
+     *            {@link MetricRegistry} to publish the metrics to
+     */
+    public InstrumentedHedgingExecutor(final DiscoveryClient client,
+            final ExecutorService executor,
+            final ScheduledExecutorService scheduler,
+            final HedgePolicy policy, final MetricRegistry registry) {
+        super(client, executor, scheduler, policy);
+        checkNotNull(registry);
+
+        final String prefix = name(HedgingExecutor.class,
+                client.getServiceName());
+        registry.register(name(prefix, "requests"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getRequests();
+            }
+        });
+        registry.register(name(prefix, "hedges"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getHedges();
+            }
+        });
+        registry.register(name(prefix, "hedge-wins"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getHedgeWins();
+            }
+        });
+        registry.register(name(prefix, "budget-exhausted"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getBudgetExhausted();
+            }
+        });
+        registry.register(name(prefix, "delay"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getDelayNanos();
+            }
+        });
+        registry.register(name(prefix, "latency"), getLatencies());
+    }
+}
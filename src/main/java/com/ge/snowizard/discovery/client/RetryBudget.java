@@ -0,0 +1,96 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Token bucket limiting retries to a fraction of requests, so that a slow or
+ * failing instance cannot turn into a retry storm.
+ *
+ * Every request {@link #deposit() deposits} a fraction of a retry, and every
+ * retry must {@link #tryWithdraw() withdraw} a whole one. The balance is
+ * capped so that only a limited burst of retries can be saved up. The
+ * balance is a single atomic counter, and deposits only write to it while
+ * it is below its cap, so the common case is a plain read.
+ */
+@ThreadSafe
+public class RetryBudget {
+
+    private static final double DEFAULT_RATIO = 0.2;
+    private static final int DEFAULT_MAX_RETRIES = 10;
+
+    /**
+     * Fixed-point scale of the balance: one retry is worth this many units.
+     */
+    private static final long TOKEN = 1000;
+
+    private final long deposit;
+    private final long maxBalance;
+    private final AtomicLong balance;
+
+    /**
+     * Constructor allowing retries for 20% of requests, with bursts of 10
+     * retries.
+     */
+    public RetryBudget() {
+        this(DEFAULT_RATIO, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ratio
+     *            fraction of a retry, between 0 and 1, earned by each request
+     * @param maxRetries
+     *            maximum number of retries which can be saved up. The budget
+     *            starts full.
+     */
+    public RetryBudget(final double ratio, final int maxRetries) {
+        checkArgument(ratio >= 0 && ratio <= 1,
+                "ratio must be between 0 and 1");
+        checkArgument(maxRetries > 0, "maxRetries must be positive");
+        this.deposit = Math.round(ratio * TOKEN);
+        this.maxBalance = maxRetries * TOKEN;
+        this.balance = new AtomicLong(maxBalance);
+    }
+
+    /**
+     * Earn a fraction of a retry for a request.
+     */
+    public void deposit() {
+        long current;
+        do {
+            current = balance.get();
+            if (current >= maxBalance) {
+                return;
+            }
+        } while (!balance.compareAndSet(current,
+                Math.min(current + deposit, maxBalance)));
+    }
+
+    /**
+     * Take a retry from the budget.
+     *
+     * @return true if the retry may be sent, otherwise false
+     */
+    public boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < TOKEN) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - TOKEN));
+        return true;
+    }
+
+    /**
+     * Return the number of retries currently available.
+     *
+     * @return available retries, possibly fractional
+     */
+    public double getBalance() {
+        return balance.get() / (double) TOKEN;
+    }
+}
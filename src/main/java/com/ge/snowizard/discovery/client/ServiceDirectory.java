@@ -0,0 +1,166 @@
+package com.ge.snowizard.discovery.client;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.io.Closeable;
+import java.io.IOException;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache.StartMode;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Live, watch-refreshed set of the service names registered under the
+ * discovery base path. Lookups are served from an immutable in-memory
+ * snapshot and never contact ZooKeeper.
+ */
+@ThreadSafe
+public class ServiceDirectory implements PathChildrenCacheListener, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(ServiceDirectory.class);
+
+    private final PathChildrenCache cache;
+    private final ListenerContainer<ServiceDirectoryListener> listeners = new ListenerContainer<ServiceDirectoryListener>();
+
+    @GuardedBy("this")
+    private volatile ImmutableSet<String> services = ImmutableSet.of();
+
+    /**
+     * Constructor
+     *
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param basePath
+     *            path under which services are registered
+     */
+    public ServiceDirectory(final CuratorFramework framework,
+            final String basePath) {
+        checkNotNull(framework);
+        checkNotNull(basePath);
+        this.cache = new PathChildrenCache(framework, ZKPaths.makePath(
+                basePath, null), false);
+        cache.getListenable().addListener(this);
+    }
+
+    /**
+     * Start watching the base path and prime the set of service names.
+     *
+     * @throws Exception
+     */
+    public void start() throws Exception {
+        cache.start(StartMode.BUILD_INITIAL_CACHE);
+        synchronized (this) {
+            final ImmutableSet.Builder<String> builder = ImmutableSet
+                    .builder();
+            for (final ChildData child : cache.getCurrentData()) {
+                builder.add(ZKPaths.getNodeFromPath(child.getPath()));
+            }
+            services = builder.build();
+        }
+    }
+
+    /**
+     * Return the currently known service names.
+     *
+     * @return immutable set of service names
+     */
+    public ImmutableSet<String> getServices() {
+        return services;
+    }
+
+    /**
+     * Return whether a service is currently registered.
+     *
+     * @param serviceName
+     *            name of the service
+     * @return true if the service is registered, otherwise false
+     */
+    public boolean contains(final String serviceName) {
+        return services.contains(serviceName);
+    }
+
+    /**
+     * Return the {@link Listenable} used to subscribe to service add and
+     * remove events.
+     *
+     * @return {@link Listenable}
+     */
+    public Listenable<ServiceDirectoryListener> getListenable() {
+        return listeners;
+    }
+
+    @Override
+    public void childEvent(final CuratorFramework client,
+            final PathChildrenCacheEvent event) throws Exception {
+        switch (event.getType()) {
+        case CHILD_ADDED:
+            added(ZKPaths.getNodeFromPath(event.getData().getPath()));
+            break;
+        case CHILD_REMOVED:
+            removed(ZKPaths.getNodeFromPath(event.getData().getPath()));
+            break;
+        default:
+            break;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.getListenable().removeListener(this);
+        listeners.clear();
+        cache.close();
+    }
+
+    private void added(final String serviceName) {
+        synchronized (this) {
+            if (services.contains(serviceName)) {
+                return;
+            }
+            services = ImmutableSet.<String> builder().addAll(services)
+                    .add(serviceName).build();
+        }
+        LOGGER.debug("Service added: {}", serviceName);
+        listeners.forEach(new Function<ServiceDirectoryListener, Void>() {
+            @Override
+            public Void apply(final ServiceDirectoryListener listener) {
+                listener.serviceAdded(serviceName);
+                return null;
+            }
+        });
+    }
+
+    private void removed(final String serviceName) {
+        synchronized (this) {
+            if (!services.contains(serviceName)) {
+                return;
+            }
+            final ImmutableSet.Builder<String> builder = ImmutableSet
+                    .builder();
+            for (final String service : services) {
+                if (!service.equals(serviceName)) {
+                    builder.add(service);
+                }
+            }
+            services = builder.build();
+        }
+        LOGGER.debug("Service removed: {}", serviceName);
+        listeners.forEach(new Function<ServiceDirectoryListener, Void>() {
+            @Override
+            public Void apply(final ServiceDirectoryListener listener) {
+                listener.serviceRemoved(serviceName);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,24 @@
+package com.ge.snowizard.discovery.client;
+
+/**
+ * Receives notifications when services appear in or disappear from a
+ * {@link ServiceDirectory}.
+ */
+public interface ServiceDirectoryListener {
+
+    /**
+     * Called when a new service name is registered under the base path.
+     *
+     * @param serviceName
+     *            name of the service that was added
+     */
+    void serviceAdded(String serviceName);
+
+    /**
+     * Called when a service name is removed from the base path.
+     *
+     * @param serviceName
+     *            name of the service that was removed
+     */
+    void serviceRemoved(String serviceName);
+}
@@ -0,0 +1,473 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceInstanceBuilder;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.InetAddresses;
+
+/**
+ * Compact, versioned binary {@link InstanceSerializer}.
+ *
+ * Every record starts with a {@link #MAGIC} byte and a format version, so
+ * records written by {@link JacksonInstanceSerializer} (which always start
+ * with a JSON object) are detected and handed to the legacy serializer. This
+ * allows a fleet to be switched over while old and new versions are running
+ * side by side.
+ *
+ * <pre>
+ * magic:u8 version:u8 flags:u8 serviceType:u8 registrationTimeUTC:i64
+ * [port:u16] [sslPort:u16] name:str id:(uuid|str) address:addr
+ * [uriSpec: parts:u16 (variable:u8 value:str)*]
+ * [payload: length:u16 payload-fields...]
+ * </pre>
+ *
+ * The service type is written as a fixed code (0: dynamic, 1: static, 2:
+ * permanent) rather than its position in Curator's enum. Strings are UTF-8
+ * with a u16 length prefix of at most 0xFFFE (0xFFFF marks a null string),
+ * UUIDs are 16 bytes and literal
+ * IPv4/IPv6 addresses are packed into 4/16 bytes. The payload is length
+ * prefixed so that fields appended by later versions are skipped by older
+ * readers, and fields missing from records written by earlier versions take
+ * their default value:
+ *
+ * <pre>
+ * [instanceId:uuid] listenAddress:addr listenPort:u16
+ * weight:i32 load:f64 (NaN if not reported) zone:string
+ * status:u8 (bit 0: draining)
+ * </pre>
+ */
+@ThreadSafe
+public class BinaryInstanceSerializer implements
+        InstanceSerializer<InstanceMetadata> {
+
+    /**
+     * First byte of every binary record. It can never start a JSON document.
+     */
+    public static final byte MAGIC = (byte) 0xD1;
+
+    /**
+     * Current format version
+     */
+    public static final byte VERSION = 1;
+
+    private static final int FLAG_PORT = 1;
+    private static final int FLAG_SSL_PORT = 1 << 1;
+    private static final int FLAG_URI_SPEC = 1 << 2;
+    private static final int FLAG_PAYLOAD = 1 << 3;
+
+    private static final int STATUS_DRAINING = 1;
+
+    private static final int NULL_LENGTH = 0xFFFF;
+    private static final int MAX_LENGTH = NULL_LENGTH - 1;
+
+    private static final byte TYPE_DYNAMIC = 0;
+    private static final byte TYPE_STATIC = 1;
+    private static final byte TYPE_PERMANENT = 2;
+
+    private static final byte ID_UUID = 1;
+    private static final byte ID_STRING = 2;
+
+    private static final byte ADDRESS_NULL = 0;
+    private static final byte ADDRESS_IPV4 = 4;
+    private static final byte ADDRESS_IPV6 = 6;
+    private static final byte ADDRESS_STRING = 1;
+
+    /**
+     * Length of the fixed header: magic, version, flags, service type and
+     * registration time
+     */
+    private static final int HEADER_LENGTH = 12;
+
+    private final InstanceSerializer<InstanceMetadata> legacy;
+
+    /**
+     * Constructor
+     *
+     * @param legacy
+     *            {@link InstanceSerializer} used to read records which were
+     *            not written in the binary format
+     */
+    public BinaryInstanceSerializer(
+            final InstanceSerializer<InstanceMetadata> legacy) {
+        this.legacy = checkNotNull(legacy);
+    }
+
+    @Override
+    public byte[] serialize(final ServiceInstance<InstanceMetadata> instance)
+            throws Exception {
+        final ByteArrayDataOutput out = ByteStreams.newDataOutput(128);
+        final InstanceMetadata payload = instance.getPayload();
+        final UriSpec uriSpec = instance.getUriSpec();
+
+        int flags = 0;
+        if (instance.getPort() != null) {
+            flags |= FLAG_PORT;
+        }
+        if (instance.getSslPort() != null) {
+            flags |= FLAG_SSL_PORT;
+        }
+        if (uriSpec != null) {
+            flags |= FLAG_URI_SPEC;
+        }
+        if (payload != null) {
+            flags |= FLAG_PAYLOAD;
+        }
+
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.writeByte(writeServiceType(instance.getServiceType()));
+        out.writeLong(instance.getRegistrationTimeUTC());
+        if (instance.getPort() != null) {
+            out.writeShort(instance.getPort());
+        }
+        if (instance.getSslPort() != null) {
+            out.writeShort(instance.getSslPort());
+        }
+        writeString(out, instance.getName());
+        writeId(out, instance.getId());
+        writeAddress(out, instance.getAddress());
+
+        if (uriSpec != null) {
+            writeLength(out, uriSpec.getParts().size(), "URI spec parts");
+            for (final UriSpec.Part part : uriSpec.getParts()) {
+                out.writeBoolean(part.isVariable());
+                writeString(out, part.getValue());
+            }
+        }
+
+        if (payload != null) {
+            final byte[] bytes = serializePayload(payload);
+            writeLength(out, bytes.length, "Payload");
+            out.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public ServiceInstance<InstanceMetadata> deserialize(final byte[] bytes)
+            throws Exception {
+        if (!isBinary(bytes)) {
+            return legacy.deserialize(bytes);
+        }
+
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+        require(in, HEADER_LENGTH);
+        in.get(); // magic
+        final byte version = in.get();
+        if (version > VERSION) {
+            throw new IllegalArgumentException(
+                    "Unsupported binary instance version: " + version);
+        }
+
+        final int flags = in.get();
+        final ServiceType serviceType = readServiceType(in.get());
+        final long registrationTimeUTC = in.getLong();
+        final Integer port = ((flags & FLAG_PORT) != 0) ? readUnsignedShort(in)
+                : null;
+        final Integer sslPort = ((flags & FLAG_SSL_PORT) != 0) ? readUnsignedShort(in)
+                : null;
+        final String name = readString(in);
+        final String id = readId(in);
+        final String address = readAddress(in);
+
+        UriSpec uriSpec = null;
+        if ((flags & FLAG_URI_SPEC) != 0) {
+            uriSpec = new UriSpec();
+            final int parts = readUnsignedShort(in);
+            for (int i = 0; i < parts; i++) {
+                require(in, 1);
+                final boolean variable = in.get() != 0;
+                uriSpec.add(new UriSpec.Part(readString(in), variable));
+            }
+        }
+
+        InstanceMetadata payload = null;
+        if ((flags & FLAG_PAYLOAD) != 0) {
+            final int length = readUnsignedShort(in);
+            require(in, length);
+            final ByteBuffer slice = in.slice();
+            slice.limit(length);
+            payload = deserializePayload(slice);
+        }
+
+        final ServiceInstanceBuilder<InstanceMetadata> builder = ServiceInstance
+                .<InstanceMetadata> builder().name(name).id(id)
+                .address(address).payload(payload)
+                .registrationTimeUTC(registrationTimeUTC)
+                .serviceType(serviceType).uriSpec(uriSpec);
+        if (port != null) {
+            builder.port(port);
+        }
+        if (sslPort != null) {
+            builder.sslPort(sslPort);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return whether the given record was written by this serializer.
+     *
+     * @param bytes
+     *            serialized record
+     * @return true if the record is in the binary format, otherwise false
+     */
+    public static boolean isBinary(final byte[] bytes) {
+        return (bytes.length > 1) && (bytes[0] == MAGIC);
+    }
+
+    private static byte[] serializePayload(final InstanceMetadata payload) {
+        final ByteArrayDataOutput out = ByteStreams.newDataOutput(64);
+        final UUID instanceId = payload.getInstanceId();
+        out.writeBoolean(instanceId != null);
+        if (instanceId != null) {
+            out.writeLong(instanceId.getMostSignificantBits());
+            out.writeLong(instanceId.getLeastSignificantBits());
+        }
+        writeAddress(out, payload.getListenAddress());
+        out.writeShort(payload.getListenPort());
+        out.writeInt(payload.getWeight());
+        out.writeDouble((payload.getLoad() == null) ? Double.NaN : payload
+                .getLoad());
+        writeString(out, payload.getZone());
+        out.writeByte(payload.isDraining() ? STATUS_DRAINING : 0);
+        return out.toByteArray();
+    }
+
+    private static InstanceMetadata deserializePayload(final ByteBuffer in) {
+        UUID instanceId = null;
+        require(in, 1);
+        if (in.get() != 0) {
+            require(in, 16);
+            instanceId = new UUID(in.getLong(), in.getLong());
+        }
+        final String listenAddress = readAddress(in);
+        final int listenPort = readUnsignedShort(in);
+        final int weight = (in.remaining() >= 4) ? in.getInt()
+                : InstanceMetadata.DEFAULT_WEIGHT;
+        Double load = null;
+        if (in.remaining() >= 8) {
+            final double value = in.getDouble();
+            load = Double.isNaN(value) ? null : value;
+        }
+        final String zone = (in.remaining() >= 2) ? readString(in) : null;
+        final int status = (in.remaining() >= 1) ? in.get() : 0;
+        // fields added by later versions follow here and are ignored
+        return new InstanceMetadata(instanceId, listenAddress, listenPort,
+                weight, load, zone, (status & STATUS_DRAINING) != 0);
+    }
+
+    private static void writeString(final ByteArrayDataOutput out,
+            final String value) {
+        if (value == null) {
+            out.writeShort(NULL_LENGTH);
+            return;
+        }
+        final byte[] bytes = value.getBytes(Charsets.UTF_8);
+        writeLength(out, bytes.length, "String");
+        out.write(bytes);
+    }
+
+    private static void writeLength(final ByteArrayDataOutput out,
+            final int length, final String what) {
+        if (length > MAX_LENGTH) {
+            throw new IllegalArgumentException(what + " too long: " + length
+                    + " (at most " + MAX_LENGTH + ")");
+        }
+        out.writeShort(length);
+    }
+
+    private static String readString(final ByteBuffer in) {
+        final int length = readUnsignedShort(in);
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        require(in, length);
+        final String value = new String(in.array(), in.arrayOffset()
+                + in.position(), length, Charsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeId(final ByteArrayDataOutput out, final String id) {
+        final UUID uuid = parseUuid(id);
+        if (uuid != null) {
+            out.writeByte(ID_UUID);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        } else {
+            out.writeByte(ID_STRING);
+            writeString(out, id);
+        }
+    }
+
+    private static String readId(final ByteBuffer in) {
+        require(in, 1);
+        if (in.get() == ID_UUID) {
+            require(in, 16);
+            return new UUID(in.getLong(), in.getLong()).toString();
+        }
+        return readString(in);
+    }
+
+    private static void writeAddress(final ByteArrayDataOutput out,
+            final String address) {
+        if (address == null) {
+            out.writeByte(ADDRESS_NULL);
+            return;
+        }
+        final byte[] ipv4 = parseIpv4(address);
+        if (ipv4 != null) {
+            out.writeByte(ADDRESS_IPV4);
+            out.write(ipv4);
+            return;
+        }
+        if ((address.indexOf(':') >= 0) && InetAddresses.isInetAddress(address)) {
+            final InetAddress inet = InetAddresses.forString(address);
+            // only pack addresses whose textual form survives a round trip
+            if (InetAddresses.toAddrString(inet).equals(address)) {
+                out.writeByte(ADDRESS_IPV6);
+                out.write(inet.getAddress());
+                return;
+            }
+        }
+        out.writeByte(ADDRESS_STRING);
+        writeString(out, address);
+    }
+
+    private static String readAddress(final ByteBuffer in) {
+        require(in, 1);
+        final byte type = in.get();
+        switch (type) {
+        case ADDRESS_NULL:
+            return null;
+        case ADDRESS_IPV4:
+        case ADDRESS_IPV6:
+            final byte[] bytes = new byte[type == ADDRESS_IPV4 ? 4 : 16];
+            require(in, bytes.length);
+            in.get(bytes);
+            try {
+                return InetAddresses.toAddrString(InetAddress
+                        .getByAddress(bytes));
+            } catch (final Exception e) {
+                throw Throwables.propagate(e);
+            }
+        default:
+            return readString(in);
+        }
+    }
+
+    private static byte writeServiceType(final ServiceType serviceType) {
+        switch (serviceType) {
+        case DYNAMIC:
+            return TYPE_DYNAMIC;
+        case STATIC:
+            return TYPE_STATIC;
+        case PERMANENT:
+            return TYPE_PERMANENT;
+        default:
+            throw new IllegalArgumentException("Unsupported service type: "
+                    + serviceType);
+        }
+    }
+
+    private static ServiceType readServiceType(final byte code) {
+        switch (code) {
+        case TYPE_DYNAMIC:
+            return ServiceType.DYNAMIC;
+        case TYPE_STATIC:
+            return ServiceType.STATIC;
+        case TYPE_PERMANENT:
+            return ServiceType.PERMANENT;
+        default:
+            throw new IllegalArgumentException("Unknown service type: "
+                    + code);
+        }
+    }
+
+    /**
+     * Fail with a descriptive error, rather than a
+     * {@link java.nio.BufferUnderflowException}, if fewer than the given
+     * number of bytes are left in the record.
+     */
+    private static void require(final ByteBuffer in, final int length) {
+        if (in.remaining() < length) {
+            throw new IllegalArgumentException(
+                    "Truncated binary instance: expected " + length
+                            + " more bytes at offset " + in.position()
+                            + " but only " + in.remaining() + " remain");
+        }
+    }
+
+    private static int readUnsignedShort(final ByteBuffer in) {
+        require(in, 2);
+        return in.getShort() & 0xFFFF;
+    }
+
+    /**
+     * Parse the given ID as a {@link UUID} if, and only if, it is in the
+     * canonical form produced by {@link UUID#toString()}.
+     */
+    private static UUID parseUuid(final String id) {
+        if ((id == null) || (id.length() != 36)) {
+            return null;
+        }
+        for (int i = 0; i < 36; i++) {
+            final char c = id.charAt(i);
+            if ((i == 8) || (i == 13) || (i == 18) || (i == 23)) {
+                if (c != '-') {
+                    return null;
+                }
+            } else if (!(((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')))) {
+                return null;
+            }
+        }
+        return UUID.fromString(id);
+    }
+
+    /**
+     * Parse the given address as a dotted-quad IPv4 address if, and only if,
+     * it is in canonical form (no leading zeros).
+     */
+    private static byte[] parseIpv4(final String address) {
+        final int length = address.length();
+        if ((length < 7) || (length > 15)) {
+            return null;
+        }
+        final byte[] bytes = new byte[4];
+        int octet = 0;
+        int value = -1;
+        for (int i = 0; i <= length; i++) {
+            final char c = (i < length) ? address.charAt(i) : '.';
+            if (c == '.') {
+                if ((value < 0) || (octet > 3)) {
+                    return null;
+                }
+                bytes[octet++] = (byte) value;
+                value = -1;
+            } else if ((c >= '0') && (c <= '9')) {
+                if (value == 0) {
+                    return null;
+                }
+                value = (value < 0) ? (c - '0') : ((value * 10) + (c - '0'));
+                if (value > 255) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return (octet == 4) ? bytes : null;
+    }
+}
@@ -0,0 +1,42 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import org.apache.curator.framework.api.CompressionProvider;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+
+/**
+ * {@link InstanceSerializer} which compresses the records of another one.
+ * Curator's service discovery does not use the compression of the
+ * {@link org.apache.curator.framework.CuratorFramework}, so this is where
+ * instance records are compressed.
+ */
+public class CompressingInstanceSerializer<T> implements InstanceSerializer<T> {
+
+    private final InstanceSerializer<T> delegate;
+    private final CompressionProvider compression;
+
+    /**
+     * Constructor
+     *
+     * @param delegate
+     *            {@link InstanceSerializer} of the uncompressed records
+     * @param compression
+     *            {@link CompressionProvider} used to compress records
+     */
+    public CompressingInstanceSerializer(final InstanceSerializer<T> delegate,
+            final CompressionProvider compression) {
+        this.delegate = checkNotNull(delegate);
+        this.compression = checkNotNull(compression);
+    }
+
+    @Override
+    public byte[] serialize(final ServiceInstance<T> instance) throws Exception {
+        return compression.compress(null, delegate.serialize(instance));
+    }
+
+    @Override
+    public ServiceInstance<T> deserialize(final byte[] bytes) throws Exception {
+        return delegate.deserialize(compression.decompress(null, bytes));
+    }
+}
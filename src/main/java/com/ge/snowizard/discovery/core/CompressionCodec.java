@@ -0,0 +1,103 @@
+package com.ge.snowizard.discovery.core;
+
+import org.apache.curator.framework.imps.GzipCompressionProvider;
+import org.iq80.snappy.Snappy;
+
+/**
+ * Codecs available to compress the values written to ZooKeeper.
+ *
+ * @see ThresholdCompressionProvider
+ */
+public enum CompressionCodec {
+
+    /**
+     * Values are stored as is.
+     */
+    NONE((byte) 0) {
+        @Override
+        byte[] compress(final byte[] data) {
+            return data;
+        }
+
+        @Override
+        byte[] decompress(final byte[] data, final int offset)
+                throws Exception {
+            final byte[] result = new byte[data.length - offset];
+            System.arraycopy(data, offset, result, 0, result.length);
+            return result;
+        }
+    },
+
+    /**
+     * GZIP compression, as written by {@link GzipCompressionProvider}. It
+     * compresses best but is the most expensive.
+     */
+    GZIP((byte) 1) {
+        @Override
+        byte[] compress(final byte[] data) throws Exception {
+            return GZIP_PROVIDER.compress(null, data);
+        }
+
+        @Override
+        byte[] decompress(final byte[] data, final int offset)
+                throws Exception {
+            return GZIP_PROVIDER.decompress(null,
+                    (offset == 0) ? data : NONE.decompress(data, offset));
+        }
+    },
+
+    /**
+     * Snappy compression, which is several times cheaper than GZIP at the
+     * cost of a lower ratio.
+     */
+    SNAPPY((byte) 2) {
+        @Override
+        byte[] compress(final byte[] data) {
+            return Snappy.compress(data);
+        }
+
+        @Override
+        byte[] decompress(final byte[] data, final int offset)
+                throws Exception {
+            return Snappy.uncompress(data, offset, data.length - offset);
+        }
+    };
+
+    private static final GzipCompressionProvider GZIP_PROVIDER = new GzipCompressionProvider();
+
+    private final byte id;
+
+    CompressionCodec(final byte id) {
+        this.id = id;
+    }
+
+    /**
+     * Return the identifier of this codec in the header of compressed
+     * values.
+     *
+     * @return codec identifier
+     */
+    public byte getId() {
+        return id;
+    }
+
+    /**
+     * Return the codec with the given identifier.
+     *
+     * @param id
+     *            codec identifier
+     * @return {@link CompressionCodec}, or null if it is unknown
+     */
+    static CompressionCodec fromId(final byte id) {
+        for (final CompressionCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    abstract byte[] compress(byte[] data) throws Exception;
+
+    abstract byte[] decompress(byte[] data, int offset) throws Exception;
+}
@@ -1,19 +1,23 @@
 package com.ge.snowizard.discovery.core;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
+import java.util.Map;
 import io.dropwizard.lifecycle.ServerLifecycleListener;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
 public class CuratorAdvertisementListener implements ServerLifecycleListener {
 
     private static final Logger LOGGER = LoggerFactory
             .getLogger(CuratorAdvertisementListener.class);
-    private static final String APPLICATION_CONNECTOR = "application";
     private final CuratorAdvertiser advertiser;
 
     /**
@@ -28,23 +32,42 @@ public class CuratorAdvertisementListener implements ServerLifecycleListener {
 
     @Override
     public void serverStarted(final Server server) {
-        // Detect the port Jetty is listening on - works with configured and
-        // random port
+        // Detect the ports Jetty is listening on - works with configured and
+        // random ports
+        final Map<String, Integer> ports = Maps.newHashMap();
         for (final Connector connector : server.getConnectors()) {
-            if (APPLICATION_CONNECTOR.equals(connector.getName())) {
+            if (connector.getName() != null
+                    && connector.getTransport() instanceof ServerSocketChannel) {
                 final ServerSocketChannel channel = (ServerSocketChannel) connector
                         .getTransport();
-
                 try {
                     final InetSocketAddress socket = (InetSocketAddress) channel
                             .getLocalAddress();
-                    advertiser.initListenInfo(socket.getPort());
-                    advertiser.registerAvailability();
-                    return;
-                } catch (final Exception e) {
-                    LOGGER.error("Unable to register service in ZK", e);
+                    ports.put(connector.getName(), socket.getPort());
+                } catch (final IOException e) {
+                    LOGGER.error("Unable to find port of connector "
+                            + connector.getName(), e);
                 }
             }
         }
+
+        try {
+            advertiser.initListenInfo(ports);
+            // don't hold up the server startup on ZK
+            Futures.addCallback(advertiser.registerAvailabilityAsync(),
+                    new FutureCallback<Void>() {
+                        @Override
+                        public void onSuccess(final Void result) {
+                            LOGGER.debug("Registered service in ZK");
+                        }
+
+                        @Override
+                        public void onFailure(final Throwable t) {
+                            LOGGER.error("Unable to register service in ZK", t);
+                        }
+                    });
+        } catch (final Exception e) {
+            LOGGER.error("Unable to register service in ZK", e);
+        }
     }
 }
@@ -1,61 +1,246 @@
 package com.ge.snowizard.discovery.core;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
-import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.utils.ZKPaths;
 import org.apache.curator.x.discovery.ServiceInstance;
 import org.apache.curator.x.discovery.ServiceInstanceBuilder;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.AdvertisementFactory;
 import com.ge.snowizard.discovery.DiscoveryFactory;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+/**
+ * Advertises this instance as an ephemeral znode under
+ * {@code <basePath>/<serviceName>/<instanceId>}, in the same layout as
+ * Curator's {@link org.apache.curator.x.discovery.ServiceDiscovery}. Each of
+ * the configured {@link DiscoveryFactory#getAdvertisements() advertisements}
+ * gets its own instance ID and znode, holding the port of its connector, and
+ * all of them are written in a single ZooKeeper transaction.
+ *
+ * The znode is written directly rather than through
+ * {@link org.apache.curator.x.discovery.ServiceDiscovery#registerService}, so
+ * that re-registration after a reconnect can be delayed by a random jitter,
+ * retried with backoff, and skipped when the znode still holds the expected
+ * data and belongs to the current session.
+ *
+ * When an executor is given, all ZooKeeper writes other than the blocking
+ * {@link #registerAvailability()} and {@link #unregisterAvailability()} run
+ * on it, and {@link #registerAvailabilityAsync()} and
+ * {@link #unregisterAvailabilityAsync()} return futures which fail with a
+ * {@link TimeoutException} after the configured registration timeout.
+ * Without one, the asynchronous methods block and return completed futures.
+ */
 @ThreadSafe
 public class CuratorAdvertiser implements ConnectionStateListener {
     private static final Logger LOGGER = LoggerFactory
             .getLogger(CuratorAdvertiser.class);
 
-    private static final UUID instanceId = UUID.randomUUID();
-    private final ServiceDiscovery<InstanceMetadata> discovery;
+    private static final long MAX_REREGISTRATION_DELAY_MILLIS = TimeUnit.MINUTES
+            .toMillis(1);
+
+    private final UUID instanceId = UUID.randomUUID();
+    private final CuratorFramework framework;
+    private final InstanceSerializer<InstanceMetadata> serializer;
     private final DiscoveryFactory configuration;
+    private final ImmutableList<Registration> registrations;
+    private final AtomicBoolean reregistrationScheduled = new AtomicBoolean();
+    private final AtomicInteger reregistrationAttempts = new AtomicInteger();
+    private final Runnable reregister = new Runnable() {
+        @Override
+        public void run() {
+            reregister();
+        }
+    };
+
+    @Nullable
+    private final ScheduledExecutorService scheduler;
+    @Nullable
+    private final ListeningExecutorService executor;
+    private final AtomicReference<Double> pendingLoad = new AtomicReference<Double>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushLoad = new Runnable() {
+        @Override
+        public void run() {
+            flushLoad();
+        }
+    };
 
     @GuardedBy("this")
     private String listenAddress;
 
     @GuardedBy("this")
-    private int listenPort = 0;
+    private volatile boolean registered;
+
+    @GuardedBy("this")
+    private volatile Double load;
+
+    @GuardedBy("this")
+    private volatile long loadWrittenNanos;
+
+    @GuardedBy("this")
+    private volatile boolean draining = false;
 
     /**
      * Constructor
      * 
      * @param configuration
      *            {@link DiscoveryFactory}
-     * @param discovery
-     *            {@link ServiceDiscovery}
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param serializer
+     *            {@link InstanceSerializer} used to encode the instance
      */
     public CuratorAdvertiser(final DiscoveryFactory configuration,
-            final ServiceDiscovery<InstanceMetadata> discovery) {
+            final CuratorFramework framework,
+            final InstanceSerializer<InstanceMetadata> serializer) {
+        this(configuration, framework, serializer, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param configuration
+     *            {@link DiscoveryFactory}
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param serializer
+     *            {@link InstanceSerializer} used to encode the instance
+     * @param scheduler
+     *            executor used to write coalesced load updates and delayed
+     *            re-registrations, or null to disable
+     *            {@link #updateLoad(double)} and re-register immediately
+     */
+    public CuratorAdvertiser(final DiscoveryFactory configuration,
+            final CuratorFramework framework,
+            final InstanceSerializer<InstanceMetadata> serializer,
+            @Nullable final ScheduledExecutorService scheduler) {
+        this(configuration, framework, serializer, scheduler, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param configuration
+     *            {@link DiscoveryFactory}
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param serializer
+     *            {@link InstanceSerializer} used to encode the instance
+     * @param scheduler
+     *            executor used to time coalesced load updates, delayed
+     *            re-registrations and timeouts, or null to disable
+     *            {@link #updateLoad(double)} and re-register immediately
+     * @param executor
+     *            executor running the ZooKeeper writes, or null to run them
+     *            on the scheduler and on the calling thread. It
+     *            should run a single thread so that writes are made in the
+     *            order they were requested.
+     */
+    public CuratorAdvertiser(final DiscoveryFactory configuration,
+            final CuratorFramework framework,
+            final InstanceSerializer<InstanceMetadata> serializer,
+            @Nullable final ScheduledExecutorService scheduler,
+            @Nullable final ExecutorService executor) {
         this.configuration = checkNotNull(configuration);
-        this.discovery = checkNotNull(discovery);
+        this.framework = checkNotNull(framework);
+        this.serializer = checkNotNull(serializer);
+        this.scheduler = scheduler;
+        this.executor = (executor == null) ? null : MoreExecutors
+                .listeningDecorator(executor);
+        final ImmutableList.Builder<Registration> builder = ImmutableList
+                .builder();
+        // the first advertisement keeps the instance ID of this advertiser
+        UUID id = instanceId;
+        for (final AdvertisementFactory advertisement : configuration
+                .getAdvertisements()) {
+            builder.add(new Registration(configuration.getBasePath(),
+                    advertisement, id));
+            id = UUID.randomUUID();
+        }
+        this.registrations = builder.build();
+        checkArgument(!registrations.isEmpty(), "No advertisements");
     }
 
     /**
-     * This must be called before other methods are used.
+     * This, or {@link #initListenInfo(Map)}, must be called before other
+     * methods are used. The port is advertised under every service name.
      * 
      * @param port
      *            port this instance is listening on
      */
     public synchronized void initListenInfo(final int port) {
+        initListenAddress();
+        for (final Registration registration : registrations) {
+            registration.port = port;
+        }
+    }
+
+    /**
+     * This, or {@link #initListenInfo(int)}, must be called before other
+     * methods are used. Each service name is advertised with the port of its
+     * connector; names whose connector is not listed are not advertised.
+     * 
+     * @param ports
+     *            ports this instance is listening on, by connector name
+     */
+    public synchronized void initListenInfo(final Map<String, Integer> ports) {
+        initListenAddress();
+        for (final Registration registration : registrations) {
+            final Integer port = ports.get(registration.connector);
+            if (port == null) {
+                LOGGER.warn("No connector named {}, not advertising {}",
+                        registration.connector, registration.serviceName);
+                registration.port = 0;
+            } else {
+                registration.port = port;
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void initListenAddress() {
         try {
             final Collection<InetAddress> ips = ServiceInstanceBuilder
                     .getAllLocalIPs();
@@ -73,8 +258,6 @@ public class CuratorAdvertiser implements ConnectionStateListener {
             LOGGER.debug("Using listenAddress from configuration file");
             listenAddress = configuration.getListenAddress();
         }
-
-        listenPort = port;
     }
 
     /**
@@ -82,11 +265,15 @@ public class CuratorAdvertiser implements ConnectionStateListener {
      */
     public synchronized void registerAvailability() {
         checkInitialized();
-        LOGGER.info("Registering availability at <{}:{}>", listenAddress,
-                listenPort);
+        final List<Registration> targets = getListening();
+        for (final Registration registration : targets) {
+            LOGGER.info("Registering availability of {} at <{}:{}>",
+                    registration.serviceName, listenAddress, registration.port);
+        }
 
         try {
-            discovery.registerService(getInstance());
+            writeAll(targets);
+            registered = true;
             LOGGER.debug("Registered service in ZK");
         } catch (final Exception e) {
             throw Throwables.propagate(e);
@@ -98,11 +285,15 @@ public class CuratorAdvertiser implements ConnectionStateListener {
      */
     public synchronized void unregisterAvailability() {
         checkInitialized();
-        LOGGER.info("Unregistering availability at <{}:{}>", listenAddress,
-                listenPort);
+        final List<Registration> targets = getListening();
+        for (final Registration registration : targets) {
+            LOGGER.info("Unregistering availability of {} at <{}:{}>",
+                    registration.serviceName, listenAddress, registration.port);
+        }
 
         try {
-            discovery.unregisterService(getInstance());
+            registered = false;
+            deleteAll(targets);
             LOGGER.debug("Unregistered service from ZK");
         } catch (final Exception e) {
             throw Throwables.propagate(e);
@@ -110,7 +301,138 @@ public class CuratorAdvertiser implements ConnectionStateListener {
     }
 
     /**
-     * Return the instance ID
+     * Register the instance in ZooKeeper without blocking the caller.
+     * 
+     * @return future which completes once the instance is registered, or
+     *         fails if it could not be registered within the registration
+     *         timeout
+     */
+    public ListenableFuture<Void> registerAvailabilityAsync() {
+        return submit("register", new Callable<Void>() {
+            @Override
+            public Void call() {
+                registerAvailability();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Remove the instance from ZooKeeper without blocking the caller.
+     * 
+     * @return future which completes once the instance is unregistered, or
+     *         fails if it could not be unregistered within the registration
+     *         timeout
+     */
+    public ListenableFuture<Void> unregisterAvailabilityAsync() {
+        return submit("unregister", new Callable<Void>() {
+            @Override
+            public Void call() {
+                unregisterAvailability();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Report the current load of this instance, as a fraction of its
+     * capacity between 0 and 1. Updates are coalesced: at most one write per
+     * {@link DiscoveryFactory#getMinLoadUpdateInterval() minimum interval} is
+     * made to ZooKeeper, carrying the latest value, and only if it differs
+     * from the advertised load by at least the
+     * {@link DiscoveryFactory#getLoadUpdateThreshold() threshold}.
+     * 
+     * @param load
+     *            current load
+     */
+    public void updateLoad(final double load) {
+        checkState(scheduler != null, "No scheduler for load updates");
+        pendingLoad.set(Math.min(Math.max(load, 0.0), 1.0));
+        if (flushScheduled.compareAndSet(false, true)) {
+            final long delay = loadWrittenNanos
+                    + configuration.getMinLoadUpdateInterval().toNanoseconds()
+                    - System.nanoTime();
+            scheduler.schedule(onExecutor(flushLoad), Math.max(delay, 0L),
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Return the load currently advertised for this instance.
+     * 
+     * @return load between 0 and 1, or null if none has been reported
+     */
+    @Nullable
+    public Double getLoad() {
+        return load;
+    }
+
+    /**
+     * Publish whether this instance is draining. Clients stop selecting a
+     * draining instance, so that requests in flight can complete before it
+     * is unregistered. Before registration the status is only recorded, so
+     * that it is included in the initial registration.
+     * 
+     * @param draining
+     *            whether the instance should no longer be sent new requests
+     */
+    public synchronized void setDraining(final boolean draining) {
+        if (this.draining == draining) {
+            return;
+        }
+        this.draining = draining;
+        if (!registered) {
+            return;
+        }
+        LOGGER.info(draining ? "Draining availability"
+                : "No longer draining availability");
+        try {
+            updateAll(getListening());
+        } catch (final Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Publish whether this instance is draining without blocking the caller.
+     * 
+     * @param draining
+     *            whether the instance should no longer be sent new requests
+     * @return future which completes once the status is published, or fails
+     *         if it could not be published within the registration timeout
+     * @see #setDraining(boolean)
+     */
+    public ListenableFuture<Void> setDrainingAsync(final boolean draining) {
+        return submit("drain", new Callable<Void>() {
+            @Override
+            public Void call() {
+                setDraining(draining);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Return whether this instance is advertised as draining.
+     * 
+     * @return true if clients should no longer select this instance
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Return whether this instance is currently registered.
+     * 
+     * @return true between a successful registration and the next
+     *         unregistration
+     */
+    public boolean isRegistered() {
+        return registered;
+    }
+
+    /**
+     * Return the instance ID of the first advertisement
      * 
      * @return {@link UUID}
      */
@@ -119,40 +441,458 @@ public class CuratorAdvertiser implements ConnectionStateListener {
     }
 
     /**
-     * Return the {@link ServiceInstance} that will be registered with the
-     * {@link ServiceDiscovery} instance.
+     * Return the path of the znode of the first advertisement.
+     * 
+     * @return znode path
+     */
+    public String getPath() {
+        return registrations.get(0).path;
+    }
+
+    /**
+     * Return the paths of the znodes of all advertisements.
+     * 
+     * @return znode paths
+     */
+    public ImmutableList<String> getPaths() {
+        final ImmutableList.Builder<String> paths = ImmutableList.builder();
+        for (final Registration registration : registrations) {
+            paths.add(registration.path);
+        }
+        return paths.build();
+    }
+
+    /**
+     * Return the {@link ServiceInstance} of the first advertisement that will
+     * be registered in ZooKeeper.
      * 
      * @return {@link ServiceInstance}
      * @throws Exception
      */
-    public ServiceInstance<InstanceMetadata> getInstance() throws Exception {
-        final InstanceMetadata metadata = new InstanceMetadata(instanceId,
-                listenAddress, listenPort);
+    public synchronized ServiceInstance<InstanceMetadata> getInstance()
+            throws Exception {
+        return getInstance(registrations.get(0));
+    }
+
+    /**
+     * Return the {@link ServiceInstance}s of all advertisements whose
+     * connector was found, as they will be registered in ZooKeeper.
+     * 
+     * @return {@link ServiceInstance}s
+     * @throws Exception
+     */
+    public synchronized ImmutableList<ServiceInstance<InstanceMetadata>> getInstances()
+            throws Exception {
+        final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .builder();
+        for (final Registration registration : getListening()) {
+            instances.add(getInstance(registration));
+        }
+        return instances.build();
+    }
+
+    @GuardedBy("this")
+    private ServiceInstance<InstanceMetadata> getInstance(
+            final Registration registration) throws Exception {
+        final InstanceMetadata metadata = new InstanceMetadata(
+                registration.instanceId, listenAddress, registration.port,
+                configuration.getWeight(), load, configuration.getZone(),
+                draining);
 
         return ServiceInstance.<InstanceMetadata> builder()
-                .name(configuration.getServiceName()).address(listenAddress)
-                .port(listenPort).id(instanceId.toString()).payload(metadata)
+                .name(registration.serviceName).address(listenAddress)
+                .port(registration.port)
+                .id(registration.instanceId.toString()).payload(metadata)
                 .build();
     }
 
+    /**
+     * Return the advertisements whose connector was found.
+     */
+    @GuardedBy("this")
+    private List<Registration> getListening() {
+        final List<Registration> listening = Lists
+                .newArrayListWithCapacity(registrations.size());
+        for (final Registration registration : registrations) {
+            if (registration.port > 0) {
+                listening.add(registration);
+            }
+        }
+        return listening;
+    }
+
+    /**
+     * Write the latest pending load to ZooKeeper if it changed enough. Before
+     * registration the value is only recorded, so that it is included in the
+     * initial registration.
+     */
+    private synchronized void flushLoad() {
+        flushScheduled.set(false);
+        final Double pending = pendingLoad.get();
+        if (pending == null) {
+            return;
+        }
+        if (!registered) {
+            load = pending;
+            return;
+        }
+        if (load != null
+                && Math.abs(pending - load) < configuration
+                        .getLoadUpdateThreshold()) {
+            return;
+        }
+
+        load = pending;
+        loadWrittenNanos = System.nanoTime();
+        try {
+            updateAll(getListening());
+            LOGGER.debug("Updated advertised load to {}", pending);
+        } catch (final Exception e) {
+            LOGGER.warn("Unable to update advertised load", e);
+        }
+    }
+
+    /**
+     * Create the znodes of the given advertisements in a single transaction.
+     * If the transaction fails, because a parent znode is missing or a znode
+     * was left over by an expired session, each znode is written on its own.
+     * 
+     * @param targets
+     *            advertisements to write
+     * @throws Exception
+     *             if the znodes could not be written
+     */
+    @GuardedBy("this")
+    private void writeAll(final List<Registration> targets) throws Exception {
+        final List<byte[]> data = serialize(targets);
+        if (targets.size() > 1) {
+            CuratorTransaction transaction = framework.inTransaction();
+            for (int i = 0; i < targets.size(); i++) {
+                transaction = transaction.create()
+                        .withMode(CreateMode.EPHEMERAL)
+                        .forPath(targets.get(i).path, data.get(i)).and();
+            }
+            try {
+                ((CuratorTransactionFinal) transaction).commit();
+                for (int i = 0; i < targets.size(); i++) {
+                    targets.get(i).written = data.get(i);
+                }
+                return;
+            } catch (final KeeperException e) {
+                LOGGER.debug("Unable to create znodes in one transaction: {}",
+                        e.code());
+            }
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            write(targets.get(i), data.get(i));
+        }
+    }
+
+    /**
+     * Create the znode of an advertisement. A znode left over by an expired
+     * session is replaced, so that watchers see the new registration.
+     * 
+     * @param registration
+     *            advertisement to write
+     * @param bytes
+     *            serialized {@link ServiceInstance}
+     * @throws Exception
+     *             if the znode could not be written
+     */
+    @GuardedBy("this")
+    private void write(final Registration registration, final byte[] bytes)
+            throws Exception {
+        final String path = registration.path;
+        try {
+            framework.create().creatingParentsIfNeeded()
+                    .withMode(CreateMode.EPHEMERAL).forPath(path, bytes);
+        } catch (final KeeperException.NodeExistsException e) {
+            final Stat stat = framework.checkExists().forPath(path);
+            if (stat != null && stat.getEphemeralOwner() == getSessionId()) {
+                framework.setData().forPath(path, bytes);
+            } else {
+                try {
+                    framework.delete().forPath(path);
+                } catch (final KeeperException.NoNodeException ignored) {
+                    // expired in the meantime
+                }
+                framework.create().creatingParentsIfNeeded()
+                        .withMode(CreateMode.EPHEMERAL).forPath(path, bytes);
+            }
+        }
+        registration.written = bytes;
+    }
+
+    /**
+     * Update the data of the znodes of the given advertisements in a single
+     * transaction, falling back to updating, and if needed re-creating, each
+     * znode on its own.
+     * 
+     * @param targets
+     *            advertisements to update
+     * @throws Exception
+     *             if the znodes could not be written
+     */
+    @GuardedBy("this")
+    private void updateAll(final List<Registration> targets) throws Exception {
+        final List<byte[]> data = serialize(targets);
+        if (targets.size() > 1) {
+            CuratorTransaction transaction = framework.inTransaction();
+            for (int i = 0; i < targets.size(); i++) {
+                transaction = transaction.setData()
+                        .forPath(targets.get(i).path, data.get(i)).and();
+            }
+            try {
+                ((CuratorTransactionFinal) transaction).commit();
+                for (int i = 0; i < targets.size(); i++) {
+                    targets.get(i).written = data.get(i);
+                }
+                return;
+            } catch (final KeeperException e) {
+                LOGGER.debug("Unable to update znodes in one transaction: {}",
+                        e.code());
+            }
+        }
+        for (int i = 0; i < targets.size(); i++) {
+            final Registration registration = targets.get(i);
+            try {
+                framework.setData().forPath(registration.path, data.get(i));
+                registration.written = data.get(i);
+            } catch (final KeeperException.NoNodeException e) {
+                write(registration, data.get(i));
+            }
+        }
+    }
+
+    /**
+     * Delete the znodes of the given advertisements in a single transaction,
+     * falling back to deleting each znode on its own and ignoring those which
+     * are already gone.
+     * 
+     * @param targets
+     *            advertisements to delete
+     * @throws Exception
+     *             if the znodes could not be deleted
+     */
+    @GuardedBy("this")
+    private void deleteAll(final List<Registration> targets) throws Exception {
+        for (final Registration registration : targets) {
+            registration.written = null;
+        }
+        if (targets.size() > 1) {
+            CuratorTransaction transaction = framework.inTransaction();
+            for (final Registration registration : targets) {
+                transaction = transaction.delete().forPath(registration.path)
+                        .and();
+            }
+            try {
+                ((CuratorTransactionFinal) transaction).commit();
+                return;
+            } catch (final KeeperException e) {
+                LOGGER.debug("Unable to delete znodes in one transaction: {}",
+                        e.code());
+            }
+        }
+        for (final Registration registration : targets) {
+            try {
+                framework.delete().guaranteed().forPath(registration.path);
+            } catch (final KeeperException.NoNodeException e) {
+                LOGGER.debug("{} was not registered in ZK",
+                        registration.serviceName);
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private List<byte[]> serialize(final List<Registration> targets)
+            throws Exception {
+        final List<byte[]> data = Lists.newArrayListWithCapacity(targets
+                .size());
+        for (final Registration registration : targets) {
+            data.add(serializer.serialize(getInstance(registration)));
+        }
+        return data;
+    }
+
+    /**
+     * Schedule a re-registration after a random delay, which grows
+     * exponentially with the number of consecutive failed attempts.
+     */
+    private void scheduleReregistration() {
+        if (!registered || !reregistrationScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        if (scheduler == null) {
+            reregister();
+            return;
+        }
+
+        final int attempt = Math.min(reregistrationAttempts.getAndIncrement(),
+                16);
+        final long window = Math.min(configuration.getReregistrationDelay()
+                .toMilliseconds() << attempt, MAX_REREGISTRATION_DELAY_MILLIS);
+        final long delay = ThreadLocalRandom.current().nextLong(
+                Math.max(window, 1));
+        LOGGER.debug("Re-registering availability in {}ms", delay);
+        scheduler.schedule(onExecutor(reregister), delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Make sure the znodes of this instance exist, belong to the current
+     * session and hold the last written data; rewrite the others.
+     */
+    private synchronized void reregister() {
+        reregistrationScheduled.set(false);
+        if (!registered) {
+            return;
+        }
+
+        try {
+            final long sessionId = getSessionId();
+            final List<Registration> stale = Lists.newArrayList();
+            for (final Registration registration : getListening()) {
+                final Stat stat = new Stat();
+                try {
+                    final byte[] current = framework.getData()
+                            .storingStatIn(stat).forPath(registration.path);
+                    if (stat.getEphemeralOwner() == sessionId
+                            && Arrays.equals(current, registration.written)) {
+                        continue;
+                    }
+                } catch (final KeeperException.NoNodeException e) {
+                    // the session expired and took the znode with it
+                }
+                LOGGER.info("Re-registering availability of {} at <{}:{}>",
+                        registration.serviceName, listenAddress,
+                        registration.port);
+                stale.add(registration);
+            }
+
+            if (stale.isEmpty()) {
+                LOGGER.debug("Registration in ZK is unchanged");
+            } else {
+                writeAll(stale);
+            }
+            reregistrationAttempts.set(0);
+        } catch (final Exception e) {
+            LOGGER.warn("Unable to re-register service in ZK", e);
+            if (scheduler != null) {
+                scheduleReregistration();
+            }
+        }
+    }
+
+    /**
+     * Run a task on the executor, failing the returned future if it does not
+     * complete within the registration timeout. The task itself is not
+     * interrupted. Without an executor, the task runs on the calling thread.
+     */
+    private ListenableFuture<Void> submit(final String operation,
+            final Callable<Void> task) {
+        if (executor == null || scheduler == null) {
+            try {
+                return Futures.immediateFuture(task.call());
+            } catch (final Exception e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+
+        final SettableFuture<Void> result = SettableFuture.create();
+        final long timeout = configuration.getRegistrationTimeout()
+                .toMilliseconds();
+        final ScheduledFuture<?> timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.setException(new TimeoutException("Unable to "
+                        + operation + " within " + timeout + "ms"));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        Futures.addCallback(executor.submit(task), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(final Void value) {
+                timer.cancel(false);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                timer.cancel(false);
+                result.setException(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Wrap a task scheduled on the scheduler so that it runs on the executor,
+     * if there is one.
+     */
+    private Runnable onExecutor(final Runnable task) {
+        if (executor == null) {
+            return task;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(task);
+            }
+        };
+    }
+
+    private long getSessionId() throws Exception {
+        return framework.getZookeeperClient().getZooKeeper().getSessionId();
+    }
+
     /**
      * Check that the {@link #initListenInfo} method has been called by
-     * validating that the listenPort is greater than 1.
+     * validating that at least one advertisement has a port.
      */
+    @GuardedBy("this")
     private void checkInitialized() {
-        if (Strings.isNullOrEmpty(listenAddress) || listenPort < 1) {
+        if (Strings.isNullOrEmpty(listenAddress) || getListening().isEmpty()) {
             throw new IllegalStateException("Not initialized");
         }
     }
 
     /**
-     * TODO - figure out how to register this listener
+     * Re-register after a reconnect. If the session survived, the znode is
+     * left alone; if it expired, the znode is recreated after a random delay
+     * so that a fleet reconnecting at once does not stampede ZooKeeper. This
+     * listener must be added to the
+     * {@link CuratorFramework#getConnectionStateListenable()}.
      */
     @Override
     public void stateChanged(final CuratorFramework client,
             final ConnectionState newState) {
         if (newState == ConnectionState.RECONNECTED) {
-            registerAvailability();
+            scheduleReregistration();
+        } else if (newState == ConnectionState.LOST && registered) {
+            LOGGER.warn("Connection to ZK lost, will re-register on reconnect");
+        }
+    }
+
+    /**
+     * A service name this instance is advertised under, and the state of its
+     * znode. Mutable fields are guarded by the enclosing advertiser.
+     */
+    private static final class Registration {
+        final String serviceName;
+        final String connector;
+        final UUID instanceId;
+        final String path;
+        int port = 0;
+        byte[] written;
+
+        Registration(final String basePath,
+                final AdvertisementFactory advertisement, final UUID instanceId) {
+            this.serviceName = checkNotNull(advertisement.getServiceName());
+            this.connector = checkNotNull(advertisement.getConnector());
+            this.instanceId = instanceId;
+            this.path = ZKPaths.makePath(
+                    ZKPaths.makePath(basePath, serviceName),
+                    instanceId.toString());
         }
     }
 }
@@ -0,0 +1,102 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import java.util.EnumMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * {@link ConnectionStateListener} which counts the connection state
+ * transitions of a {@link CuratorFramework} and the ZooKeeper sessions which
+ * expired, detected by the session ID changing across a reconnect.
+ */
+@ThreadSafe
+public class CuratorConnectionMetrics implements ConnectionStateListener {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CuratorConnectionMetrics.class);
+
+    private final Map<ConnectionState, Meter> transitions = new EnumMap<ConnectionState, Meter>(
+            ConnectionState.class);
+    private final Counter sessionExpirations;
+    private volatile boolean connected = false;
+
+    @GuardedBy("this")
+    private long sessionId = 0;
+
+    /**
+     * Constructor
+     * 
+     * @param registry
+     *            {@link MetricRegistry} to publish the metrics to
+     */
+    public CuratorConnectionMetrics(final MetricRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param registry
+     *            {@link MetricRegistry} to publish the metrics to
+     * @param scope
+     *            name distinguishing the metrics of this framework from
+     *            those of other frameworks in the same registry, or null
+     */
+    public CuratorConnectionMetrics(final MetricRegistry registry,
+            @Nullable final String scope) {
+        final String prefix = name(CuratorFramework.class, scope);
+        for (final ConnectionState state : ConnectionState.values()) {
+            transitions.put(state, registry.meter(name(prefix, "connection",
+                    state.name().toLowerCase())));
+        }
+        sessionExpirations = registry.counter(name(prefix,
+                "session-expirations"));
+        try {
+            registry.register(name(prefix, "connected"), new Gauge<Boolean>() {
+                @Override
+                public Boolean getValue() {
+                    return connected;
+                }
+            });
+        } catch (final IllegalArgumentException e) {
+            LOGGER.warn("{} is already reported by another framework",
+                    name(prefix, "connected"));
+        }
+    }
+
+    @Override
+    public synchronized void stateChanged(final CuratorFramework client,
+            final ConnectionState newState) {
+        transitions.get(newState).mark();
+        connected = (newState == ConnectionState.CONNECTED)
+                || (newState == ConnectionState.RECONNECTED)
+                || (newState == ConnectionState.READ_ONLY);
+        if (!connected) {
+            return;
+        }
+
+        try {
+            final long current = client.getZookeeperClient().getZooKeeper()
+                    .getSessionId();
+            if (sessionId != 0 && current != sessionId) {
+                sessionExpirations.inc();
+                LOGGER.warn("ZooKeeper session 0x{} expired, now using 0x{}",
+                        Long.toHexString(sessionId), Long.toHexString(current));
+            }
+            sessionId = current;
+        } catch (final Exception e) {
+            LOGGER.debug("Unable to read the ZooKeeper session ID", e);
+        }
+    }
+}
@@ -1,50 +1,91 @@
 package com.ge.snowizard.discovery.core;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import io.dropwizard.setup.Environment;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.ge.snowizard.discovery.DiscoveryFactory;
 import com.ge.snowizard.discovery.health.CuratorHealthCheck;
 import com.ge.snowizard.discovery.manage.CuratorManager;
 
 public class CuratorFactory {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CuratorFactory.class);
+
+    private static final String HEALTH_CHECK = "curator";
 
     private final Environment environment;
+    private final CuratorFrameworkRegistry registry;
 
     /**
-     * Constructor
+     * Constructor using the JVM-wide {@link CuratorFrameworkRegistry}
      * 
      * @param environment
      *            {@link Environment}
      */
     public CuratorFactory(final Environment environment) {
+        this(environment, CuratorFrameworkRegistry.getInstance());
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param environment
+     *            {@link Environment}
+     * @param registry
+     *            {@link CuratorFrameworkRegistry} the frameworks are shared
+     *            through
+     */
+    public CuratorFactory(final Environment environment,
+            final CuratorFrameworkRegistry registry) {
         this.environment = environment;
+        this.registry = checkNotNull(registry);
     }
 
     /**
-     * Build a new instance of a {@link CuratorFramework} and register a health
-     * check and make sure it's properly managed.
+     * Return the shared {@link CuratorFramework} matching the given
+     * configuration, building it if needed, and make sure it's properly
+     * managed. The health check and connection metrics are registered the
+     * first time a framework is used by the environment. The first framework
+     * of an environment registers them under their plain names, and every
+     * other framework under names scoped by its connect string and
+     * namespace.
      * 
      * @param config
      *            {@link DiscoveryFactory}
      * @return {@link CuratorFramework}
      */
     public CuratorFramework build(final DiscoveryFactory config) {
-        final CuratorFramework framework = CuratorFrameworkFactory
-                .builder()
-                .connectionTimeoutMs(
-                        (int) config.getConnectionTimeout().toMilliseconds())
-                .sessionTimeoutMs(
-                        (int) config.getSessionTimeout().toMilliseconds())
-                .retryPolicy(config.getRetryPolicy())
-                .compressionProvider(config.getCompressionProvider())
-                .connectString(config.getQuorumSpec())
-                .canBeReadOnly(config.isReadOnly())
-                .namespace(config.getNamespace()).build();
-
-        environment.lifecycle().manage(new CuratorManager(framework));
-        environment.healthChecks().register("curator",
-                new CuratorHealthCheck(framework));
+        final CuratorFramework framework = registry.acquire(config);
+        environment.lifecycle().manage(
+                new CuratorManager(framework, registry));
+
+        if (!registry.attach(framework, environment)) {
+            return framework;
+        }
+
+        final String scope = environment.healthChecks().getNames()
+                .contains(HEALTH_CHECK) ? registry.getName(framework) : null;
+        framework.getConnectionStateListenable().addListener(
+                new CuratorConnectionMetrics(environment.metrics(), scope));
+
+        final String healthCheck = (scope == null) ? HEALTH_CHECK
+                : HEALTH_CHECK + "-" + scope;
+        if (environment.healthChecks().getNames().contains(healthCheck)) {
+            LOGGER.warn("Health check {} is already registered", healthCheck);
+            return framework;
+        }
+        final ScheduledExecutorService scheduler = environment.lifecycle()
+                .scheduledExecutorService("curator-health-%d").build();
+        environment.healthChecks().register(
+                healthCheck,
+                new CuratorHealthCheck(framework, scheduler, config
+                        .getHealthCheckInterval().toMilliseconds(), config
+                        .getHealthCheckMaxAge().toMilliseconds(),
+                        TimeUnit.MILLISECONDS));
         return framework;
     }
 }
@@ -0,0 +1,226 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.ge.snowizard.discovery.DiscoveryFactory;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Hands out {@link CuratorFramework}s shared by everyone in the JVM who
+ * connects to the same ensemble with the same namespace and session
+ * settings, so that they share a single ZooKeeper session and its
+ * connection threads.
+ *
+ * Frameworks are started when they are built, so that they can be used
+ * during {@code run()}, and are reference counted: each {@link #acquire}
+ * must be matched by a {@link #release}, and a framework is closed once it
+ * is no longer used.
+ */
+@ThreadSafe
+public class CuratorFrameworkRegistry {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CuratorFrameworkRegistry.class);
+
+    private static final CuratorFrameworkRegistry INSTANCE = new CuratorFrameworkRegistry();
+
+    @GuardedBy("this")
+    private final Map<Key, Entry> entries = Maps.newHashMap();
+
+    @GuardedBy("this")
+    private final Map<CuratorFramework, Entry> frameworks = new IdentityHashMap<CuratorFramework, Entry>();
+
+    /**
+     * Return the registry shared by the whole JVM.
+     *
+     * @return {@link CuratorFrameworkRegistry}
+     */
+    public static CuratorFrameworkRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Return the started framework matching the given configuration,
+     * building one if there is none.
+     *
+     * @param config
+     *            {@link DiscoveryFactory}
+     * @return shared {@link CuratorFramework}, to be handed back to
+     *         {@link #release(CuratorFramework)} once no longer used
+     */
+    public synchronized CuratorFramework acquire(final DiscoveryFactory config) {
+        final Key key = new Key(config);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, build(config));
+            entries.put(key, entry);
+            frameworks.put(entry.framework, entry);
+            LOGGER.debug("Created shared framework for {}", key.quorumSpec);
+        }
+        entry.references++;
+        return entry.framework;
+    }
+
+    /**
+     * Record that a framework returned by {@link #acquire} is used by the
+     * given owner, typically a Dropwizard
+     * {@link io.dropwizard.setup.Environment}. This is used to register
+     * health checks and metrics once per owner.
+     *
+     * @param framework
+     *            {@link CuratorFramework} returned by {@link #acquire}
+     * @param owner
+     *            owner of the framework
+     * @return true if the owner did not use the framework yet
+     */
+    public synchronized boolean attach(final CuratorFramework framework,
+            final Object owner) {
+        return getEntry(framework).owners.add(checkNotNull(owner));
+    }
+
+    /**
+     * Return a name identifying a framework by the ensemble and namespace it
+     * connects to, used to tell the metrics and health checks of several
+     * frameworks apart.
+     *
+     * @param framework
+     *            {@link CuratorFramework} returned by {@link #acquire}
+     * @return connect string, followed by the namespace if there is one
+     */
+    public synchronized String getName(final CuratorFramework framework) {
+        final Key key = getEntry(framework).key;
+        return (key.namespace == null) ? key.quorumSpec : key.quorumSpec
+                + "/" + key.namespace;
+    }
+
+    /**
+     * Hand back a framework returned by {@link #acquire}, closing it if it is
+     * no longer used.
+     *
+     * @param framework
+     *            {@link CuratorFramework} returned by {@link #acquire}
+     */
+    public synchronized void release(final CuratorFramework framework) {
+        final Entry entry = getEntry(framework);
+        if (--entry.references > 0) {
+            return;
+        }
+        entries.remove(entry.key);
+        frameworks.remove(framework);
+        framework.close();
+        LOGGER.debug("Closed shared framework for {}", entry.key.quorumSpec);
+    }
+
+    /**
+     * Return the number of distinct frameworks currently shared.
+     *
+     * @return number of frameworks
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @GuardedBy("this")
+    private Entry getEntry(final CuratorFramework framework) {
+        final Entry entry = frameworks.get(framework);
+        checkArgument(entry != null,
+                "Framework is not shared by this registry");
+        return entry;
+    }
+
+    private static CuratorFramework build(final DiscoveryFactory config) {
+        final CuratorFramework framework = CuratorFrameworkFactory
+                .builder()
+                .connectionTimeoutMs(
+                        (int) config.getConnectionTimeout().toMilliseconds())
+                .sessionTimeoutMs(
+                        (int) config.getSessionTimeout().toMilliseconds())
+                .retryPolicy(config.getRetryPolicy())
+                .compressionProvider(config.getCompressionProvider())
+                .connectString(config.getQuorumSpec())
+                .canBeReadOnly(config.isReadOnly())
+                .namespace(config.getNamespace()).build();
+        framework.start();
+        return framework;
+    }
+
+    /**
+     * Settings which {@link #build(DiscoveryFactory)} passes to the
+     * framework.
+     */
+    private static final class Key {
+        final String quorumSpec;
+        final String namespace;
+        final long connectionTimeoutMs;
+        final long sessionTimeoutMs;
+        final long baseSleepTimeMs;
+        final int maxRetries;
+        final boolean readOnly;
+        final CompressionCodec compression;
+        final long compressionThreshold;
+
+        Key(final DiscoveryFactory config) {
+            this.quorumSpec = config.getQuorumSpec();
+            this.namespace = config.getNamespace();
+            this.connectionTimeoutMs = config.getConnectionTimeout()
+                    .toMilliseconds();
+            this.sessionTimeoutMs = config.getSessionTimeout()
+                    .toMilliseconds();
+            this.baseSleepTimeMs = config.getBaseSleepTime().toMilliseconds();
+            this.maxRetries = config.getMaxRetries();
+            this.readOnly = config.isReadOnly();
+            this.compression = config.getCompression();
+            this.compressionThreshold = config.getCompressionThreshold()
+                    .toBytes();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if ((obj == null) || (getClass() != obj.getClass())) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return quorumSpec.equals(other.quorumSpec)
+                    && Objects.equal(namespace, other.namespace)
+                    && connectionTimeoutMs == other.connectionTimeoutMs
+                    && sessionTimeoutMs == other.sessionTimeoutMs
+                    && baseSleepTimeMs == other.baseSleepTimeMs
+                    && maxRetries == other.maxRetries
+                    && readOnly == other.readOnly
+                    && compression == other.compression
+                    && compressionThreshold == other.compressionThreshold;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(quorumSpec, namespace,
+                    connectionTimeoutMs, sessionTimeoutMs, baseSleepTimeMs,
+                    maxRetries, readOnly, compression, compressionThreshold);
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final CuratorFramework framework;
+        final Set<Object> owners = Sets.newIdentityHashSet();
+        int references = 0;
+
+        Entry(final Key key, final CuratorFramework framework) {
+            this.key = key;
+            this.framework = framework;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+
+/**
+ * {@link InstanceSerializer} which writes records with one serializer and
+ * reads them with another. This is used to keep writing an older format
+ * while already being able to read a newer one during a rolling upgrade.
+ */
+public class DelegatingInstanceSerializer<T> implements InstanceSerializer<T> {
+
+    private final InstanceSerializer<T> writer;
+    private final InstanceSerializer<T> reader;
+
+    /**
+     * Constructor
+     *
+     * @param writer
+     *            {@link InstanceSerializer} used to serialize instances
+     * @param reader
+     *            {@link InstanceSerializer} used to deserialize instances
+     */
+    public DelegatingInstanceSerializer(final InstanceSerializer<T> writer,
+            final InstanceSerializer<T> reader) {
+        this.writer = checkNotNull(writer);
+        this.reader = checkNotNull(reader);
+    }
+
+    @Override
+    public byte[] serialize(final ServiceInstance<T> instance) throws Exception {
+        return writer.serialize(instance);
+    }
+
+    @Override
+    public ServiceInstance<T> deserialize(final byte[] bytes) throws Exception {
+        return reader.deserialize(bytes);
+    }
+}
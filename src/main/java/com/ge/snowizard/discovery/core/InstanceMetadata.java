@@ -2,16 +2,26 @@ package com.ge.snowizard.discovery.core;
 
 import io.dropwizard.validation.PortRange;
 import java.util.UUID;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import javax.validation.constraints.NotNull;
 import org.hibernate.validator.constraints.NotEmpty;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Objects;
 
 @Immutable
+@JsonIgnoreProperties(ignoreUnknown = true)
 public final class InstanceMetadata {
 
+    /**
+     * Weight assumed for instances which don't advertise one.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
     @NotNull
     private final UUID instanceId;
 
@@ -21,13 +31,68 @@ public final class InstanceMetadata {
     @PortRange
     private final int listenPort;
 
+    private final int weight;
+
+    @Nullable
+    private final Double load;
+
+    @Nullable
+    private final String zone;
+
+    private final boolean draining;
+
+    public InstanceMetadata(final UUID instanceId, final String listenAddress,
+            final int listenPort) {
+        this(instanceId, listenAddress, listenPort, DEFAULT_WEIGHT, null, null);
+    }
+
+    public InstanceMetadata(final UUID instanceId, final String listenAddress,
+            final int listenPort, final int weight, @Nullable final Double load) {
+        this(instanceId, listenAddress, listenPort, weight, load, null);
+    }
+
+    public InstanceMetadata(final UUID instanceId, final String listenAddress,
+            final int listenPort, final int weight, @Nullable final Double load,
+            @Nullable final String zone) {
+        this(instanceId, listenAddress, listenPort, weight, load, zone, false);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param instanceId
+     *            unique ID of the instance
+     * @param listenAddress
+     *            address the instance is listening on
+     * @param listenPort
+     *            port the instance is listening on
+     * @param weight
+     *            relative capacity of the instance; values below 1 are
+     *            replaced by {@link #DEFAULT_WEIGHT}
+     * @param load
+     *            fraction of the capacity currently in use, between 0 and 1,
+     *            or null if not reported
+     * @param zone
+     *            zone or rack the instance runs in, or null if unknown
+     * @param draining
+     *            whether the instance is about to shut down and should no
+     *            longer be sent new requests
+     */
     @JsonCreator
     public InstanceMetadata(@JsonProperty("instanceId") final UUID instanceId,
             @JsonProperty("listenAddress") final String listenAddress,
-            @JsonProperty("listenPort") final int listenPort) {
+            @JsonProperty("listenPort") final int listenPort,
+            @JsonProperty("weight") final int weight,
+            @JsonProperty("load") @Nullable final Double load,
+            @JsonProperty("zone") @Nullable final String zone,
+            @JsonProperty("draining") final boolean draining) {
         this.instanceId = instanceId;
         this.listenAddress = listenAddress;
         this.listenPort = listenPort;
+        this.weight = (weight > 0) ? weight : DEFAULT_WEIGHT;
+        this.load = load;
+        this.zone = zone;
+        this.draining = draining;
     }
 
     @JsonProperty
@@ -45,6 +110,58 @@ public final class InstanceMetadata {
         return listenPort;
     }
 
+    @JsonIgnore
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Weight as written to JSON, omitted when it is the default so that
+     * readers which don't know about weights still accept the record.
+     */
+    @Nullable
+    @JsonProperty("weight")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Integer getAdvertisedWeight() {
+        return (weight == DEFAULT_WEIGHT) ? null : weight;
+    }
+
+    @Nullable
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Double getLoad() {
+        return load;
+    }
+
+    /**
+     * Zone of the instance, omitted from JSON when unknown for the same
+     * reason as {@link #getAdvertisedWeight()}. Readers which predate zones
+     * reject a registration which carries one, so they must be upgraded
+     * before a zone is configured.
+     */
+    @Nullable
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getZone() {
+        return zone;
+    }
+
+    @JsonIgnore
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Draining status as written to JSON, omitted unless the instance is
+     * draining for the same reason as {@link #getAdvertisedWeight()}.
+     */
+    @Nullable
+    @JsonProperty("draining")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Boolean getAdvertisedDraining() {
+        return draining ? Boolean.TRUE : null;
+    }
+
     @Override
     public boolean equals(final Object obj) {
         if (this == obj) {
@@ -57,18 +174,25 @@ public final class InstanceMetadata {
         final InstanceMetadata other = (InstanceMetadata) obj;
         return Objects.equal(instanceId, other.instanceId)
                 && Objects.equal(listenAddress, other.listenAddress)
-                && Objects.equal(listenPort, other.listenPort);
+                && Objects.equal(listenPort, other.listenPort)
+                && Objects.equal(weight, other.weight)
+                && Objects.equal(load, other.load)
+                && Objects.equal(zone, other.zone)
+                && Objects.equal(draining, other.draining);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(instanceId, listenAddress, listenPort);
+        return Objects.hashCode(instanceId, listenAddress, listenPort, weight,
+                load, zone, draining);
     }
 
     @Override
     public String toString() {
         return Objects.toStringHelper(this).add("instanceId", instanceId)
                 .add("listenAddress", listenAddress)
-                .add("listenPort", listenPort).toString();
+                .add("listenPort", listenPort).add("weight", weight)
+                .add("load", load).add("zone", zone)
+                .add("draining", draining).toString();
     }
 }
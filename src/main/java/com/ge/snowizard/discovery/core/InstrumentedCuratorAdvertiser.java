@@ -0,0 +1,74 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.x.discovery.details.InstanceSerializer;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.ge.snowizard.discovery.DiscoveryFactory;
+
+/**
+ * {@link CuratorAdvertiser} which times registrations and unregistrations.
+ */
+@ThreadSafe
+public class InstrumentedCuratorAdvertiser extends CuratorAdvertiser {
+
+    private final Timer register;
+    private final Timer unregister;
+
+    /**
+     * Constructor
+     * 
+     * @param configuration
+     *            {@link DiscoveryFactory}
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param serializer
+     *            {@link InstanceSerializer} used to encode the instance
+     * @param scheduler
+     *            executor used to time coalesced load updates, delayed
+     *            re-registrations and timeouts, or null to disable
+     *            {@link #updateLoad(double)} and re-register immediately
+     * @param executor
+     *            single-threaded executor running the ZooKeeper writes, or
+     *            null to run them on the scheduler and on the calling thread
+     * @param registry
+     *            {@link MetricRegistry} to publish the metrics to
+     */
+    public InstrumentedCuratorAdvertiser(final DiscoveryFactory configuration,
+            final CuratorFramework framework,
+            final InstanceSerializer<InstanceMetadata> serializer,
+            @Nullable final ScheduledExecutorService scheduler,
+            @Nullable final ExecutorService executor,
+            final MetricRegistry registry) {
+        super(configuration, framework, serializer, scheduler, executor);
+        this.register = registry.timer(name(CuratorAdvertiser.class,
+                "register"));
+        this.unregister = registry.timer(name(CuratorAdvertiser.class,
+                "unregister"));
+    }
+
+    @Override
+    public void registerAvailability() {
+        final Timer.Context context = register.time();
+        try {
+            super.registerAvailability();
+        } finally {
+            context.stop();
+        }
+    }
+
+    @Override
+    public void unregisterAvailability() {
+        final Timer.Context context = unregister.time();
+        try {
+            super.unregisterAvailability();
+        } finally {
+            context.stop();
+        }
+    }
+}
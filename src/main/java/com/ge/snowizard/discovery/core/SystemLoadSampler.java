@@ -0,0 +1,47 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically reports the system load average, divided by the number of
+ * processors, to a {@link CuratorAdvertiser}.
+ */
+@ThreadSafe
+public class SystemLoadSampler implements Runnable {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(SystemLoadSampler.class);
+
+    private final CuratorAdvertiser advertiser;
+    private final OperatingSystemMXBean os = ManagementFactory
+            .getOperatingSystemMXBean();
+
+    /**
+     * Constructor
+     * 
+     * @param advertiser
+     *            {@link CuratorAdvertiser} to report the load to
+     */
+    public SystemLoadSampler(final CuratorAdvertiser advertiser) {
+        this.advertiser = checkNotNull(advertiser);
+    }
+
+    @Override
+    public void run() {
+        try {
+            final double average = os.getSystemLoadAverage();
+            if (average < 0) {
+                // not available on this platform
+                return;
+            }
+            advertiser.updateLoad(average / os.getAvailableProcessors());
+        } catch (final RuntimeException e) {
+            // an exception would cancel the periodic task
+            LOGGER.warn("Unable to sample system load", e);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.ge.snowizard.discovery.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.io.IOException;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.framework.api.CompressionProvider;
+
+/**
+ * {@link CompressionProvider} which compresses values with a
+ * {@link CompressionCodec} unless they are smaller than a threshold, or
+ * compressing them would not make them smaller.
+ *
+ * Values are self-describing, so any codec is read whatever the configured
+ * one is, and a fleet can change codecs with a rolling restart once every
+ * member runs a version which reads them:
+ *
+ * <pre>
+ * GZIP:  0x1F 0x8B ...            (plain GZIP stream)
+ * other: {@link #MAGIC} codec:u8 compressed-bytes
+ * none:  uncompressed-bytes
+ * </pre>
+ *
+ * Uncompressed values are only framed with the {@link CompressionCodec#NONE}
+ * header when they start like a compressed value, so values which are
+ * stored uncompressed, like the JSON or binary records of service instances,
+ * remain readable by versions which do not compress them.
+ */
+@ThreadSafe
+public class ThresholdCompressionProvider implements CompressionProvider {
+
+    /**
+     * First byte of values compressed with a codec other than GZIP. It can
+     * neither start a JSON document nor a {@link BinaryInstanceSerializer}
+     * record.
+     */
+    public static final byte MAGIC = (byte) 0xC5;
+
+    private static final byte GZIP_MAGIC_0 = (byte) 0x1F;
+    private static final byte GZIP_MAGIC_1 = (byte) 0x8B;
+
+    private final CompressionCodec codec;
+    private final int threshold;
+
+    /**
+     * Constructor
+     *
+     * @param codec
+     *            {@link CompressionCodec} used to compress values
+     * @param threshold
+     *            size in bytes below which values are stored uncompressed
+     */
+    public ThresholdCompressionProvider(final CompressionCodec codec,
+            final int threshold) {
+        checkArgument(threshold >= 0, "threshold cannot be negative");
+        this.codec = checkNotNull(codec);
+        this.threshold = threshold;
+    }
+
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public byte[] compress(final String path, final byte[] data)
+            throws Exception {
+        if (codec != CompressionCodec.NONE && data.length >= threshold) {
+            final byte[] compressed = codec.compress(data);
+            if (codec == CompressionCodec.GZIP) {
+                if (compressed.length < data.length) {
+                    return compressed;
+                }
+            } else if (compressed.length + 2 < data.length) {
+                return frame(codec, compressed);
+            }
+        }
+        if (isCompressed(data)) {
+            return frame(CompressionCodec.NONE, data);
+        }
+        return data;
+    }
+
+    @Override
+    public byte[] decompress(final String path, final byte[] data)
+            throws Exception {
+        if (data.length >= 2) {
+            if (data[0] == GZIP_MAGIC_0 && data[1] == GZIP_MAGIC_1) {
+                return CompressionCodec.GZIP.decompress(data, 0);
+            }
+            if (data[0] == MAGIC) {
+                final CompressionCodec found = CompressionCodec
+                        .fromId(data[1]);
+                if (found == null) {
+                    throw new IOException("Unknown compression codec "
+                            + data[1]);
+                }
+                return found.decompress(data, 2);
+            }
+        }
+        return data;
+    }
+
+    private static boolean isCompressed(final byte[] data) {
+        return (data.length >= 2)
+                && (data[0] == MAGIC || (data[0] == GZIP_MAGIC_0 && data[1] == GZIP_MAGIC_1));
+    }
+
+    private static byte[] frame(final CompressionCodec codec,
+            final byte[] data) {
+        final byte[] framed = new byte[data.length + 2];
+        framed[0] = MAGIC;
+        framed[1] = codec.getId();
+        System.arraycopy(data, 0, framed, 2, data.length);
+        return framed;
+    }
+}
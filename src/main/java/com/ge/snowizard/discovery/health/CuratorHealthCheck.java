@@ -1,43 +1,200 @@
 package com.ge.snowizard.discovery.health;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.codahale.metrics.health.HealthCheck;
 
-public class CuratorHealthCheck extends HealthCheck {
+/**
+ * Health check which never blocks on ZooKeeper. The connection state is
+ * tracked through a {@link ConnectionStateListener} and the existence of the
+ * namespace root is probed asynchronously in the background; polls only read
+ * the cached results.
+ */
+@ThreadSafe
+public class CuratorHealthCheck extends HealthCheck implements
+        ConnectionStateListener {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CuratorHealthCheck.class);
+
+    private static final long DEFAULT_INTERVAL_SECONDS = 5;
+    private static final long DEFAULT_MAX_AGE_SECONDS = 30;
 
     private final CuratorFramework framework;
+    private final long intervalNanos;
+    private final long maxAgeNanos;
+    private final boolean scheduled;
+    private final String root;
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final AtomicReference<ConnectionState> state = new AtomicReference<ConnectionState>();
+    private final Runnable probe = new Runnable() {
+        @Override
+        public void run() {
+            probe();
+        }
+    };
+    private final BackgroundCallback callback = new BackgroundCallback() {
+        @Override
+        public void processResult(final CuratorFramework client,
+                final CuratorEvent event) {
+            probed(event.getResultCode());
+        }
+    };
+
+    private volatile boolean rootExists = false;
+    private volatile long probedNanos;
+    private volatile boolean probed = false;
+    private volatile long probeStartedNanos;
 
     /**
-     * Constructor
+     * Constructor using a 5 second interval and a 30 second maximum age.
+     * Without a scheduler, the probe is started by a poll which finds the
+     * last result older than the interval.
      * 
      * @param framework
      *            {@link CuratorFramework}
      */
     public CuratorHealthCheck(final CuratorFramework framework) {
+        this(framework, null, TimeUnit.SECONDS
+                .toMillis(DEFAULT_INTERVAL_SECONDS), TimeUnit.SECONDS
+                .toMillis(DEFAULT_MAX_AGE_SECONDS), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param scheduler
+     *            executor running the background probe, or null to start
+     *            probes from {@link #check()}
+     * @param interval
+     *            time between two probes
+     * @param maxAge
+     *            age after which the last successful probe is no longer
+     *            trusted
+     * @param unit
+     *            {@link TimeUnit} of interval and maxAge
+     */
+    public CuratorHealthCheck(final CuratorFramework framework,
+            @Nullable final ScheduledExecutorService scheduler,
+            final long interval, final long maxAge, final TimeUnit unit) {
         this.framework = checkNotNull(framework);
+        this.root = ZKPaths.makePath("/", framework.getNamespace());
+        this.intervalNanos = unit.toNanos(interval);
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.scheduled = (scheduler != null);
+        // listen first so that a change racing with the initial read isn't
+        // missed, and only take the initial state if no event came first
+        framework.getConnectionStateListenable().addListener(this);
+        state.compareAndSet(null, framework.getZookeeperClient()
+                .isConnected() ? ConnectionState.CONNECTED
+                : ConnectionState.LOST);
+        if (scheduler != null) {
+            scheduler.scheduleWithFixedDelay(probe, 0, interval, unit);
+        }
     }
 
     /**
-     * Checks that the {@link CuratorFramework} instance is started and that the
-     * configured root namespace exists.
+     * Checks that the {@link CuratorFramework} instance is started and
+     * connected and that the configured root namespace was found by a recent
+     * probe. This does not contact ZooKeeper.
      * 
      * @return {@link Result#unhealthy(String)} if the {@link CuratorFramework}
-     *         is not started or the configured root namespace does not exist;
-     *         otherwise, {@link Result#healthy()}.
-     * @throws Exception
-     *             if an error occurs checking the health of the ZooKeeper
-     *             ensemble.
+     *         is not started or connected, or if the configured root namespace
+     *         does not exist or has not been checked recently; otherwise,
+     *         {@link Result#healthy()}.
      */
     @Override
-    protected Result check() throws Exception {
+    protected Result check() {
         if (framework.getState() != CuratorFrameworkState.STARTED) {
             return Result.unhealthy("Client not started");
-        } else if (framework.checkExists().forPath("/") == null) {
+        }
+
+        final ConnectionState current = state.get();
+        if (current == ConnectionState.SUSPENDED
+                || current == ConnectionState.LOST) {
+            return Result.unhealthy("Connection " + current);
+        }
+
+        final long age = System.nanoTime() - probedNanos;
+        if (!scheduled && (!probed || age > intervalNanos)) {
+            probe();
+        }
+        if (!probed) {
+            return Result.unhealthy("Root for namespace not checked yet");
+        }
+        if (age > maxAgeNanos) {
+            return Result.unhealthy("Root for namespace last checked "
+                    + TimeUnit.NANOSECONDS.toMillis(age) + "ms ago");
+        } else if (!rootExists) {
             return Result.unhealthy("Root for namespace does not exist");
         }
 
         return Result.healthy();
     }
+
+    @Override
+    public void stateChanged(final CuratorFramework client,
+            final ConnectionState newState) {
+        state.set(newState);
+        if (newState == ConnectionState.CONNECTED
+                || newState == ConnectionState.RECONNECTED) {
+            probe();
+        }
+    }
+
+    /**
+     * Start an asynchronous existence check of the namespace root, unless one
+     * is already in flight.
+     */
+    private void probe() {
+        if (framework.getState() != CuratorFrameworkState.STARTED) {
+            return;
+        }
+        final long now = System.nanoTime();
+        // Curator may drop the callback of a background operation which ran
+        // out of retries, so a probe older than the interval is abandoned
+        if (!probing.compareAndSet(false, true)
+                && (now - probeStartedNanos) < intervalNanos) {
+            return;
+        }
+        probeStartedNanos = now;
+        try {
+            // the root is probed outside the namespace since a background
+            // operation can't address the namespace itself as "/"
+            framework.usingNamespace(null).checkExists()
+                    .inBackground(callback).forPath(root);
+        } catch (final Exception e) {
+            probing.set(false);
+            LOGGER.debug("Unable to probe ZooKeeper", e);
+        }
+    }
+
+    private void probed(final int resultCode) {
+        probing.set(false);
+        final KeeperException.Code code = KeeperException.Code.get(resultCode);
+        if (code == KeeperException.Code.OK
+                || code == KeeperException.Code.NONODE) {
+            rootExists = (code == KeeperException.Code.OK);
+            probedNanos = System.nanoTime();
+            probed = true;
+        } else {
+            LOGGER.debug("ZooKeeper probe failed: {}", code);
+        }
+    }
 }
@@ -2,11 +2,41 @@ package com.ge.snowizard.discovery.manage;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import io.dropwizard.lifecycle.Managed;
+import io.dropwizard.util.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import com.ge.snowizard.discovery.core.CuratorAdvertiser;
 
-public class CuratorAdvertiserManager implements Managed {
+/**
+ * Unregisters the instance on shutdown. Registered as a listener of the
+ * Jetty server as well, the instance is first drained when the server begins
+ * to stop, while its connectors still accept requests: it is advertised as
+ * draining, so that clients stop selecting it, and unregistered once the
+ * grace period has passed.
+ */
+public class CuratorAdvertiserManager extends AbstractLifeCycleListener
+        implements Managed {
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(CuratorAdvertiserManager.class);
+
+    private static final Duration DEFAULT_TIMEOUT = Duration.seconds(10);
 
     private final CuratorAdvertiser advertiser;
+    private final Duration timeout;
+    private final Duration drainGracePeriod;
+
+    // claimed by the first drain() until resume(), so that the admin task
+    // and the server stopping don't drain the instance twice
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    // claimed by whichever of drain() and stop() unregisters the instance
+    private final AtomicBoolean unregistered = new AtomicBoolean();
 
     /**
      * Constructor
@@ -15,7 +45,85 @@ public class CuratorAdvertiserManager implements Managed {
      *            {@link CuratorAdvertiser}
      */
     public CuratorAdvertiserManager(final CuratorAdvertiser advertiser) {
+        this(advertiser, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param advertiser
+     *            {@link CuratorAdvertiser}
+     * @param timeout
+     *            maximum time to wait for the instance to be unregistered on
+     *            shutdown
+     */
+    public CuratorAdvertiserManager(final CuratorAdvertiser advertiser,
+            final Duration timeout) {
+        this(advertiser, timeout, Duration.seconds(0));
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param advertiser
+     *            {@link CuratorAdvertiser}
+     * @param timeout
+     *            maximum time to wait for each ZooKeeper write on shutdown
+     * @param drainGracePeriod
+     *            time between advertising the instance as draining and
+     *            unregistering it
+     */
+    public CuratorAdvertiserManager(final CuratorAdvertiser advertiser,
+            final Duration timeout, final Duration drainGracePeriod) {
         this.advertiser = checkNotNull(advertiser);
+        this.timeout = checkNotNull(timeout);
+        this.drainGracePeriod = checkNotNull(drainGracePeriod);
+    }
+
+    /**
+     * Advertise the instance as draining, wait for the grace period so that
+     * requests in flight can complete, then unregister it. The caller is
+     * blocked for the whole grace period. Does nothing if the instance is not
+     * registered or is already being drained; if {@link #stop()} or
+     * {@link #resume()} is called during the grace period, the instance is
+     * left as they left it.
+     * 
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public void drain() throws InterruptedException {
+        if (!advertiser.isRegistered() || !draining.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            advertiser.setDrainingAsync(true).get(timeout.toMilliseconds(),
+                    TimeUnit.MILLISECONDS);
+            LOGGER.info("Waiting {} before unregistering service from ZK",
+                    drainGracePeriod);
+            Thread.sleep(drainGracePeriod.toMilliseconds());
+        } catch (final ExecutionException | TimeoutException e) {
+            // clients would not notice the grace period, so don't wait
+            LOGGER.warn("Unable to advertise service as draining", e);
+        }
+        if (draining.get() && unregistered.compareAndSet(false, true)) {
+            unregister();
+        }
+    }
+
+    /**
+     * Undo {@link #drain()}: clear the draining status and register the
+     * instance again.
+     * 
+     * @throws Exception
+     *             if the instance could not be registered
+     */
+    public void resume() throws Exception {
+        unregistered.set(false);
+        draining.set(false);
+        advertiser.setDrainingAsync(false).get(timeout.toMilliseconds(),
+                TimeUnit.MILLISECONDS);
+        advertiser.registerAvailabilityAsync().get(timeout.toMilliseconds(),
+                TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -25,6 +133,30 @@ public class CuratorAdvertiserManager implements Managed {
 
     @Override
     public void stop() throws Exception {
-        advertiser.unregisterAvailability();
+        if (!unregistered.compareAndSet(false, true)) {
+            LOGGER.debug("Service was already unregistered when draining");
+            return;
+        }
+        unregister();
+    }
+
+    @Override
+    public void lifeCycleStopping(final LifeCycle event) {
+        try {
+            drain();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void unregister() throws InterruptedException {
+        // shutdown proceeds even if ZK is unreachable, the ephemeral znode
+        // disappears with the session anyway
+        try {
+            advertiser.unregisterAvailabilityAsync().get(
+                    timeout.toMilliseconds(), TimeUnit.MILLISECONDS);
+        } catch (final ExecutionException | TimeoutException e) {
+            LOGGER.warn("Unable to unregister service from ZK", e);
+        }
     }
 }
@@ -2,15 +2,19 @@ package com.ge.snowizard.discovery.manage;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import io.dropwizard.lifecycle.Managed;
-
+import javax.annotation.Nullable;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.utils.EnsurePath;
+import com.ge.snowizard.discovery.core.CuratorFrameworkRegistry;
 
 public class CuratorManager implements Managed {
 
     private final CuratorFramework framework;
 
+    @Nullable
+    private final CuratorFrameworkRegistry registry;
+
     /**
      * Constructor
      * 
@@ -18,7 +22,23 @@ public class CuratorManager implements Managed {
      *            {@link CuratorFramework}
      */
     public CuratorManager(final CuratorFramework framework) {
+        this(framework, null);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param framework
+     *            {@link CuratorFramework}
+     * @param registry
+     *            {@link CuratorFrameworkRegistry} the framework was acquired
+     *            from, which closes it once it is released by every user, or
+     *            null to close it on stop
+     */
+    public CuratorManager(final CuratorFramework framework,
+            @Nullable final CuratorFrameworkRegistry registry) {
         this.framework = checkNotNull(framework);
+        this.registry = registry;
         // start framework directly to allow other bundles to interact with zookeeper
         // during their run() method.
         if (framework.getState() != CuratorFrameworkState.STARTED) {
@@ -35,6 +55,10 @@ public class CuratorManager implements Managed {
 
     @Override
     public void stop() throws Exception {
-        framework.close();
+        if (registry != null) {
+            registry.release(framework);
+        } else {
+            framework.close();
+        }
     }
 }
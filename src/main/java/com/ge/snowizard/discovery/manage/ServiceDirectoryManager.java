@@ -0,0 +1,30 @@
+package com.ge.snowizard.discovery.manage;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import io.dropwizard.lifecycle.Managed;
+import com.ge.snowizard.discovery.client.ServiceDirectory;
+
+public class ServiceDirectoryManager implements Managed {
+
+    private final ServiceDirectory directory;
+
+    /**
+     * Constructor
+     * 
+     * @param directory
+     *            {@link ServiceDirectory}
+     */
+    public ServiceDirectoryManager(final ServiceDirectory directory) {
+        this.directory = checkNotNull(directory);
+    }
+
+    @Override
+    public void start() throws Exception {
+        directory.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        directory.close();
+    }
+}
@@ -0,0 +1,250 @@
+package com.ge.snowizard.discovery.strategies;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import com.ge.snowizard.discovery.client.InstanceOutcomeListener;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Latency-aware {@link ProviderStrategy} using the "power of two choices":
+ * two distinct instances are picked at random and the one with the lower
+ * cost wins. The cost of an instance is its peak-sensitive, exponentially
+ * weighted moving average (EWMA) latency multiplied by its number of
+ * in-flight requests plus one.
+ *
+ * The EWMA jumps up immediately on a slow response and decays towards zero
+ * over time, so a slow instance is avoided quickly but is retried once it has
+ * been idle for a while. Outcomes must be recorded through
+ * {@link com.ge.snowizard.discovery.client.DiscoveryClient#noteStart},
+ * {@link com.ge.snowizard.discovery.client.DiscoveryClient#noteSuccess} and
+ * {@link com.ge.snowizard.discovery.client.DiscoveryClient#noteError}.
+ */
+@ThreadSafe
+public class LatencyAwareStrategy implements
+        ProviderStrategy<InstanceMetadata>, InstanceOutcomeListener {
+
+    private static final long DEFAULT_DECAY_SECONDS = 10;
+
+    /**
+     * Number of decay times after which the statistics of an idle instance
+     * have no weight left and are dropped.
+     */
+    private static final int RETENTION_DECAYS = 5;
+
+    private final double decayNanos;
+    private final long purgeIntervalNanos;
+    private final long errorPenaltyNanos;
+    private final ConcurrentMap<String, Stats> stats = Maps.newConcurrentMap();
+    private final AtomicLong nextPurgeNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * Constructor using a 10 second decay time and a 1 second error penalty.
+     */
+    public LatencyAwareStrategy() {
+        this(DEFAULT_DECAY_SECONDS, TimeUnit.SECONDS, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param decayTime
+     *            time constant over which old latency samples lose their
+     *            weight
+     * @param decayUnit
+     *            {@link TimeUnit} of decayTime
+     * @param errorPenalty
+     *            latency recorded for a failed request
+     * @param errorPenaltyUnit
+     *            {@link TimeUnit} of errorPenalty
+     */
+    public LatencyAwareStrategy(final long decayTime,
+            final TimeUnit decayUnit, final long errorPenalty,
+            final TimeUnit errorPenaltyUnit) {
+        this.decayNanos = decayUnit.toNanos(decayTime);
+        this.purgeIntervalNanos = Math.max((long) decayNanos, 1);
+        this.errorPenaltyNanos = errorPenaltyUnit.toNanos(errorPenalty);
+    }
+
+    @Override
+    public ServiceInstance<InstanceMetadata> getInstance(
+            final InstanceProvider<InstanceMetadata> instanceProvider)
+            throws Exception {
+        final List<ServiceInstance<InstanceMetadata>> instances = instanceProvider
+                .getInstances();
+        final int size = instances.size();
+        if (size == 0) {
+            return null;
+        } else if (size == 1) {
+            return instances.get(0);
+        }
+
+        final long now = System.nanoTime();
+        final long nextPurge = nextPurgeNanos.get();
+        if ((now - nextPurge) >= 0
+                && nextPurgeNanos.compareAndSet(nextPurge, now
+                        + purgeIntervalNanos)) {
+            purge(instances, now);
+        }
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+
+        final ServiceInstance<InstanceMetadata> a = instances.get(first);
+        final ServiceInstance<InstanceMetadata> b = instances.get(second);
+        return (getCost(a, now) <= getCost(b, now)) ? a : b;
+    }
+
+    /**
+     * Return the current cost of an instance. Instances without any recorded
+     * outcome have a cost of zero so that they are tried first.
+     *
+     * @param instance
+     *            {@link ServiceInstance}
+     * @param now
+     *            current {@link System#nanoTime()}
+     * @return cost of sending a request to the instance
+     */
+    public double getCost(final ServiceInstance<InstanceMetadata> instance,
+            final long now) {
+        final Stats s = stats.get(instance.getId());
+        return (s == null) ? 0 : s.getCost(now);
+    }
+
+    @Override
+    public void onStart(final ServiceInstance<InstanceMetadata> instance) {
+        getStats(instance).inFlight.incrementAndGet();
+    }
+
+    @Override
+    public void onSuccess(final ServiceInstance<InstanceMetadata> instance,
+            final long latencyNanos) {
+        final Stats s = getStats(instance);
+        s.complete();
+        s.observe(latencyNanos, System.nanoTime());
+    }
+
+    @Override
+    public void onError(final ServiceInstance<InstanceMetadata> instance) {
+        final Stats s = getStats(instance);
+        s.complete();
+        s.observe(errorPenaltyNanos, System.nanoTime());
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+
+        final LatencyAwareStrategy other = (LatencyAwareStrategy) obj;
+        return (decayNanos == other.decayNanos)
+                && (errorPenaltyNanos == other.errorPenaltyNanos);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(decayNanos, errorPenaltyNanos);
+    }
+
+    private Stats getStats(final ServiceInstance<InstanceMetadata> instance) {
+        Stats s = stats.get(instance.getId());
+        if (s == null) {
+            final Stats created = new Stats();
+            s = stats.putIfAbsent(instance.getId(), created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Drop the statistics of instances which have been idle long enough for
+     * their latency to have decayed, unless requests to them are still in
+     * flight. Instances which are only filtered out of the given list for
+     * now keep their statistics until then. Runs at most once per decay
+     * time.
+     */
+    private void purge(final List<ServiceInstance<InstanceMetadata>> instances,
+            final long now) {
+        final Set<String> ids = Sets.newHashSetWithExpectedSize(instances
+                .size());
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            ids.add(instance.getId());
+        }
+        final double retentionNanos = RETENTION_DECAYS * decayNanos;
+        final Iterator<Map.Entry<String, Stats>> it = stats.entrySet()
+                .iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Stats> entry = it.next();
+            final Stats s = entry.getValue();
+            if ((now - s.stamp) >= retentionNanos
+                    && (s.inFlight.get() == 0 || !ids.contains(entry.getKey()))) {
+                it.remove();
+            }
+        }
+    }
+
+    private final class Stats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong ewma = new AtomicLong(Double.doubleToRawLongBits(0));
+        volatile long stamp = System.nanoTime();
+
+        void complete() {
+            int current;
+            do {
+                current = inFlight.get();
+            } while ((current > 0)
+                    && !inFlight.compareAndSet(current, current - 1));
+        }
+
+        void observe(final long latencyNanos, final long now) {
+            final long elapsed = Math.max(now - stamp, 0);
+            stamp = now;
+            long current;
+            double next;
+            do {
+                current = ewma.get();
+                final double value = Double.longBitsToDouble(current);
+                if (latencyNanos > value) {
+                    // peak sensitive: jump straight to a slower sample
+                    next = latencyNanos;
+                } else {
+                    final double weight = Math.exp(-elapsed / decayNanos);
+                    next = (value * weight) + (latencyNanos * (1 - weight));
+                }
+            } while (!ewma.compareAndSet(current,
+                    Double.doubleToRawLongBits(next)));
+        }
+
+        double getCost(final long now) {
+            final long elapsed = Math.max(now - stamp, 0);
+            final double value = Double.longBitsToDouble(ewma.get())
+                    * Math.exp(-elapsed / decayNanos);
+            // offset by one so that in-flight requests still count before
+            // any latency has been observed
+            return (value + 1) * (inFlight.get() + 1);
+        }
+    }
+}
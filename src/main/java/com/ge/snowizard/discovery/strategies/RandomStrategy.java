@@ -0,0 +1,39 @@
+package com.ge.snowizard.discovery.strategies;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+/**
+ * Random {@link ProviderStrategy} which uses {@link ThreadLocalRandom} rather
+ * than a shared {@link java.util.Random}, so concurrent callers don't contend
+ * on a single seed.
+ */
+@ThreadSafe
+public class RandomStrategy<T> implements ProviderStrategy<T> {
+
+    @Override
+    public ServiceInstance<T> getInstance(
+            final InstanceProvider<T> instanceProvider) throws Exception {
+        final List<ServiceInstance<T>> instances = instanceProvider
+                .getInstances();
+        final int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        return instances.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return (obj != null) && (getClass() == obj.getClass());
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+}
@@ -0,0 +1,41 @@
+package com.ge.snowizard.discovery.strategies;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+
+/**
+ * Lock-free round-robin {@link ProviderStrategy}. Unlike Curator's version,
+ * the counter wraps around safely when it overflows.
+ */
+@ThreadSafe
+public class RoundRobinStrategy<T> implements ProviderStrategy<T> {
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    @Override
+    public ServiceInstance<T> getInstance(
+            final InstanceProvider<T> instanceProvider) throws Exception {
+        final List<ServiceInstance<T>> instances = instanceProvider
+                .getInstances();
+        final int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+        return instances.get((index.getAndIncrement() & Integer.MAX_VALUE)
+                % size);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return (obj != null) && (getClass() == obj.getClass());
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+}
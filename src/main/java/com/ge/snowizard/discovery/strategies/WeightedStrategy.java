@@ -0,0 +1,147 @@
+package com.ge.snowizard.discovery.strategies;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+/**
+ * {@link ProviderStrategy} which picks instances with a probability
+ * proportional to their advertised {@link InstanceMetadata#getWeight() weight},
+ * scaled down by their advertised {@link InstanceMetadata#getLoad() load}.
+ * 
+ * Selection uses Vose's alias method, so it is O(1) and does not allocate. The
+ * alias table is rebuilt only when the provider returns a different list,
+ * which with {@link com.ge.snowizard.discovery.client.DiscoveryClient} happens
+ * once per membership or metadata change.
+ */
+@ThreadSafe
+public class WeightedStrategy implements ProviderStrategy<InstanceMetadata> {
+
+    /**
+     * Fraction of its weight kept by a fully loaded instance, so that it
+     * still receives a trickle of traffic and its recovery is noticed.
+     */
+    private static final double MIN_HEADROOM = 0.05;
+
+    private volatile AliasTable table = new AliasTable(
+            Collections.<ServiceInstance<InstanceMetadata>> emptyList());
+
+    @Override
+    public ServiceInstance<InstanceMetadata> getInstance(
+            final InstanceProvider<InstanceMetadata> instanceProvider)
+            throws Exception {
+        final List<ServiceInstance<InstanceMetadata>> instances = instanceProvider
+                .getInstances();
+        final int size = instances.size();
+        if (size == 0) {
+            return null;
+        }
+
+        AliasTable current = table;
+        if (current.instances != instances) {
+            // racing threads may both rebuild; either result is correct
+            current = new AliasTable(instances);
+            table = current;
+        }
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int column = random.nextInt(size);
+        if (random.nextDouble() < current.probability[column]) {
+            return instances.get(column);
+        }
+        return instances.get(current.alias[column]);
+    }
+
+    /**
+     * Return the effective weight of an instance.
+     * 
+     * @param instance
+     *            service instance
+     * @return weight scaled by the free capacity of the instance
+     */
+    static double weightOf(final ServiceInstance<InstanceMetadata> instance) {
+        final InstanceMetadata metadata = instance.getPayload();
+        if (metadata == null) {
+            return InstanceMetadata.DEFAULT_WEIGHT;
+        }
+        final Double load = metadata.getLoad();
+        if (load == null) {
+            return metadata.getWeight();
+        }
+        return metadata.getWeight() * Math.max(1.0 - load, MIN_HEADROOM);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return (obj != null) && (getClass() == obj.getClass());
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+
+    @Immutable
+    private static final class AliasTable {
+        final List<ServiceInstance<InstanceMetadata>> instances;
+        final double[] probability;
+        final int[] alias;
+
+        AliasTable(final List<ServiceInstance<InstanceMetadata>> instances) {
+            final int size = instances.size();
+            this.instances = instances;
+            this.probability = new double[size];
+            this.alias = new int[size];
+            if (size == 0) {
+                return;
+            }
+
+            final double[] scaled = new double[size];
+            double total = 0.0;
+            for (int i = 0; i < size; i++) {
+                scaled[i] = weightOf(instances.get(i));
+                total += scaled[i];
+            }
+
+            final int[] small = new int[size];
+            final int[] large = new int[size];
+            int smallCount = 0;
+            int largeCount = 0;
+            for (int i = 0; i < size; i++) {
+                scaled[i] = scaled[i] * size / total;
+                if (scaled[i] < 1.0) {
+                    small[smallCount++] = i;
+                } else {
+                    large[largeCount++] = i;
+                }
+            }
+
+            while (smallCount > 0 && largeCount > 0) {
+                final int less = small[--smallCount];
+                final int more = large[--largeCount];
+                probability[less] = scaled[less];
+                alias[less] = more;
+                scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+                if (scaled[more] < 1.0) {
+                    small[smallCount++] = more;
+                } else {
+                    large[largeCount++] = more;
+                }
+            }
+
+            // whatever is left over is 1.0 up to rounding error
+            while (largeCount > 0) {
+                probability[large[--largeCount]] = 1.0;
+            }
+            while (smallCount > 0) {
+                probability[small[--smallCount]] = 1.0;
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.ge.snowizard.discovery.strategies;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import com.ge.snowizard.discovery.client.InstanceOutcomeListener;
+import com.ge.snowizard.discovery.client.InstanceSnapshot;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * {@link ProviderStrategy} which restricts selection to the instances
+ * advertising the same {@link InstanceMetadata#getZone() zone} as the caller,
+ * and lets a delegate strategy choose among them. Traffic spills over to
+ * every zone when the local zone:
+ * <ul>
+ * <li>has no available instances,</li>
+ * <li>has fewer than {@code minHealthyFraction} of its registered instances
+ * available, or</li>
+ * <li>reports an average {@link InstanceMetadata#getLoad() load} of at least
+ * {@code maxLoad}.</li>
+ * </ul>
+ * The partition is computed once per instance list, so with
+ * {@link com.ge.snowizard.discovery.client.DiscoveryClient} selection does not
+ * filter or allocate. Request outcomes are forwarded to the delegate if it is
+ * an {@link InstanceOutcomeListener}.
+ */
+@ThreadSafe
+public class ZoneAffinityStrategy implements
+        ProviderStrategy<InstanceMetadata>, InstanceOutcomeListener {
+
+    public static final double DEFAULT_MIN_HEALTHY_FRACTION = 0.5;
+    public static final double DEFAULT_MAX_LOAD = 0.8;
+
+    private final String zone;
+    private final ProviderStrategy<InstanceMetadata> delegate;
+    private final double minHealthyFraction;
+    private final double maxLoad;
+
+    private volatile Partition partition = new Partition(
+            Collections.<ServiceInstance<InstanceMetadata>> emptyList(),
+            ImmutableList.<ServiceInstance<InstanceMetadata>> of(), false);
+
+    /**
+     * Constructor using the default spillover thresholds.
+     * 
+     * @param zone
+     *            zone of the caller
+     * @param delegate
+     *            {@link ProviderStrategy} choosing among the selected
+     *            instances
+     */
+    public ZoneAffinityStrategy(final String zone,
+            final ProviderStrategy<InstanceMetadata> delegate) {
+        this(zone, delegate, DEFAULT_MIN_HEALTHY_FRACTION, DEFAULT_MAX_LOAD);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param zone
+     *            zone of the caller
+     * @param delegate
+     *            {@link ProviderStrategy} choosing among the selected
+     *            instances
+     * @param minHealthyFraction
+     *            fraction of the local instances which must be available to
+     *            stay in the local zone
+     * @param maxLoad
+     *            average load of the local instances above which traffic
+     *            spills over to other zones
+     */
+    public ZoneAffinityStrategy(final String zone,
+            final ProviderStrategy<InstanceMetadata> delegate,
+            final double minHealthyFraction, final double maxLoad) {
+        checkArgument(minHealthyFraction >= 0 && minHealthyFraction <= 1,
+                "minHealthyFraction must be between 0 and 1");
+        checkArgument(maxLoad > 0, "maxLoad must be positive");
+        this.zone = checkNotNull(zone);
+        this.delegate = checkNotNull(delegate);
+        this.minHealthyFraction = minHealthyFraction;
+        this.maxLoad = maxLoad;
+    }
+
+    @Override
+    public ServiceInstance<InstanceMetadata> getInstance(
+            final InstanceProvider<InstanceMetadata> instanceProvider)
+            throws Exception {
+        final List<ServiceInstance<InstanceMetadata>> instances = instanceProvider
+                .getInstances();
+
+        Partition current = partition;
+        if (current.instances != instances) {
+            // racing threads may both rebuild; either result is correct
+            current = partition(instanceProvider, instances);
+            partition = current;
+        }
+        return delegate.getInstance(current);
+    }
+
+    /**
+     * Return whether the last selection spilled over to other zones.
+     * 
+     * @return true if traffic is not restricted to the local zone
+     */
+    public boolean isSpilling() {
+        return partition.spilling;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+
+        final ZoneAffinityStrategy other = (ZoneAffinityStrategy) obj;
+        return zone.equals(other.zone) && delegate.equals(other.delegate)
+                && (minHealthyFraction == other.minHealthyFraction)
+                && (maxLoad == other.maxLoad);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(zone, delegate, minHealthyFraction, maxLoad);
+    }
+
+    @Override
+    public void onStart(final ServiceInstance<InstanceMetadata> instance) {
+        if (delegate instanceof InstanceOutcomeListener) {
+            ((InstanceOutcomeListener) delegate).onStart(instance);
+        }
+    }
+
+    @Override
+    public void onSuccess(final ServiceInstance<InstanceMetadata> instance,
+            final long latencyNanos) {
+        if (delegate instanceof InstanceOutcomeListener) {
+            ((InstanceOutcomeListener) delegate).onSuccess(instance,
+                    latencyNanos);
+        }
+    }
+
+    @Override
+    public void onError(final ServiceInstance<InstanceMetadata> instance) {
+        if (delegate instanceof InstanceOutcomeListener) {
+            ((InstanceOutcomeListener) delegate).onError(instance);
+        }
+    }
+
+    private Partition partition(
+            final InstanceProvider<InstanceMetadata> instanceProvider,
+            final List<ServiceInstance<InstanceMetadata>> instances) {
+        final ImmutableList.Builder<ServiceInstance<InstanceMetadata>> builder = ImmutableList
+                .builder();
+        double totalLoad = 0.0;
+        int reporting = 0;
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            if (isLocal(instance)) {
+                builder.add(instance);
+                final Double load = instance.getPayload().getLoad();
+                if (load != null) {
+                    totalLoad += load;
+                    reporting++;
+                }
+            }
+        }
+        final ImmutableList<ServiceInstance<InstanceMetadata>> local = builder
+                .build();
+
+        // only a DiscoveryClient snapshot knows about the filtered instances,
+        // counted within its aperture
+        int registered = local.size();
+        if (instanceProvider instanceof InstanceSnapshot) {
+            registered = 0;
+            for (final ServiceInstance<InstanceMetadata> instance : ((InstanceSnapshot) instanceProvider)
+                    .getMembers()) {
+                if (isLocal(instance)) {
+                    registered++;
+                }
+            }
+        }
+
+        final boolean spilling = local.isEmpty()
+                || local.size() < (minHealthyFraction * registered)
+                || (reporting > 0 && (totalLoad / reporting) >= maxLoad);
+        return new Partition(instances, spilling ? instances : local, spilling);
+    }
+
+    private boolean isLocal(final ServiceInstance<InstanceMetadata> instance) {
+        final InstanceMetadata metadata = instance.getPayload();
+        return metadata != null && zone.equals(metadata.getZone());
+    }
+
+    /**
+     * Instances selected for a given instance list. It is handed to the
+     * delegate as its {@link InstanceProvider}, always returning the same list
+     * so that delegates can cache per-list state.
+     */
+    @Immutable
+    private static final class Partition implements
+            InstanceProvider<InstanceMetadata> {
+        final List<ServiceInstance<InstanceMetadata>> instances;
+        final List<ServiceInstance<InstanceMetadata>> selected;
+        final boolean spilling;
+
+        Partition(final List<ServiceInstance<InstanceMetadata>> instances,
+                final List<ServiceInstance<InstanceMetadata>> selected,
+                final boolean spilling) {
+            this.instances = instances;
+            this.selected = selected;
+            this.spilling = spilling;
+        }
+
+        @Override
+        public List<ServiceInstance<InstanceMetadata>> getInstances() {
+            return selected;
+        }
+    }
+}
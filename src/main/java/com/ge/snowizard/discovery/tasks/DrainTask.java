@@ -0,0 +1,48 @@
+package com.ge.snowizard.discovery.tasks;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import io.dropwizard.servlets.tasks.Task;
+import java.io.PrintWriter;
+import com.ge.snowizard.discovery.manage.CuratorAdvertiserManager;
+import com.google.common.collect.ImmutableMultimap;
+
+/**
+ * Admin task which drains this instance ahead of a shutdown: it is advertised
+ * as draining, and unregistered once the grace period has passed. The request
+ * only returns once the instance is unregistered, so clients of the admin
+ * endpoint need a timeout longer than the grace period. Draining again has
+ * no effect until the task is invoked with the {@code resume} parameter,
+ * which registers the instance again.
+ *
+ * <pre>
+ * curl -X POST http://localhost:8081/tasks/drain
+ * curl -X POST http://localhost:8081/tasks/drain?resume=true
+ * </pre>
+ */
+public class DrainTask extends Task {
+
+    private final CuratorAdvertiserManager manager;
+
+    /**
+     * Constructor
+     *
+     * @param manager
+     *            {@link CuratorAdvertiserManager}
+     */
+    public DrainTask(final CuratorAdvertiserManager manager) {
+        super("drain");
+        this.manager = checkNotNull(manager);
+    }
+
+    @Override
+    public void execute(final ImmutableMultimap<String, String> parameters,
+            final PrintWriter output) throws Exception {
+        if (parameters.containsKey("resume")) {
+            manager.resume();
+            output.println("Registered service in ZK");
+        } else {
+            manager.drain();
+            output.println("Drained and unregistered service from ZK");
+        }
+    }
+}
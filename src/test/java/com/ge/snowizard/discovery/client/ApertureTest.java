@@ -0,0 +1,122 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.Test;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+public class ApertureTest {
+
+    private static ServiceInstance<InstanceMetadata> newInstance(final int id) {
+        try {
+            return ServiceInstance.<InstanceMetadata> builder().name("test")
+                    .id(String.format("instance-%04d", id))
+                    .address("10.0.0.1").port(8080).build();
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<ServiceInstance<InstanceMetadata>> newInstances(
+            final int count) {
+        final List<ServiceInstance<InstanceMetadata>> instances = Lists
+                .newArrayList();
+        for (int i = 0; i < count; i++) {
+            instances.add(newInstance(i));
+        }
+        return instances;
+    }
+
+    @Test
+    public void testSelectsEveryInstanceWhenFewer() {
+        final List<ServiceInstance<InstanceMetadata>> instances = newInstances(3);
+        assertEquals(instances, new Aperture("client", 5).select(instances));
+    }
+
+    @Test
+    public void testSelectsConsecutiveInstances() {
+        final List<ServiceInstance<InstanceMetadata>> instances = newInstances(100);
+        final Aperture aperture = new Aperture("client", 10);
+        final List<ServiceInstance<InstanceMetadata>> subset = aperture
+                .select(instances);
+        assertEquals(10, subset.size());
+
+        final int start = (int) (aperture.getOffset() * 100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(instances.get((start + i) % 100), subset.get(i));
+        }
+    }
+
+    @Test
+    public void testIndependentOfOrder() {
+        final List<ServiceInstance<InstanceMetadata>> instances = newInstances(100);
+        final List<ServiceInstance<InstanceMetadata>> shuffled = Lists
+                .newArrayList(instances);
+        Collections.shuffle(shuffled);
+        final Aperture aperture = new Aperture("client", 10);
+        assertEquals(aperture.select(instances), aperture.select(shuffled));
+    }
+
+    @Test
+    public void testStableForClientId() {
+        final List<ServiceInstance<InstanceMetadata>> instances = newInstances(100);
+        assertEquals(new Aperture("host-1", 10).getOffset(), new Aperture(
+                "host-1", 10).getOffset(), 0.0);
+        assertEquals(new Aperture("host-1", 10).select(instances),
+                new Aperture("host-1", 10).select(instances));
+    }
+
+    @Test
+    public void testSlidesByOneOnMembershipChange() {
+        final List<ServiceInstance<InstanceMetadata>> instances = newInstances(100);
+        final List<ServiceInstance<InstanceMetadata>> joined = Lists
+                .newArrayList(instances);
+        joined.add(newInstance(100));
+        final List<ServiceInstance<InstanceMetadata>> left = Lists
+                .newArrayList(instances);
+        left.remove(50);
+
+        for (int client = 0; client < 100; client++) {
+            final Aperture aperture = new Aperture("host-" + client, 10);
+            final Set<ServiceInstance<InstanceMetadata>> before = Sets
+                    .newHashSet(aperture.select(instances));
+            assertTrue(Sets.difference(before,
+                    Sets.newHashSet(aperture.select(joined))).size() <= 1);
+            assertTrue(Sets.difference(before,
+                    Sets.newHashSet(aperture.select(left))).size() <= 1);
+        }
+    }
+
+    @Test
+    public void testSpreadsClientsAcrossInstances() {
+        final List<ServiceInstance<InstanceMetadata>> instances = newInstances(50);
+        final Map<ServiceInstance<InstanceMetadata>, Integer> load = Maps
+                .newHashMap();
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            load.put(instance, 0);
+        }
+        // 1000 clients of 10 instances each: 200 clients per instance
+        for (int client = 0; client < 1000; client++) {
+            for (final ServiceInstance<InstanceMetadata> instance : new Aperture(
+                    "host-" + client, 10).select(instances)) {
+                load.put(instance, load.get(instance) + 1);
+            }
+        }
+        for (final int clients : load.values()) {
+            assertTrue("clients=" + clients, clients > 100 && clients < 300);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsEmptyAperture() {
+        new Aperture("client", 0);
+    }
+}
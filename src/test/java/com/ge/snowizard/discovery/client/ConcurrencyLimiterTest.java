@@ -0,0 +1,161 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.Test;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Limit of 4 requests, between 2 and 6, halved on failure.
+     */
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 2, 6,
+            0.5, 1, TimeUnit.SECONDS);
+    private final ServiceInstance<InstanceMetadata> instance = newInstance(UUID
+            .randomUUID());
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final UUID instanceId) {
+        try {
+            return ServiceInstance.<InstanceMetadata> builder().name("test")
+                    .id(UUID.randomUUID().toString()).address("10.0.0.1")
+                    .port(8080)
+                    .payload(new InstanceMetadata(instanceId, "10.0.0.1", 8080))
+                    .build();
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void start(final int requests) {
+        for (int i = 0; i < requests; i++) {
+            limiter.onStart(instance);
+        }
+    }
+
+    @Test
+    public void testAtLimit() {
+        assertEquals(4, limiter.getLimit(instance));
+        start(3);
+        assertFalse(limiter.isAtLimit(instance));
+        start(1);
+        assertTrue(limiter.isAtLimit(instance));
+        assertEquals(4, limiter.getInFlight(instance));
+
+        limiter.onSuccess(instance, 0);
+        assertFalse(limiter.isAtLimit(instance));
+        assertEquals(3, limiter.getInFlight(instance));
+    }
+
+    @Test
+    public void testIncreasesWhileInUse() {
+        start(2);
+        limiter.onSuccess(instance, 0);
+        assertEquals(5, limiter.getLimit(instance));
+
+        // a single request in flight doesn't use half of the limit
+        limiter.onSuccess(instance, 0);
+        assertEquals(5, limiter.getLimit(instance));
+    }
+
+    @Test
+    public void testCappedAtMaximum() {
+        for (int i = 0; i < 10; i++) {
+            start(6);
+            for (int j = 0; j < 6; j++) {
+                limiter.onSuccess(instance, 0);
+            }
+        }
+        assertEquals(6, limiter.getLimit(instance));
+    }
+
+    @Test
+    public void testBacksOffOnError() {
+        start(2);
+        limiter.onError(instance);
+        assertEquals(2, limiter.getLimit(instance));
+        assertEquals(1, limiter.getInFlight(instance));
+
+        // never below the minimum
+        limiter.onError(instance);
+        assertEquals(2, limiter.getLimit(instance));
+        assertEquals(0, limiter.getInFlight(instance));
+    }
+
+    @Test
+    public void testBacksOffOnTimeout() {
+        start(2);
+        limiter.onSuccess(instance, TIMEOUT_NANOS);
+        assertEquals(2, limiter.getLimit(instance));
+        assertEquals(1, limiter.getInFlight(instance));
+    }
+
+    @Test
+    public void testRecoversAfterBackoff() {
+        start(1);
+        limiter.onError(instance);
+        for (int i = 0; i < 3; i++) {
+            start(2);
+            limiter.onSuccess(instance, 0);
+            limiter.onSuccess(instance, 0);
+        }
+        assertEquals(5, limiter.getLimit(instance));
+    }
+
+    @Test
+    public void testInstancesWithoutIdAreNotLimited() {
+        final ServiceInstance<InstanceMetadata> anonymous = newInstance(null);
+        for (int i = 0; i < 10; i++) {
+            limiter.onStart(anonymous);
+        }
+        assertFalse(limiter.isAtLimit(anonymous));
+        assertEquals(0, limiter.getInFlight(anonymous));
+    }
+
+    @Test
+    public void testRetain() {
+        start(1);
+        limiter.onError(instance);
+        limiter.retain(Collections.singletonList(instance));
+        assertEquals(2, limiter.getLimit(instance));
+
+        limiter.retain(Collections.<ServiceInstance<InstanceMetadata>> emptyList());
+        assertEquals(4, limiter.getLimit(instance));
+    }
+
+    @Test
+    public void testRetainKeepsInstancesInFlight() {
+        start(1);
+        limiter.onError(instance);
+        start(1);
+        limiter.retain(Collections.<ServiceInstance<InstanceMetadata>> emptyList());
+        assertEquals(2, limiter.getLimit(instance));
+        assertEquals(1, limiter.getInFlight(instance));
+
+        limiter.onSuccess(instance, 0);
+        limiter.retain(Collections.<ServiceInstance<InstanceMetadata>> emptyList());
+        assertEquals(4, limiter.getLimit(instance));
+    }
+
+    @Test
+    public void testInFlightNeverNegative() {
+        // requests finishing which started before the limit existed
+        start(1);
+        limiter.onSuccess(instance, 0);
+        limiter.onSuccess(instance, 0);
+        limiter.onError(instance);
+        assertEquals(0, limiter.getInFlight(instance));
+
+        // backed off to 2 by the error
+        start(2);
+        assertTrue(limiter.isAtLimit(instance));
+    }
+}
@@ -0,0 +1,133 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ProviderStrategy;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+import com.ge.snowizard.discovery.strategies.RandomStrategy;
+import com.ge.snowizard.discovery.strategies.RoundRobinStrategy;
+
+public class DiscoveryClientRegistryTest {
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private ServiceDiscovery<InstanceMetadata> discovery;
+    private DiscoveryClientRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = CuratorFrameworkFactory.newClient(
+                server.getConnectString(), new RetryOneTime(100));
+        framework.start();
+        discovery = ServiceDiscoveryBuilder
+                .builder(InstanceMetadata.class)
+                .basePath("/service")
+                .client(framework)
+                .serializer(
+                        new JacksonInstanceSerializer<InstanceMetadata>(
+                                new ObjectMapper(),
+                                new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                                })).build();
+        discovery.start();
+        registry = new DiscoveryClientRegistry(
+                new DiscoveryClientRegistry.ClientFactory() {
+                    @Override
+                    public DiscoveryClient newDiscoveryClient(
+                            final String serviceName,
+                            final ProviderStrategy<InstanceMetadata> providerStrategy) {
+                        return new DiscoveryClient(serviceName, discovery,
+                                null, new InstanceCacheFactory(discovery),
+                                new CircuitBreakerPolicy(), providerStrategy);
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.stop();
+        discovery.close();
+        framework.close();
+        server.close();
+    }
+
+    @Test
+    public void testSharedByEqualStrategies() throws Exception {
+        registry.start();
+        final DiscoveryClient client = registry.acquire("test",
+                new RoundRobinStrategy<InstanceMetadata>());
+        assertSame(client, registry.acquire("test",
+                new RoundRobinStrategy<InstanceMetadata>()));
+        assertNotSame(client, registry.acquire("test",
+                new RandomStrategy<InstanceMetadata>()));
+        assertNotSame(client, registry.acquire("other",
+                new RoundRobinStrategy<InstanceMetadata>()));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void testClosedWhenReleasedByEveryone() throws Exception {
+        registry.start();
+        final DiscoveryClient client = registry.acquire("test",
+                new RoundRobinStrategy<InstanceMetadata>());
+        registry.acquire("test", new RoundRobinStrategy<InstanceMetadata>());
+        assertNotNull(client.getCache());
+
+        registry.release(client);
+        assertEquals(1, registry.size());
+        assertNotNull(client.getCache());
+
+        registry.release(client);
+        assertEquals(0, registry.size());
+        assertNull(client.getCache());
+    }
+
+    @Test
+    public void testStartedWithRegistry() throws Exception {
+        final DiscoveryClient client = registry.acquire("test",
+                new RoundRobinStrategy<InstanceMetadata>());
+        assertNull(client.getCache());
+        registry.start();
+        assertNotNull(client.getCache());
+
+        registry.stop();
+        assertNull(client.getCache());
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testReleaseAfterStop() throws Exception {
+        registry.start();
+        final DiscoveryClient client = registry.acquire("test",
+                new RoundRobinStrategy<InstanceMetadata>());
+        registry.stop();
+        // resources are often released after the registry was stopped
+        registry.release(client);
+        assertNull(client.getCache());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseUnknownClient() throws Exception {
+        registry.start();
+        registry.release(new DiscoveryClient("test", discovery, null,
+                new InstanceCacheFactory(discovery),
+                new CircuitBreakerPolicy(),
+                new RoundRobinStrategy<InstanceMetadata>()));
+    }
+}
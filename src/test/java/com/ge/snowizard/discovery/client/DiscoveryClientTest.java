@@ -0,0 +1,133 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+import com.ge.snowizard.discovery.strategies.RoundRobinStrategy;
+
+public class DiscoveryClientTest {
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private ServiceDiscovery<InstanceMetadata> discovery;
+    private DiscoveryClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = CuratorFrameworkFactory.newClient(
+                server.getConnectString(), new RetryOneTime(100));
+        framework.start();
+        discovery = ServiceDiscoveryBuilder
+                .builder(InstanceMetadata.class)
+                .basePath("/service")
+                .client(framework)
+                .serializer(
+                        new JacksonInstanceSerializer<InstanceMetadata>(
+                                new ObjectMapper(),
+                                new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                                })).build();
+        discovery.start();
+        client = new DiscoveryClient("test", discovery, null,
+                new InstanceCacheFactory(discovery),
+                new CircuitBreakerPolicy(),
+                new RoundRobinStrategy<InstanceMetadata>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        discovery.close();
+        framework.close();
+        server.close();
+    }
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final String name, final UUID id, final int port)
+            throws Exception {
+        return ServiceInstance.<InstanceMetadata> builder().name(name)
+                .id(id.toString()).address("127.0.0.1").port(port)
+                .payload(new InstanceMetadata(id, "127.0.0.1", port)).build();
+    }
+
+    /**
+     * Wait up to 5 seconds for the client to select an instance on the given
+     * port.
+     */
+    private Endpoint awaitEndpoint(final int port) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Endpoint endpoint = client.getEndpoint();
+        while ((endpoint == null || endpoint.getAddress().getPort() != port)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            endpoint = client.getEndpoint();
+        }
+        return endpoint;
+    }
+
+    @Test
+    public void testEndpointsBuiltOnRefresh() throws Exception {
+        final UUID id = UUID.randomUUID();
+        discovery.registerService(newInstance("test", id, 8080));
+        client.start();
+
+        final Endpoint endpoint = client.getEndpoint();
+        assertEquals(id.toString(), endpoint.getId());
+        assertFalse(endpoint.getAddress().isUnresolved());
+        // served from the snapshot rather than built per call
+        assertSame(endpoint, client.getEndpoint());
+
+        discovery.updateService(newInstance("test", id, 8081));
+        final Endpoint updated = awaitEndpoint(8081);
+        assertEquals(8081, updated.getUri().getPort());
+        assertFalse(updated.getAddress().isUnresolved());
+        assertSame(updated, client.getEndpoint());
+    }
+
+    @Test
+    public void testIdleCachesClosed() throws Exception {
+        discovery.registerService(newInstance("other", UUID.randomUUID(),
+                8080));
+        client.setCacheIdleTimeout(50, TimeUnit.MILLISECONDS);
+
+        assertEquals(1, client.getInstances("other").size());
+        assertEquals(0, client.getInstances("test").size());
+        assertEquals(2, client.getCachedServices());
+
+        Thread.sleep(100);
+        // the cache of the client's own service is kept
+        client.getInstances("test");
+        assertEquals(1, client.getCachedServices());
+
+        final long misses = client.getCacheMisses();
+        assertEquals(1, client.getInstances("other").size());
+        assertEquals(misses + 1, client.getCacheMisses());
+        assertEquals(2, client.getCachedServices());
+    }
+
+    @Test
+    public void testCachesKeptWithoutIdleTimeout() throws Exception {
+        client.setCacheIdleTimeout(0, TimeUnit.MILLISECONDS);
+        client.getInstances("other");
+        client.getInstances("test");
+        Thread.sleep(50);
+        client.getInstances("test");
+        assertEquals(2, client.getCachedServices());
+    }
+}
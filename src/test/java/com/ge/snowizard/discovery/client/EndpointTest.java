@@ -0,0 +1,62 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.net.URI;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceInstanceBuilder;
+import org.apache.curator.x.discovery.UriSpec;
+import org.junit.Test;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+public class EndpointTest {
+
+    private static ServiceInstanceBuilder<InstanceMetadata> builder() {
+        try {
+            return ServiceInstance.<InstanceMetadata> builder().name("test")
+                    .id("id").address("127.0.0.1");
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testOfResolves() {
+        final Endpoint endpoint = Endpoint.of(builder().port(8080).build());
+        assertFalse(endpoint.getAddress().isUnresolved());
+        assertEquals(8080, endpoint.getAddress().getPort());
+        assertEquals(URI.create("http://127.0.0.1:8080"), endpoint.getUri());
+    }
+
+    @Test
+    public void testUnresolved() {
+        final Endpoint endpoint = Endpoint.unresolved(builder().port(8080)
+                .build());
+        assertTrue(endpoint.getAddress().isUnresolved());
+        assertEquals("127.0.0.1", endpoint.getAddress().getHostString());
+        assertEquals(8080, endpoint.getAddress().getPort());
+        assertEquals(URI.create("http://127.0.0.1:8080"), endpoint.getUri());
+    }
+
+    @Test
+    public void testSslPortOnly() {
+        final Endpoint endpoint = Endpoint.unresolved(builder().sslPort(8443)
+                .build());
+        assertEquals(URI.create("https://127.0.0.1:8443"), endpoint.getUri());
+    }
+
+    @Test
+    public void testUriSpec() {
+        final Endpoint endpoint = Endpoint.unresolved(builder().port(8080)
+                .uriSpec(new UriSpec("{scheme}://{address}:{port}/api"))
+                .build());
+        assertEquals(URI.create("http://127.0.0.1:8080/api"),
+                endpoint.getUri());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoAddress() {
+        Endpoint.unresolved(builder().address(null).port(8080).build());
+    }
+}
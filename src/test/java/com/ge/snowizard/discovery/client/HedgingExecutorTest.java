@@ -0,0 +1,180 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+import com.ge.snowizard.discovery.strategies.RoundRobinStrategy;
+
+public class HedgingExecutorTest {
+
+    private static final long DELAY_MILLIS = 20;
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private ServiceDiscovery<InstanceMetadata> discovery;
+    private DiscoveryClient client;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor();
+
+    /**
+     * The first request to an instance hangs until it is interrupted, the
+     * others answer with the port of their instance.
+     */
+    private static final class FirstHangs implements InstanceRequest<Integer> {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        volatile int hungPort;
+
+        @Override
+        public Integer execute(final Endpoint endpoint) throws Exception {
+            if (calls.getAndIncrement() == 0) {
+                hungPort = endpoint.getAddress().getPort();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+                } catch (final InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+            return endpoint.getAddress().getPort();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = CuratorFrameworkFactory.newClient(
+                server.getConnectString(), new RetryOneTime(100));
+        framework.start();
+        discovery = ServiceDiscoveryBuilder
+                .builder(InstanceMetadata.class)
+                .basePath("/service")
+                .client(framework)
+                .serializer(
+                        new JacksonInstanceSerializer<InstanceMetadata>(
+                                new ObjectMapper(),
+                                new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                                })).build();
+        discovery.start();
+        for (final int port : new int[] { 8080, 8081 }) {
+            final UUID id = UUID.randomUUID();
+            discovery.registerService(ServiceInstance
+                    .<InstanceMetadata> builder().name("test")
+                    .id(id.toString()).address("127.0.0.1").port(port)
+                    .payload(new InstanceMetadata(id, "127.0.0.1", port))
+                    .build());
+        }
+        client = new DiscoveryClient("test", discovery, null,
+                new InstanceCacheFactory(discovery),
+                new CircuitBreakerPolicy(),
+                new RoundRobinStrategy<InstanceMetadata>());
+        client.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+        client.close();
+        discovery.close();
+        framework.close();
+        server.close();
+    }
+
+    /**
+     * Hedge after a fixed delay, with a budget of a single hedge which is
+     * never refilled.
+     */
+    private HedgingExecutor newExecutor() {
+        return new HedgingExecutor(client, executor, scheduler,
+                new HedgePolicy(0.95, DELAY_MILLIS, DELAY_MILLIS, 0, 1,
+                        TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testHedgeWinsAndCancelsPrimary() throws Exception {
+        final HedgingExecutor hedging = newExecutor();
+        final FirstHangs request = new FirstHangs();
+        final int port = hedging.submit(request).get(5, TimeUnit.SECONDS);
+
+        assertTrue(request.interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(2, request.calls.get());
+        assertEquals(1, hedging.getHedges());
+        assertEquals(1, hedging.getHedgeWins());
+        // the hedge went to the other instance
+        assertNotEquals(request.hungPort, port);
+    }
+
+    @Test
+    public void testCancelledPrimaryLatencyRecorded() throws Exception {
+        final HedgingExecutor hedging = newExecutor();
+        final FirstHangs request = new FirstHangs();
+        hedging.submit(request).get(5, TimeUnit.SECONDS);
+        assertTrue(request.interrupted.await(5, TimeUnit.SECONDS));
+
+        // the winner and the loser, which ran for at least the delay
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (hedging.getLatencies().getCount() < 2
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, hedging.getLatencies().getCount());
+        final long slowest = hedging.getLatencies().getSnapshot().getMax();
+        assertTrue(slowest >= TimeUnit.MILLISECONDS.toNanos(DELAY_MILLIS));
+    }
+
+    @Test
+    public void testBudgetLimitsHedges() throws Exception {
+        final HedgingExecutor hedging = newExecutor();
+        hedging.submit(new FirstHangs()).get(5, TimeUnit.SECONDS);
+        assertEquals(1, hedging.getHedges());
+
+        // the budget is spent, so the slow request is left to answer alone
+        final FirstHangs request = new FirstHangs();
+        final Future<Integer> result = hedging.submit(request);
+        Thread.sleep(DELAY_MILLIS * 5);
+        assertEquals(1, hedging.getHedges());
+        assertEquals(1, hedging.getBudgetExhausted());
+        assertEquals(1, request.calls.get());
+
+        result.cancel(true);
+        assertTrue(request.interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testNotHedgedOnceSchedulerShutDown() throws Exception {
+        final HedgingExecutor hedging = newExecutor();
+        scheduler.shutdown();
+        final int port = hedging.submit(new InstanceRequest<Integer>() {
+            @Override
+            public Integer execute(final Endpoint endpoint) {
+                return endpoint.getAddress().getPort();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertTrue(port == 8080 || port == 8081);
+        assertEquals(0, hedging.getHedges());
+    }
+}
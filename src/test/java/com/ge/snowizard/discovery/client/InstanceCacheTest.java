@@ -0,0 +1,126 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ServiceDiscovery;
+import org.apache.curator.x.discovery.ServiceDiscoveryBuilder;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+
+public class InstanceCacheTest {
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private ServiceDiscovery<InstanceMetadata> discovery;
+    private InstanceCache cache;
+
+    /**
+     * Snapshots published by the cache, in order.
+     */
+    private final BlockingQueue<List<ServiceInstance<InstanceMetadata>>> published = new LinkedBlockingQueue<List<ServiceInstance<InstanceMetadata>>>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = CuratorFrameworkFactory.newClient(
+                server.getConnectString(), new RetryOneTime(100));
+        framework.start();
+        discovery = ServiceDiscoveryBuilder
+                .builder(InstanceMetadata.class)
+                .basePath("/service")
+                .client(framework)
+                .serializer(
+                        new JacksonInstanceSerializer<InstanceMetadata>(
+                                new ObjectMapper(),
+                                new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                                })).build();
+        discovery.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        discovery.close();
+        framework.close();
+        server.close();
+    }
+
+    private void start(final InstanceCache started) throws Exception {
+        cache = started;
+        cache.getListenable().addListener(new InstanceCacheListener() {
+            @Override
+            public void instancesChanged(final InstanceCache cache) {
+                published.add(cache.getInstances());
+            }
+        });
+        cache.start();
+    }
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final UUID id, final int port) throws Exception {
+        return ServiceInstance.<InstanceMetadata> builder().name("test")
+                .id(id.toString()).address("127.0.0.1").port(port)
+                .registrationTimeUTC(1234567890L)
+                .payload(new InstanceMetadata(id, "127.0.0.1", port)).build();
+    }
+
+    private List<ServiceInstance<InstanceMetadata>> nextPublished()
+            throws InterruptedException {
+        return published.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testUnchangedRegistrationNotPublished() throws Exception {
+        start(new InstanceCacheFactory(discovery).newCache("test"));
+        final UUID id = UUID.randomUUID();
+        final ServiceInstance<InstanceMetadata> instance = newInstance(id, 8080);
+
+        discovery.registerService(instance);
+        assertEquals(1, nextPublished().size());
+        final long refreshes = cache.getRefreshCount();
+
+        // rewriting the same registration fires a watch but changes nothing
+        discovery.updateService(newInstance(id, 8080));
+        discovery.updateService(newInstance(id, 8081));
+        assertEquals(8081, (int) nextPublished().get(0).getPort());
+        assertEquals(refreshes + 1, cache.getRefreshCount());
+        assertNull(published.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testRefreshedWhenSchedulerShutDown() throws Exception {
+        final ScheduledExecutorService scheduler = Executors
+                .newSingleThreadScheduledExecutor();
+        start(new InstanceCacheFactory(discovery, null, scheduler, 10,
+                TimeUnit.MILLISECONDS).newCache("test"));
+        scheduler.shutdown();
+
+        discovery.registerService(newInstance(UUID.randomUUID(), 8080));
+        assertNotNull(nextPublished());
+        discovery.registerService(newInstance(UUID.randomUUID(), 8081));
+        final List<ServiceInstance<InstanceMetadata>> instances = nextPublished();
+        assertNotNull(instances);
+        assertEquals(2, instances.size());
+        assertEquals(2, cache.getInstances().size());
+    }
+}
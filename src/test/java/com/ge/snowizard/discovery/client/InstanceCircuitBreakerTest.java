@@ -0,0 +1,244 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.Test;
+import com.ge.snowizard.discovery.client.InstanceCircuitBreaker.State;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+
+public class InstanceCircuitBreakerTest {
+
+    private static final long OPEN_MILLIS = 50;
+    private static final long SLOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ServiceInstance<InstanceMetadata> instance = newInstance("a");
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final String id) {
+        try {
+            return ServiceInstance.<InstanceMetadata> builder().name("test")
+                    .id(id).address("10.0.0.1").port(8080).build();
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Opens at a 50% failure or slow call rate once there are at least 4
+     * calls in the window, and lets 2 calls through when half-open.
+     */
+    private static InstanceCircuitBreaker newBreaker(final long windowMillis,
+            final int buckets) {
+        return new InstanceCircuitBreaker(new CircuitBreakerPolicy(
+                windowMillis, buckets, 4, 0.5, 1000, 0.5, OPEN_MILLIS, 2,
+                TimeUnit.MILLISECONDS));
+    }
+
+    private static InstanceCircuitBreaker newBreaker() {
+        return newBreaker(10000, 10);
+    }
+
+    private void open(final InstanceCircuitBreaker breaker) {
+        breaker.onSuccess(instance, 0);
+        breaker.onSuccess(instance, 0);
+        assertFalse(breaker.onError(instance));
+        assertTrue(breaker.onError(instance));
+        assertEquals(State.OPEN, breaker.getState(instance));
+    }
+
+    private void halfOpen(final InstanceCircuitBreaker breaker)
+            throws Exception {
+        open(breaker);
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.isAvailable(instance, System.nanoTime()));
+        assertEquals(State.HALF_OPEN, breaker.getState(instance));
+    }
+
+    @Test
+    public void testClosedByDefault() {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        assertEquals(State.CLOSED, breaker.getState(instance));
+        assertTrue(breaker.isAvailable(instance, System.nanoTime()));
+        assertTrue(breaker.tryAcquire(instance));
+        assertEquals(0, breaker.getOpenCircuits());
+    }
+
+    @Test
+    public void testStaysClosedBelowMinimumCalls() {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(breaker.onError(instance));
+        }
+        assertEquals(State.CLOSED, breaker.getState(instance));
+    }
+
+    @Test
+    public void testOpensAtFailureRate() {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        open(breaker);
+        assertFalse(breaker.isAvailable(instance, System.nanoTime()));
+        assertFalse(breaker.tryAcquire(instance));
+        assertEquals(1, breaker.getOpenCircuits());
+        assertTrue(breaker.getRetryAt(instance) > System.nanoTime());
+        assertTrue(breaker.isAvailable(newInstance("b"), System.nanoTime()));
+    }
+
+    @Test
+    public void testOpensAtSlowCallRate() {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        breaker.onSuccess(instance, 0);
+        breaker.onSuccess(instance, 0);
+        assertFalse(breaker.onSuccess(instance, SLOW_NANOS));
+        assertTrue(breaker.onSuccess(instance, SLOW_NANOS));
+        assertEquals(State.OPEN, breaker.getState(instance));
+    }
+
+    @Test
+    public void testHalfOpenLetsProbesThrough() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        assertTrue(breaker.tryAcquire(instance));
+        assertTrue(breaker.tryAcquire(instance));
+        assertFalse(breaker.tryAcquire(instance));
+        assertFalse(breaker.isAvailable(instance, System.nanoTime()));
+    }
+
+    @Test
+    public void testHalfOpenClosesOnSuccess() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        assertTrue(breaker.tryAcquire(instance));
+        assertTrue(breaker.tryAcquire(instance));
+        assertFalse(breaker.onSuccess(instance, 0));
+        assertTrue(breaker.onSuccess(instance, 0));
+        assertEquals(State.CLOSED, breaker.getState(instance));
+        assertEquals(0, breaker.getOpenCircuits());
+
+        // the outcomes which opened the circuit are forgotten
+        assertFalse(breaker.onError(instance));
+        assertEquals(State.CLOSED, breaker.getState(instance));
+    }
+
+    @Test
+    public void testHalfOpenReopensOnFailure() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        assertTrue(breaker.tryAcquire(instance));
+        assertTrue(breaker.tryAcquire(instance));
+        breaker.onError(instance);
+        assertTrue(breaker.onError(instance));
+        assertEquals(State.OPEN, breaker.getState(instance));
+        assertFalse(breaker.isAvailable(instance, System.nanoTime()));
+    }
+
+    @Test
+    public void testHalfOpenResolvesWithoutOutcomes() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.isAvailable(instance, System.nanoTime()));
+        assertEquals(State.CLOSED, breaker.getState(instance));
+    }
+
+    @Test
+    public void testHalfOpenIgnoresOutcomesWithoutPermit() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        // late errors of requests sent while the circuit was closed
+        assertFalse(breaker.onError(instance));
+        assertFalse(breaker.onError(instance));
+        assertEquals(State.HALF_OPEN, breaker.getState(instance));
+
+        assertTrue(breaker.tryAcquire(instance));
+        assertFalse(breaker.onError(instance));
+        assertFalse(breaker.onError(instance));
+        assertEquals(State.HALF_OPEN, breaker.getState(instance));
+    }
+
+    @Test
+    public void testHalfOpenIgnoresSuccessSentBeforehand() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        assertTrue(breaker.tryAcquire(instance));
+        assertTrue(breaker.tryAcquire(instance));
+        final long sentWhileOpen = TimeUnit.MILLISECONDS
+                .toNanos(OPEN_MILLIS * 2);
+        assertFalse(breaker.onSuccess(instance, sentWhileOpen));
+        assertFalse(breaker.onSuccess(instance, sentWhileOpen));
+        assertEquals(State.HALF_OPEN, breaker.getState(instance));
+    }
+
+    @Test
+    public void testRejectedRequestsDontCountAsLetThrough() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        assertTrue(breaker.tryAcquire(instance));
+        assertTrue(breaker.tryAcquire(instance));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(breaker.tryAcquire(instance));
+        }
+        // 1 failure out of the 2 requests let through, not out of 12
+        assertFalse(breaker.onError(instance));
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertFalse(breaker.isAvailable(instance, System.nanoTime()));
+        assertEquals(State.OPEN, breaker.getState(instance));
+    }
+
+    @Test
+    public void testHalfOpenClosesWhenOnlyErrorsReported() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        halfOpen(breaker);
+        // successful probes of a caller which never reports success
+        assertTrue(breaker.tryAcquire(instance));
+        assertTrue(breaker.tryAcquire(instance));
+        Thread.sleep(OPEN_MILLIS + 10);
+        assertTrue(breaker.isAvailable(instance, System.nanoTime()));
+        assertEquals(State.CLOSED, breaker.getState(instance));
+    }
+
+    @Test
+    public void testForgetsOutcomesOutsideWindow() throws Exception {
+        final InstanceCircuitBreaker breaker = newBreaker(100, 4);
+        for (int i = 0; i < 3; i++) {
+            breaker.onError(instance);
+        }
+        Thread.sleep(150);
+
+        // 1 failure in 4 calls, or 4 in 7 if the old buckets were counted
+        for (int i = 0; i < 3; i++) {
+            breaker.onSuccess(instance, 0);
+        }
+        assertFalse(breaker.onError(instance));
+        assertEquals(State.CLOSED, breaker.getState(instance));
+    }
+
+    @Test
+    public void testBucketSaturates() {
+        final InstanceCircuitBreaker breaker = newBreaker(3600000, 1);
+        for (int i = 0; i < 70000; i++) {
+            breaker.onSuccess(instance, 0);
+        }
+        // the full bucket neither overflows into its window position nor
+        // counts further outcomes
+        for (int i = 0; i < 70000; i++) {
+            breaker.onError(instance);
+        }
+        assertEquals(State.CLOSED, breaker.getState(instance));
+    }
+
+    @Test
+    public void testRetain() {
+        final InstanceCircuitBreaker breaker = newBreaker();
+        open(breaker);
+        breaker.retain(Collections.singletonList(instance));
+        assertEquals(State.OPEN, breaker.getState(instance));
+
+        breaker.retain(Collections.<ServiceInstance<InstanceMetadata>> emptyList());
+        assertEquals(State.CLOSED, breaker.getState(instance));
+        assertEquals(0, breaker.getOpenCircuits());
+    }
+}
@@ -0,0 +1,82 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.List;
+import java.util.UUID;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.Test;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+public class InstanceDiffTest {
+
+    private final UUID a = UUID.randomUUID();
+    private final UUID b = UUID.randomUUID();
+    private final UUID c = UUID.randomUUID();
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final UUID id, final int weight) {
+        try {
+            return ServiceInstance.<InstanceMetadata> builder().name("test")
+                    .id(id.toString()).address("10.0.0.1").port(8080)
+                    .registrationTimeUTC(1234567890L)
+                    .payload(new InstanceMetadata(id, "10.0.0.1", 8080,
+                            weight, null)).build();
+        } catch (final Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testNoChange() {
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(a, 1), newInstance(b, 1));
+        // equal registrations read back from ZooKeeper again
+        final InstanceDiff diff = InstanceDiff.between("test", instances,
+                ImmutableList.of(newInstance(b, 1), newInstance(a, 1)));
+        assertTrue(diff.isEmpty());
+        assertEquals("test", diff.getServiceName());
+    }
+
+    @Test
+    public void testAddedRemovedAndUpdated() {
+        final ServiceInstance<InstanceMetadata> removed = newInstance(a, 1);
+        final ServiceInstance<InstanceMetadata> updated = newInstance(b, 2);
+        final ServiceInstance<InstanceMetadata> added = newInstance(c, 1);
+
+        final InstanceDiff diff = InstanceDiff.between("test",
+                ImmutableList.of(removed, newInstance(b, 1)),
+                ImmutableList.of(updated, added));
+        assertFalse(diff.isEmpty());
+        assertEquals(ImmutableList.of(added), diff.getAdded());
+        assertEquals(ImmutableList.of(removed), diff.getRemoved());
+        assertEquals(ImmutableList.of(updated), diff.getUpdated());
+    }
+
+    @Test
+    public void testFromEmpty() {
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(a, 1), newInstance(b, 1));
+        final InstanceDiff diff = InstanceDiff.between("test",
+                ImmutableList.<ServiceInstance<InstanceMetadata>> of(),
+                instances);
+        assertEquals(instances, diff.getAdded());
+        assertTrue(diff.getRemoved().isEmpty());
+        assertTrue(diff.getUpdated().isEmpty());
+    }
+
+    @Test
+    public void testToEmpty() {
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(a, 1), newInstance(b, 1));
+        final InstanceDiff diff = InstanceDiff.between("test", instances,
+                ImmutableList.<ServiceInstance<InstanceMetadata>> of());
+        assertTrue(diff.getAdded().isEmpty());
+        assertEquals(ImmutableSet.copyOf(instances),
+                ImmutableSet.copyOf(diff.getRemoved()));
+        assertTrue(diff.getUpdated().isEmpty());
+    }
+}
@@ -0,0 +1,62 @@
+package com.ge.snowizard.discovery.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class RetryBudgetTest {
+
+    @Test
+    public void testStartsFull() {
+        final RetryBudget budget = new RetryBudget(0.2, 3);
+        assertEquals(3.0, budget.getBalance(), 0.0);
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+        assertEquals(0.0, budget.getBalance(), 0.0);
+    }
+
+    @Test
+    public void testEarnsRatioPerRequest() {
+        final RetryBudget budget = new RetryBudget(0.2, 3);
+        for (int i = 0; i < 3; i++) {
+            budget.tryWithdraw();
+        }
+
+        for (int i = 0; i < 4; i++) {
+            budget.deposit();
+        }
+        assertEquals(0.8, budget.getBalance(), 1e-9);
+        assertFalse(budget.tryWithdraw());
+
+        budget.deposit();
+        assertTrue(budget.tryWithdraw());
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test
+    public void testCapped() {
+        final RetryBudget budget = new RetryBudget(0.5, 2);
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertEquals(2.0, budget.getBalance(), 0.0);
+    }
+
+    @Test
+    public void testZeroRatioNeverRefills() {
+        final RetryBudget budget = new RetryBudget(0, 1);
+        assertTrue(budget.tryWithdraw());
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        assertFalse(budget.tryWithdraw());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsRatioAboveOne() {
+        new RetryBudget(1.5, 10);
+    }
+}
@@ -0,0 +1,235 @@
+package com.ge.snowizard.discovery.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.util.Arrays;
+import java.util.UUID;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.ServiceType;
+import org.apache.curator.x.discovery.UriSpec;
+import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+
+public class BinaryInstanceSerializerTest {
+
+    private final JacksonInstanceSerializer<InstanceMetadata> json = new JacksonInstanceSerializer<InstanceMetadata>(
+            new ObjectMapper(),
+            new TypeReference<ServiceInstance<InstanceMetadata>>() {
+            });
+    private final BinaryInstanceSerializer serializer = new BinaryInstanceSerializer(
+            json);
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final String id, final String address,
+            final InstanceMetadata payload) throws Exception {
+        return ServiceInstance.<InstanceMetadata> builder().name("test")
+                .id(id).address(address).port(8080).sslPort(8443)
+                .registrationTimeUTC(1234567890L)
+                .serviceType(ServiceType.STATIC)
+                .uriSpec(new UriSpec("{scheme}://{address}:{port}/path"))
+                .payload(payload).build();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final UUID id = UUID.randomUUID();
+        final ServiceInstance<InstanceMetadata> instance = newInstance(
+                id.toString(), "10.0.0.1", new InstanceMetadata(id,
+                        "10.0.0.1", 8080, 3, 0.25, "us-east-1a", true));
+
+        final byte[] bytes = serializer.serialize(instance);
+        assertTrue(BinaryInstanceSerializer.isBinary(bytes));
+        assertEquals(BinaryInstanceSerializer.VERSION, bytes[1]);
+
+        final ServiceInstance<InstanceMetadata> actual = serializer
+                .deserialize(bytes);
+        assertEquals(instance, actual);
+        assertEquals(instance.getUriSpec(), actual.getUriSpec());
+        assertEquals(ServiceType.STATIC, actual.getServiceType());
+        assertEquals(1234567890L, actual.getRegistrationTimeUTC());
+        assertEquals(instance.getPayload(), actual.getPayload());
+        assertTrue(actual.getPayload().isDraining());
+    }
+
+    @Test
+    public void testRoundTripStringIdAndAddress() throws Exception {
+        final ServiceInstance<InstanceMetadata> instance = newInstance(
+                "not-a-uuid", "host.example.com", new InstanceMetadata(null,
+                        "::1", 8080));
+
+        final ServiceInstance<InstanceMetadata> actual = serializer
+                .deserialize(serializer.serialize(instance));
+        assertEquals("not-a-uuid", actual.getId());
+        assertEquals("host.example.com", actual.getAddress());
+        assertNull(actual.getPayload().getInstanceId());
+        assertEquals("::1", actual.getPayload().getListenAddress());
+        assertNull(actual.getPayload().getLoad());
+        assertEquals(InstanceMetadata.DEFAULT_WEIGHT, actual.getPayload()
+                .getWeight());
+    }
+
+    @Test
+    public void testReadsLegacyJson() throws Exception {
+        final UUID id = UUID.randomUUID();
+        final ServiceInstance<InstanceMetadata> instance = newInstance(
+                id.toString(), "10.0.0.1", new InstanceMetadata(id,
+                        "10.0.0.1", 8080));
+
+        final byte[] bytes = json.serialize(instance);
+        assertFalse(BinaryInstanceSerializer.isBinary(bytes));
+        assertEquals(instance, serializer.deserialize(bytes));
+    }
+
+    @Test
+    public void testSkipsUnknownPayloadFields() throws Exception {
+        final UUID id = UUID.randomUUID();
+        final ServiceInstance<InstanceMetadata> instance = newInstance(
+                id.toString(), "10.0.0.1", new InstanceMetadata(id,
+                        "10.0.0.1", 8080));
+        final byte[] bytes = serializer.serialize(instance);
+
+        // append a field to the payload, as a later version would
+        final byte[] extended = Arrays.copyOf(bytes, bytes.length + 1);
+        final int lengthOffset = bytes.length - payloadLength(bytes) - 2;
+        final int length = payloadLength(bytes) + 1;
+        extended[lengthOffset] = (byte) (length >>> 8);
+        extended[lengthOffset + 1] = (byte) length;
+        extended[bytes.length] = 42;
+
+        assertEquals(instance.getPayload(), serializer.deserialize(extended)
+                .getPayload());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNewerVersion() throws Exception {
+        final byte[] bytes = serializer.serialize(newInstance("id",
+                "10.0.0.1", null));
+        bytes[1] = BinaryInstanceSerializer.VERSION + 1;
+        serializer.deserialize(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownServiceType() throws Exception {
+        final byte[] bytes = serializer.serialize(newInstance("id",
+                "10.0.0.1", null));
+        bytes[3] = 42;
+        serializer.deserialize(bytes);
+    }
+
+    @Test
+    public void testRejectsTruncatedRecords() throws Exception {
+        final UUID id = UUID.randomUUID();
+        final byte[] bytes = serializer.serialize(newInstance(id.toString(),
+                "10.0.0.1", new InstanceMetadata(id, "10.0.0.1", 8080, 3,
+                        0.25, "us-east-1a", true)));
+        for (int length = 2; length < bytes.length; length++) {
+            try {
+                serializer.deserialize(Arrays.copyOf(bytes, length));
+                fail("Read a record truncated to " + length + " bytes");
+            } catch (final IllegalArgumentException e) {
+                assertTrue(e.getMessage(),
+                        e.getMessage().startsWith("Truncated"));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsStringLongerThanRecord() throws Exception {
+        final byte[] bytes = serializer.serialize(ServiceInstance
+                .<InstanceMetadata> builder().name("test").id("id")
+                .address("10.0.0.1").build());
+        // the name follows the header, as there are no ports
+        bytes[12] = 0x7F;
+        try {
+            serializer.deserialize(bytes);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("offset 14"));
+        }
+    }
+
+    @Test
+    public void testMissingPortsStayNull() throws Exception {
+        final ServiceInstance<InstanceMetadata> actual = serializer
+                .deserialize(serializer.serialize(ServiceInstance
+                        .<InstanceMetadata> builder().name("test").id("id")
+                        .address("10.0.0.1").build()));
+        assertNull(actual.getPort());
+        assertNull(actual.getSslPort());
+        assertNull(actual.getPayload());
+    }
+
+    @Test
+    public void testServiceTypeCodes() throws Exception {
+        final ServiceType[] types = { ServiceType.DYNAMIC, ServiceType.STATIC,
+                ServiceType.PERMANENT };
+        for (int code = 0; code < types.length; code++) {
+            final ServiceInstance<InstanceMetadata> instance = ServiceInstance
+                    .<InstanceMetadata> builder().name("test").id("id")
+                    .address("10.0.0.1").serviceType(types[code]).build();
+            final byte[] bytes = serializer.serialize(instance);
+            assertEquals(code, bytes[3]);
+            assertEquals(types[code], serializer.deserialize(bytes)
+                    .getServiceType());
+        }
+    }
+
+    @Test
+    public void testLongestString() throws Exception {
+        final String name = Strings.repeat("a", 0xFFFE);
+        final ServiceInstance<InstanceMetadata> instance = ServiceInstance
+                .<InstanceMetadata> builder().name(name).id("id")
+                .address("10.0.0.1").build();
+        assertEquals(name, serializer.deserialize(
+                serializer.serialize(instance)).getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsStringOfNullLength() throws Exception {
+        serializer.serialize(ServiceInstance.<InstanceMetadata> builder()
+                .name(Strings.repeat("a", 0xFFFF)).id("id")
+                .address("10.0.0.1").build());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsOversizedPayload() throws Exception {
+        serializer.serialize(newInstance("id", "10.0.0.1",
+                new InstanceMetadata(null, "10.0.0.1", 8080,
+                        InstanceMetadata.DEFAULT_WEIGHT, null, Strings.repeat(
+                                "a", 0xFFF0))));
+    }
+
+    @Test
+    public void testNullString() throws Exception {
+        final ServiceInstance<InstanceMetadata> instance = newInstance("id",
+                "10.0.0.1", new InstanceMetadata(null, null, 8080));
+        final byte[] bytes = serializer.serialize(instance);
+        assertNull(serializer.deserialize(bytes).getPayload()
+                .getListenAddress());
+        assertArrayEquals(bytes, serializer.serialize(serializer
+                .deserialize(bytes)));
+    }
+
+    /**
+     * The payload is the last field of a record, so its length is found by
+     * reading the record without it.
+     */
+    private int payloadLength(final byte[] bytes) throws Exception {
+        final ServiceInstance<InstanceMetadata> instance = serializer
+                .deserialize(bytes);
+        final byte[] withoutPayload = serializer.serialize(ServiceInstance
+                .<InstanceMetadata> builder().name(instance.getName())
+                .id(instance.getId()).address(instance.getAddress())
+                .port(instance.getPort()).sslPort(instance.getSslPort())
+                .registrationTimeUTC(instance.getRegistrationTimeUTC())
+                .serviceType(instance.getServiceType())
+                .uriSpec(instance.getUriSpec()).build());
+        return bytes.length - withoutPayload.length - 2;
+    }
+}
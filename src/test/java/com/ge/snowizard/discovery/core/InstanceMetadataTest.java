@@ -0,0 +1,53 @@
+package com.ge.snowizard.discovery.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.UUID;
+import org.junit.Test;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class InstanceMetadataTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final UUID id = UUID.randomUUID();
+
+    private JsonNode toJson(final InstanceMetadata metadata) throws Exception {
+        return mapper.readTree(mapper.writeValueAsString(metadata));
+    }
+
+    @Test
+    public void testDefaultsReadableByOldClients() throws Exception {
+        final JsonNode json = toJson(new InstanceMetadata(id, "10.0.0.1", 8080));
+        // only the fields known before weights, loads, zones and draining
+        assertEquals(3, json.size());
+        assertEquals(id.toString(), json.get("instanceId").asText());
+        assertEquals("10.0.0.1", json.get("listenAddress").asText());
+        assertEquals(8080, json.get("listenPort").asInt());
+    }
+
+    @Test
+    public void testZoneWrittenOnlyWhenConfigured() throws Exception {
+        assertFalse(toJson(
+                new InstanceMetadata(id, "10.0.0.1", 8080, 1, null, null))
+                .has("zone"));
+
+        final InstanceMetadata zoned = new InstanceMetadata(id, "10.0.0.1",
+                8080, 1, null, "us-east-1a");
+        final JsonNode json = toJson(zoned);
+        assertEquals("us-east-1a", json.get("zone").asText());
+        assertEquals(zoned, mapper.treeToValue(json, InstanceMetadata.class));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final InstanceMetadata metadata = new InstanceMetadata(id, "10.0.0.1",
+                8080, 5, 0.25, "us-east-1a", true);
+        final JsonNode json = toJson(metadata);
+        assertEquals(5, json.get("weight").asInt());
+        assertTrue(json.get("draining").asBoolean());
+        assertEquals(metadata,
+                mapper.treeToValue(json, InstanceMetadata.class));
+    }
+}
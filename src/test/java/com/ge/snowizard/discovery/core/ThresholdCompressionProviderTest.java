@@ -0,0 +1,88 @@
+package com.ge.snowizard.discovery.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.curator.framework.imps.GzipCompressionProvider;
+import org.junit.Test;
+
+public class ThresholdCompressionProviderTest {
+
+    private static final String PATH = "/service/test/id";
+
+    private final ThresholdCompressionProvider reader = new ThresholdCompressionProvider(
+            CompressionCodec.NONE, 0);
+
+    private static byte[] compressible(final int length) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) 'a');
+        data[0] = '{';
+        return data;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final byte[][] values = { compressible(600), "{\"a\":1}".getBytes("UTF-8"),
+                { ThresholdCompressionProvider.MAGIC, 2, 3, 4 },
+                { 0x1F, (byte) 0x8B, 9 }, {} };
+        for (final CompressionCodec codec : CompressionCodec.values()) {
+            final ThresholdCompressionProvider writer = new ThresholdCompressionProvider(
+                    codec, 64);
+            for (final byte[] value : values) {
+                assertArrayEquals(codec.name(), value, reader.decompress(PATH,
+                        writer.compress(PATH, value)));
+            }
+        }
+    }
+
+    @Test
+    public void testBelowThresholdIsStoredAsIs() throws Exception {
+        final byte[] value = compressible(63);
+        for (final CompressionCodec codec : CompressionCodec.values()) {
+            assertSame(value, new ThresholdCompressionProvider(codec, 64)
+                    .compress(PATH, value));
+        }
+    }
+
+    @Test
+    public void testCompressesAboveThreshold() throws Exception {
+        final byte[] value = compressible(600);
+        final byte[] snappy = new ThresholdCompressionProvider(
+                CompressionCodec.SNAPPY, 64).compress(PATH, value);
+        assertTrue(snappy.length < value.length);
+        assertEquals(ThresholdCompressionProvider.MAGIC, snappy[0]);
+        assertEquals(CompressionCodec.SNAPPY.getId(), snappy[1]);
+
+        final byte[] gzip = new ThresholdCompressionProvider(
+                CompressionCodec.GZIP, 64).compress(PATH, value);
+        assertTrue(gzip.length < value.length);
+        assertEquals((byte) 0x1F, gzip[0]);
+    }
+
+    @Test
+    public void testGzipIsReadableByCurator() throws Exception {
+        final byte[] value = compressible(600);
+        final byte[] gzip = new ThresholdCompressionProvider(
+                CompressionCodec.GZIP, 0).compress(PATH, value);
+        assertArrayEquals(value,
+                new GzipCompressionProvider().decompress(PATH, gzip));
+    }
+
+    @Test
+    public void testUncompressedValuesStayReadable() throws Exception {
+        // values written by versions which did not compress them
+        final byte[] json = compressible(600);
+        assertSame(json, reader.decompress(PATH, json));
+        final byte[] binary = { BinaryInstanceSerializer.MAGIC, 1, 0 };
+        assertSame(binary, reader.decompress(PATH, binary));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsUnknownCodec() throws Exception {
+        reader.decompress(PATH, new byte[] { ThresholdCompressionProvider.MAGIC,
+                42, 1 });
+    }
+}
@@ -0,0 +1,174 @@
+package com.ge.snowizard.discovery.health;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.codahale.metrics.health.HealthCheck.Result;
+
+public class CuratorHealthCheckTest {
+
+    private TestingServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private CuratorFramework newFramework() {
+        return CuratorFrameworkFactory.newClient(server.getConnectString(),
+                5000, 1000, new RetryOneTime(100));
+    }
+
+    /**
+     * Poll the health check until it is healthy or 5 seconds have passed.
+     */
+    private static Result awaitHealthy(final CuratorHealthCheck check)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Result result = check.execute();
+        while (!result.isHealthy() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+            result = check.execute();
+        }
+        return result;
+    }
+
+    @Test
+    public void testHealthyWhenConnected() throws Exception {
+        try (CuratorFramework framework = newFramework()) {
+            framework.start();
+            assertTrue(framework.getZookeeperClient()
+                    .blockUntilConnectedOrTimedOut());
+            final CuratorHealthCheck check = new CuratorHealthCheck(framework);
+            assertTrue(awaitHealthy(check).isHealthy());
+        }
+    }
+
+    @Test
+    public void testConnectedWhileRegistering() throws Exception {
+        final int port = server.getPort();
+        server.close();
+
+        try (CuratorFramework framework = CuratorFrameworkFactory.newClient(
+                "127.0.0.1:" + port, 5000, 1000, new RetryOneTime(100))) {
+            framework.start();
+            // the connection comes up between the health check reading the
+            // initial state and its listener being registered, so that the
+            // CONNECTED event is never delivered to it
+            final CuratorFramework racing = racing(framework, port);
+            final CuratorHealthCheck check = new CuratorHealthCheck(racing);
+            final Result result = awaitHealthy(check);
+            assertTrue(result.getMessage(), result.isHealthy());
+        }
+    }
+
+    /**
+     * Return a {@link CuratorFramework} which starts the server and waits for
+     * the connection before registering each connection state listener.
+     */
+    private CuratorFramework racing(final CuratorFramework framework,
+            final int port) {
+        final Listenable<ConnectionStateListener> listenable = new Listenable<ConnectionStateListener>() {
+            @Override
+            public void addListener(final ConnectionStateListener listener) {
+                connect();
+                framework.getConnectionStateListenable().addListener(listener);
+            }
+
+            @Override
+            public void addListener(final ConnectionStateListener listener,
+                    final Executor executor) {
+                connect();
+                framework.getConnectionStateListenable().addListener(listener,
+                        executor);
+            }
+
+            @Override
+            public void removeListener(final ConnectionStateListener listener) {
+                framework.getConnectionStateListenable().removeListener(
+                        listener);
+            }
+
+            private void connect() {
+                try {
+                    server = new TestingServer(port);
+                    final long deadline = System.nanoTime()
+                            + TimeUnit.SECONDS.toNanos(10);
+                    while (!framework.getZookeeperClient().isConnected()) {
+                        assertTrue(System.nanoTime() < deadline);
+                        Thread.sleep(10);
+                    }
+                } catch (final Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        return (CuratorFramework) Proxy.newProxyInstance(getClass()
+                .getClassLoader(), new Class<?>[] { CuratorFramework.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy,
+                            final Method method, final Object[] args)
+                            throws Throwable {
+                        if (method.getName().equals(
+                                "getConnectionStateListenable")) {
+                            return listenable;
+                        }
+                        try {
+                            return method.invoke(framework, args);
+                        } catch (final InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    @Test
+    public void testNotStarted() throws Exception {
+        try (CuratorFramework framework = newFramework()) {
+            final CuratorHealthCheck check = new CuratorHealthCheck(framework);
+            assertFalse(check.execute().isHealthy());
+        }
+    }
+
+    @Test
+    public void testMissingNamespace() throws Exception {
+        try (CuratorFramework framework = newFramework()) {
+            framework.start();
+            assertTrue(framework.getZookeeperClient()
+                    .blockUntilConnectedOrTimedOut());
+            final CuratorHealthCheck check = new CuratorHealthCheck(
+                    framework.usingNamespace("missing"));
+            final long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(5);
+            Result result = check.execute();
+            while (result.getMessage().contains("not checked")
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+                result = check.execute();
+            }
+            assertFalse(result.isHealthy());
+            assertTrue(result.getMessage(),
+                    result.getMessage().contains("does not exist"));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ge.snowizard.discovery.manage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.dropwizard.util.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ge.snowizard.discovery.DiscoveryFactory;
+import com.ge.snowizard.discovery.core.CuratorAdvertiser;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.ge.snowizard.discovery.core.JacksonInstanceSerializer;
+
+public class CuratorAdvertiserManagerTest {
+
+    private TestingServer server;
+    private CuratorFramework framework;
+    private CuratorAdvertiser advertiser;
+    private final AtomicInteger unregistrations = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestingServer();
+        framework = CuratorFrameworkFactory.newClient(
+                server.getConnectString(), new RetryOneTime(100));
+        framework.start();
+        final ObjectMapper mapper = new ObjectMapper();
+        advertiser = new CuratorAdvertiser(mapper.readValue(
+                "{\"serviceName\":\"test\"}", DiscoveryFactory.class),
+                framework, new JacksonInstanceSerializer<InstanceMetadata>(
+                        mapper,
+                        new TypeReference<ServiceInstance<InstanceMetadata>>() {
+                        })) {
+            @Override
+            public synchronized void unregisterAvailability() {
+                unregistrations.incrementAndGet();
+                super.unregisterAvailability();
+            }
+        };
+        advertiser.initListenInfo(8080);
+        advertiser.registerAvailability();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        framework.close();
+        server.close();
+    }
+
+    private boolean isAdvertised() throws Exception {
+        return framework.checkExists().forPath(advertiser.getPath()) != null;
+    }
+
+    private Future<Void> drainAsync(final CuratorAdvertiserManager manager) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                manager.drain();
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void testDrainedOnce() throws Exception {
+        final CuratorAdvertiserManager manager = new CuratorAdvertiserManager(
+                advertiser, Duration.seconds(5), Duration.milliseconds(200));
+
+        // the admin task and the server stopping race to drain the instance
+        final Future<Void> first = drainAsync(manager);
+        final Future<Void> second = drainAsync(manager);
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        manager.stop();
+
+        assertFalse(isAdvertised());
+        assertEquals(1, unregistrations.get());
+    }
+
+    @Test
+    public void testStoppedWhileDraining() throws Exception {
+        final CuratorAdvertiserManager manager = new CuratorAdvertiserManager(
+                advertiser, Duration.seconds(5), Duration.milliseconds(300));
+        final Future<Void> drain = drainAsync(manager);
+        while (!advertiser.isDraining()) {
+            Thread.sleep(10);
+        }
+
+        // stopping cuts the grace period short rather than waiting for it
+        manager.stop();
+        assertFalse(isAdvertised());
+        drain.get(5, TimeUnit.SECONDS);
+        assertEquals(1, unregistrations.get());
+    }
+
+    @Test
+    public void testDrainedAgainAfterResume() throws Exception {
+        final CuratorAdvertiserManager manager = new CuratorAdvertiserManager(
+                advertiser, Duration.seconds(5), Duration.milliseconds(0));
+        manager.drain();
+        assertEquals(1, unregistrations.get());
+
+        manager.resume();
+        assertTrue(isAdvertised());
+        assertFalse(advertiser.isDraining());
+
+        manager.drain();
+        assertFalse(isAdvertised());
+        assertEquals(2, unregistrations.get());
+        manager.stop();
+        assertEquals(2, unregistrations.get());
+    }
+
+    @Test
+    public void testNotDrainedUnlessRegistered() throws Exception {
+        advertiser.unregisterAvailability();
+        final CuratorAdvertiserManager manager = new CuratorAdvertiserManager(
+                advertiser, Duration.seconds(5), Duration.seconds(10));
+        // returns at once instead of waiting for the grace period
+        manager.drain();
+        assertFalse(advertiser.isDraining());
+        assertEquals(1, unregistrations.get());
+    }
+}
@@ -0,0 +1,132 @@
+package com.ge.snowizard.discovery.strategies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.curator.x.discovery.ServiceInstance;
+import org.apache.curator.x.discovery.details.InstanceProvider;
+import org.junit.Test;
+import com.ge.snowizard.discovery.core.InstanceMetadata;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+public class WeightedStrategyTest {
+
+    private static final int DRAWS = 200000;
+
+    private final WeightedStrategy strategy = new WeightedStrategy();
+
+    private static ServiceInstance<InstanceMetadata> newInstance(
+            final int weight, final Double load) throws Exception {
+        final UUID id = UUID.randomUUID();
+        return ServiceInstance.<InstanceMetadata> builder().name("test")
+                .id(id.toString()).address("10.0.0.1").port(8080)
+                .payload(new InstanceMetadata(id, "10.0.0.1", 8080, weight,
+                        load)).build();
+    }
+
+    private static InstanceProvider<InstanceMetadata> provider(
+            final List<ServiceInstance<InstanceMetadata>> instances) {
+        return new InstanceProvider<InstanceMetadata>() {
+            @Override
+            public List<ServiceInstance<InstanceMetadata>> getInstances() {
+                return instances;
+            }
+        };
+    }
+
+    private Map<ServiceInstance<InstanceMetadata>, Integer> draw(
+            final List<ServiceInstance<InstanceMetadata>> instances)
+            throws Exception {
+        final InstanceProvider<InstanceMetadata> provider = provider(instances);
+        final Map<ServiceInstance<InstanceMetadata>, Integer> counts = Maps
+                .newHashMap();
+        for (final ServiceInstance<InstanceMetadata> instance : instances) {
+            counts.put(instance, 0);
+        }
+        for (int i = 0; i < DRAWS; i++) {
+            final ServiceInstance<InstanceMetadata> selected = strategy
+                    .getInstance(provider);
+            counts.put(selected, counts.get(selected) + 1);
+        }
+        return counts;
+    }
+
+    private static void assertShare(final double expected, final int count) {
+        assertEquals(expected, count / (double) DRAWS, 0.01);
+    }
+
+    @Test
+    public void testNoInstances() throws Exception {
+        assertNull(strategy.getInstance(provider(Collections
+                .<ServiceInstance<InstanceMetadata>> emptyList())));
+    }
+
+    @Test
+    public void testSingleInstance() throws Exception {
+        final ServiceInstance<InstanceMetadata> instance = newInstance(1, null);
+        assertSame(instance,
+                strategy.getInstance(provider(ImmutableList.of(instance))));
+    }
+
+    @Test
+    public void testProportionalToWeight() throws Exception {
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(1, null), newInstance(2, null),
+                        newInstance(3, null), newInstance(4, null));
+        final Map<ServiceInstance<InstanceMetadata>, Integer> counts = draw(instances);
+        for (int i = 0; i < 4; i++) {
+            assertShare((i + 1) / 10.0, counts.get(instances.get(i)));
+        }
+    }
+
+    @Test
+    public void testNonPositiveWeightIsDefault() throws Exception {
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(0, null),
+                        newInstance(InstanceMetadata.DEFAULT_WEIGHT, null));
+        final Map<ServiceInstance<InstanceMetadata>, Integer> counts = draw(instances);
+        assertShare(0.5, counts.get(instances.get(0)));
+        assertShare(0.5, counts.get(instances.get(1)));
+    }
+
+    @Test
+    public void testScaledByLoad() throws Exception {
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(10, 0.5), newInstance(5, null));
+        final Map<ServiceInstance<InstanceMetadata>, Integer> counts = draw(instances);
+        assertShare(0.5, counts.get(instances.get(0)));
+        assertShare(0.5, counts.get(instances.get(1)));
+    }
+
+    @Test
+    public void testRebuildsForNewInstances() throws Exception {
+        draw(ImmutableList.of(newInstance(1, null), newInstance(9, null)));
+
+        final List<ServiceInstance<InstanceMetadata>> instances = ImmutableList
+                .of(newInstance(9, null), newInstance(1, null));
+        final Map<ServiceInstance<InstanceMetadata>, Integer> counts = draw(instances);
+        assertShare(0.9, counts.get(instances.get(0)));
+    }
+
+    @Test
+    public void testWeightOf() throws Exception {
+        assertEquals(10.0, WeightedStrategy.weightOf(newInstance(10, null)),
+                0.0);
+        assertEquals(2.5, WeightedStrategy.weightOf(newInstance(10, 0.75)),
+                1e-9);
+        // a fully loaded instance keeps a trickle of traffic
+        assertEquals(0.5, WeightedStrategy.weightOf(newInstance(10, 1.0)),
+                1e-9);
+
+        final ServiceInstance<InstanceMetadata> noPayload = ServiceInstance
+                .<InstanceMetadata> builder().name("test").id("id")
+                .address("10.0.0.1").build();
+        assertEquals(InstanceMetadata.DEFAULT_WEIGHT,
+                WeightedStrategy.weightOf(noPayload), 0.0);
+    }
+}